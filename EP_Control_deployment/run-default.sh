@@ -19,6 +19,12 @@ fedmgr_port=8083
 
 timestamp=`date +"%F_%T"`
 
+# Supercontroller shards: "shards:" in config.txt, 1 if not set. All of them run on this machine, unless
+# LOCAL_SHARDS lists the ones for this machine (e.g. LOCAL_SHARDS="0 1"); start the others with run-shard.sh
+num_shards=$(grep -A1 "^shards:" config.txt | sed -n 2p | tr -d '[:space:]')
+num_shards=${num_shards:-1}
+local_shards=${LOCAL_SHARDS:-$(seq 0 $((num_shards - 1)))}
+
 function getNumberJoined {
     if (( $# != 1 ))
     then
@@ -64,6 +70,12 @@ if [ $? -eq 0 ]; then
     exit 1
 fi
 
+expected=$(jq '[.expectedFederates[] | select(.federateType == "supercontroller") | .count] | add' conf/default/experimentConfig.json)
+if (( expected != num_shards )); then
+    echo "conf/default/experimentConfig.json expects $expected supercontroller federates but config.txt has shards: $num_shards"
+    exit 1
+fi
+
 if [ ! -d $logs_directory ]; then
     echo Creating the $logs_directory directory
     mkdir $logs_directory
@@ -84,8 +96,10 @@ curl -o /dev/null -s -X POST http://$fedmgr_host:$fedmgr_port/fedmgr --data '{"a
 
 # run the other federates
 cd $root_directory
-xterm -fg white -bg black -l -lf $logs_directory/supercontroller-${timestamp}.log -T "supercontroller" -geometry 140x40+30+60 -e "mvn exec:java -P ExecJava,supercontroller" &
-waitUntilJoined supercontroller 1
+for shard in $local_shards; do
+    xterm -fg white -bg black -l -lf $logs_directory/supercontroller-${shard}-${timestamp}.log -T "supercontroller $shard" -geometry 140x40+$((30 + 30 * shard))+60 -e "mvn exec:java -P ExecJava,supercontroller -Dsupercontroller.shard=$shard" &
+done
+waitUntilJoined supercontroller $num_shards
 
 # terminate the simulation
 read -n 1 -r -s -p "Press any key to terminate the federation execution..."
@@ -0,0 +1,24 @@
+#!/bin/bash
+# Start supercontroller shards on this machine, for a federation whose manager runs elsewhere
+# (run-default.sh with LOCAL_SHARDS on the main machine). Run from a deployment folder with the same
+# config files, and RTI.rid pointing at the main machine's RTI.
+# usage: run-shard.sh shard [shard ...]    shard = 0 .. shards:-1 from config.txt
+
+if [ $# -lt 1 ]; then
+    echo "usage: $0 shard [shard ...]"
+    exit 1
+fi
+
+root_directory=`pwd`
+logs_directory=$root_directory/logs
+timestamp=`date +"%F_%T"`
+
+if [ ! -d $logs_directory ]; then
+    echo Creating the $logs_directory directory
+    mkdir $logs_directory
+fi
+
+for shard in "$@"; do
+    xterm -fg white -bg black -l -lf $logs_directory/supercontroller-${shard}-${timestamp}.log -T "supercontroller $shard" -geometry 140x40+$((30 + 30 * shard))+60 -e "mvn exec:java -P ExecJava,supercontroller -Dsupercontroller.shard=$shard" &
+done
+wait
@@ -9,6 +9,10 @@
 #   Typically run from supercontroller.java in UCEF EP_Control. Will be run each 5min timestep
 #   For debugging, can run as python script. In folder where this is stored:
 #   See "ACCEPT INPUT PARAMETERS" section for run code line
+#   Worker mode: python3 thermostat.py -worker
+#   Stays running and reads one request per line on stdin, each line holding the same parameters as the
+#   command line. Answers with the usual output followed by a "thermostat_done" line.
+#   Used by the supercontroller python worker pool so the interpreter and scipy are only loaded once.
 
 # Import Packages ---------------------------------------------------------------
 #import time
@@ -17,6 +21,24 @@ import sys
 from scipy.stats import norm
 from configparser import ConfigParser
 
+# WORKER MODE -------------------------------------------------------------------
+# Re-runs this whole script once per request with a fresh set of globals, so results are exactly
+# the same as a separate "python3 thermostat.py ..." call. Imports are cached after the first one.
+if __name__ == '__main__' and '-worker' in sys.argv:
+	import traceback
+	with open(__file__) as scriptFile:
+		script = compile(scriptFile.read(), __file__, 'exec')
+	for request in sys.stdin:
+		sys.argv = [__file__] + request.split()
+		try:
+			exec(script, {'__name__': 'thermostat_request', '__file__': __file__})
+		except SystemExit:
+			pass
+		except Exception:
+			traceback.print_exc(file=sys.stderr)
+		print('thermostat_done', flush=True)
+	sys.exit(0)
+
 
 # IMPORTANT PARAMETERS TO CHANGE ------------------------------------------------
 
@@ -0,0 +1,25 @@
+/*
+File:           BenchmarkMain.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Entry point of benchmarks.jar. Same command line as JMH's own main, but always adds the GC profiler
+       so every result comes with allocation rate (gc.alloc.rate.norm = bytes allocated per operation).
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+}
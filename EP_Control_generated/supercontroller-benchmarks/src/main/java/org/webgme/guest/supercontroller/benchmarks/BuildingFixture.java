@@ -0,0 +1,198 @@
+/*
+File:           BuildingFixture.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: A federation of `buildings` simulated buildings for the benchmarks, with no RTI and no EnergyPlus:
+       an occupancy CSV in a temp folder (8 days, same layout as OccupancyAnnualHourly.csv), a BuildingStateStore
+       configured with a mix of modes, and one EP message per building in a reusable buffer.
+       Buildings cycle through adaptive90 / occupancy / fixed and cool / heat / auto; every building has a
+       dishwasher. Temperatures are random with a fixed seed so fuzzy control toggles both ways.
+       The step profiler is off, as in a production run. telemetry is the telemetry: setting of every building
+       (off / summary / detail); its output goes to the async file logger of log4j2.xml in this module, so
+       only TimestepBenchmark depends on it (-p telemetry=off for the others). The setpoint cache is off too
+       (it does not serve Java setpoints). -p protocol=binary sends the messages and replies as binary frames,
+       as after a HELLO (EPFrame).
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.webgme.guest.supercontroller.BuildingController;
+import org.webgme.guest.supercontroller.BuildingStateStore;
+import org.webgme.guest.supercontroller.EPFrame;
+import org.webgme.guest.supercontroller.EPVariables;
+import org.webgme.guest.supercontroller.OccupancyStore;
+import org.webgme.guest.supercontroller.PythonThermostatPool;
+import org.webgme.guest.supercontroller.SetpointCache;
+import org.webgme.guest.supercontroller.StepProfiler;
+import org.webgme.guest.supercontroller.StepTelemetry;
+import org.webgme.guest.supercontroller.ThermostatEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+@State(Scope.Benchmark)
+public class BuildingFixture {
+
+    static final int NT = 12; // timesteps per hour
+    static final int DAYS = 8;
+
+    @Param({"1", "10", "100", "1000", "10000"})
+    public int buildings;
+
+    @Param({"text"})
+    public String protocol; // text, binary
+
+    @Param({"off", "summary", "detail"})
+    public String telemetry;
+
+    public BuildingStateStore bldg;
+    public BuildingController controller;
+    public StepTelemetry stepTelemetry;
+    public EPVariables epVars;
+    public OccupancyStore occupancy;
+    public EPFrame[] frames;     // parsed message of each building
+    public ByteBuffer[] inbound; // raw message of each building, rewound before each parse
+    public ByteBuffer[] replies; // direct, like EPSocketServer's reply slots
+    public double time = 0;      // simulation time, advanced by step()
+    public long stepNumber = 0;
+    private double totalStepMs = 0;
+
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Random rnd = new Random(42);
+        dir = Files.createTempDirectory("scbench").toFile();
+        File csv = new File(dir, "occupancy.csv");
+        try (PrintWriter w = new PrintWriter(csv, "UTF-8")) {
+            w.println("Dates/Times,Probability,Random Number,Occupancy,Comfort Range");
+            for (int k = 0; k < DAYS * 24 * NT; k++) {
+                double prob = 0.05 + 0.9 * rnd.nextDouble();
+                w.println(String.format(Locale.ROOT, "t%d,%.3f,%.6f,%d,%.6f", k, prob, rnd.nextDouble(),
+                        rnd.nextDouble() < prob ? 1 : 0, ThermostatEngine.comfortRange(prob)));
+            }
+        }
+        occupancy = OccupancyStore.open(csv, 24 * NT);
+
+        epVars = new EPVariables();
+        stepTelemetry = new StepTelemetry(buildings);
+        StepTelemetry.Verbosity verbosity = StepTelemetry.Verbosity.parse(telemetry, StepTelemetry.Verbosity.OFF);
+        bldg = new BuildingStateStore(buildings);
+        frames = new EPFrame[buildings];
+        inbound = new ByteBuffer[buildings];
+        replies = new ByteBuffer[buildings];
+        String[] modes = {"adaptive90", "occupancy", "fixed"};
+        byte[] hvac = {BuildingStateStore.HVAC_COOL, BuildingStateStore.HVAC_HEAT, BuildingStateStore.HVAC_AUTO};
+        for (int i = 0; i < buildings; i++) {
+            stepTelemetry.configure(i, verbosity, 1);
+            bldg.modeText[i] = modes[i % modes.length];
+            bldg.mode[i] = BuildingStateStore.parseMode(bldg.modeText[i]);
+            bldg.engineMode[i] = ThermostatEngine.Mode.parse(bldg.modeText[i]);
+            bldg.hvac[i] = hvac[(i / modes.length) % hvac.length];
+            bldg.source[i] = BuildingStateStore.SOURCE_JAVA;
+            bldg.hasDishwasher[i] = true;
+            bldg.occupancy[i] = occupancy;
+            bldg.outdoorTemp[i] = 40 * rnd.nextDouble();
+            bldg.indoorTemp[i] = 17 + 12 * rnd.nextDouble();
+
+            frames[i] = new EPFrame(epVars);
+            if (protocol.equals("binary")) {
+                frames[i].parse(ByteBuffer.wrap(hello()));
+                frames[i].useBinary();
+                inbound[i] = binaryMessage(rnd, bldg.outdoorTemp[i], bldg.indoorTemp[i]);
+            }
+            else {
+                inbound[i] = ByteBuffer.wrap(message(rnd, bldg.outdoorTemp[i], bldg.indoorTemp[i]));
+            }
+            frames[i].parse(inbound[i]);
+            replies[i] = ByteBuffer.allocateDirect(256);
+        }
+        controller = new BuildingController(bldg, NT, epVars, stepTelemetry,
+                new StepProfiler(new String[buildings], 0, 0, null), new SetpointCache(0, 0), "thermostat.py",
+                new HashMap<String, PythonThermostatPool>());
+        nextStep();
+        for (int i = 0; i < buildings; i++) {
+            controller.step(i, frames[i]); // setpoints for the encoder benchmark
+        }
+    }
+
+    // What EP sends each timestep, all the variables of EPVariables
+    private byte[] message(Random rnd, double outdoor, double indoor) {
+        StringBuilder sb = new StringBuilder("SET\r\n300\r\n");
+        for (int id = 0; id < epVars.count(); id++) {
+            double v = (id == EPVariables.OUTDOOR_AIR_TEMP) ? outdoor
+                     : (id == EPVariables.ZONE_MEAN_AIR_TEMP) ? indoor
+                     : 1000 * rnd.nextDouble();
+            sb.append(epVars.name(id)).append("\r\n").append(v).append("\r\n");
+        }
+        return sb.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // HELLO asking for the binary protocol, EPVariables IDs as the variable numbers
+    private byte[] hello() {
+        StringBuilder sb = new StringBuilder("HELLO\r\n" + EPFrame.BINARY_VERSION + "\r\n");
+        for (int id = 0; id < epVars.count(); id++) {
+            sb.append(epVars.name(id)).append("\r\n").append(id).append("\r\n");
+        }
+        return sb.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // message() as a binary frame
+    private ByteBuffer binaryMessage(Random rnd, double outdoor, double indoor) {
+        int n = epVars.count();
+        ByteBuffer b = ByteBuffer.allocate(4 + 1 + 8 + 2 + 10 * n);
+        b.putInt(b.capacity() - 4).put(EPFrame.KIND_SET).putDouble(300).putShort((short) n);
+        for (int id = 0; id < n; id++) {
+            double v = (id == EPVariables.OUTDOOR_AIR_TEMP) ? outdoor
+                     : (id == EPVariables.ZONE_MEAN_AIR_TEMP) ? indoor
+                     : 1000 * rnd.nextDouble();
+            b.putShort((short) id).putDouble(v);
+        }
+        b.flip();
+        return b;
+    }
+
+    /** Once-per-step bookkeeping, as supercontroller does before the first building */
+    public void nextStep() {
+        stepTelemetry.beginStep(++stepNumber);
+        if (stepTelemetry.detail()) stepTelemetry.log().debug("Timestep = {}", time);
+        controller.beginStep(time);
+        time += 1;
+    }
+
+    /** The summary line supercontroller logs after the last building of the step */
+    public void endStep(double stepMs) {
+        totalStepMs += stepMs;
+        stepTelemetry.summary(time, buildings, stepMs, totalStepMs / stepNumber, bldg.indoorTemp, bldg.outdoorTemp,
+                bldg.setDishwasher);
+    }
+
+    /** Parse building i's message again, as if it had just arrived */
+    public EPFrame receive(int i) {
+        inbound[i].rewind();
+        frames[i].reset();
+        frames[i].parse(inbound[i]);
+        return frames[i];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) f.delete();
+        }
+        dir.delete();
+    }
+}
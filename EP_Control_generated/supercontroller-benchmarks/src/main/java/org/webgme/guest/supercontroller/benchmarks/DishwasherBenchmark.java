@@ -0,0 +1,36 @@
+/*
+File:           DishwasherBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: One step of the dishwasher scheduler for every building, after the once-per-step bookkeeping
+       (BuildingController.beginStep), so runs start, finish and days roll over as in a simulation.
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DishwasherBenchmark {
+
+    @Benchmark
+    public void dishwasher(BuildingFixture f, Blackhole bh) {
+        f.nextStep();
+        for (int i = 0; i < f.buildings; i++) {
+            f.controller.dishwasher(i, f.controller.occupancyRow(i), false);
+        }
+        bh.consume(f.bldg.setDishwasher[f.buildings - 1]);
+    }
+}
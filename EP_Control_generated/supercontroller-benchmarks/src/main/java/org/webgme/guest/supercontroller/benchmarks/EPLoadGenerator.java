@@ -0,0 +1,614 @@
+/*
+File:           EPLoadGenerator.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Stand-in for N EnergyPlus simulations, to load-test a running supercontroller without EnergyPlus.
+       Building i connects to port+i, like EP. Every step it sends the same text frame EP sends:
+           SET / time / epSend... name / value ... / blank line
+       It then waits for the SET reply and applies epGetStartCooling / epGetStartHeating to its thermal model.
+       Thermal model: one room, 1R1C (resistance R to outdoors, heat capacity C), integrated exactly over
+       the step. The outdoor temperature follows a daily sine. An ideal thermostat adds heating or cooling,
+       limited to the building's HVAC power, to keep the room inside [heating setpoint, cooling setpoint].
+       R, C, HVAC power and climate are random per building, from --seed.
+       BATCH replies (batch_steps: in config_<bldg>.txt) are followed like EP would: the building applies the
+       batch's setpoints one step at a time without sending, and reports again when the batch is used up or
+       its zone or outdoor temperature leaves the batch's band. --timestep must match timesteps_per_hour:.
+       One thread and one Selector drive all connections, so thousands of buildings fit on one box.
+       Raise the open file limit first (ulimit -n), since each building uses one socket.
+       --join single connects every building to --port itself, in random order, and names it with a JOIN
+       (join_mode: single in config.txt). --names gives the names: a comma separated list in building_names:
+       order, or a pattern like bldg%d for bldg0, bldg1, ...
+       --protocol binary opens each connection with a HELLO and, if the controller accepts (binary_protocol:),
+       sends and receives the binary frames of EPFrame / EPReplyEncoder instead of text.
+       Reports steps/second, percentiles of the step latency (first frame sent to last reply received)
+       and of each building's round trip, bytes per building-step and this generator's CPU time.
+Usage:
+       java -cp target/benchmarks.jar org.webgme.guest.supercontroller.benchmarks.EPLoadGenerator
+           [--host 127.0.0.1] [--port 6789] [--buildings 100] [--steps 288] [--warmup 12]
+           [--timestep 300] [--seed 1] [--connect-timeout 120] [--protocol text|binary]
+           [--join ports|single] [--names bldg%d]
+       Set setNumSims.txt to the same number of buildings, and start the federation first.
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.webgme.guest.supercontroller.AsciiDecimal;
+import org.webgme.guest.supercontroller.EPFrame;
+import org.webgme.guest.supercontroller.EPVariables;
+import org.webgme.guest.supercontroller.LatencyHistogram;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.SplittableRandom;
+
+public class EPLoadGenerator {
+
+    private static final byte[] CRLF = bytes("\r\n");
+    private static final byte[] SET = bytes("SET\r\n");
+    private static final byte[] TERMINATE = bytes("TERMINATE\r\n");
+    private static final byte[] HELLO = bytes("HELLO\r\n");
+
+    // Options
+    private String host = "127.0.0.1";
+    private int port = 6789;
+    private int n = 100;
+    private int steps = 288;
+    private int warmup = 12;
+    private int timestep = 300; // s
+    private long seed = 1;
+    private int connectTimeout = 120; // s
+    private boolean binary = false; // ask for the binary protocol
+    private boolean joinSingle = false; // one port, JOIN with the building name
+    private String names = "bldg%d";
+
+    // Variables EP sends
+    private final EPVariables vars = new EPVariables();
+    private byte[][] sendNames;
+
+    // Per building: connection, buffers, thermal model
+    private SocketChannel[] channels;
+    private boolean[] binaryLink; // controller accepted the binary protocol
+    private long bytesSent, bytesReceived;
+    private ByteBuffer[] out, in;
+    private Reply[] replies;
+    private boolean[] replied;
+    private int[] batchPos; // next value of the last BATCH reply to apply, == its steps when used up
+    private long[] sentAt;
+    private double[] tin, r, c, pHeat, pCool, outMean, outAmp, humidity, floorArea;
+    private double[] heatSp, coolSp, heatEnergy, coolEnergy;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        EPLoadGenerator g = new EPLoadGenerator();
+        for (int k = 0; k + 1 < args.length; k += 2) {
+            String v = args[k + 1];
+            switch (args[k]) {
+                case "--host": g.host = v; break;
+                case "--port": g.port = Integer.parseInt(v); break;
+                case "--buildings": g.n = Integer.parseInt(v); break;
+                case "--steps": g.steps = Integer.parseInt(v); break;
+                case "--warmup": g.warmup = Integer.parseInt(v); break;
+                case "--timestep": g.timestep = Integer.parseInt(v); break;
+                case "--seed": g.seed = Long.parseLong(v); break;
+                case "--connect-timeout": g.connectTimeout = Integer.parseInt(v); break;
+                case "--protocol": g.binary = v.equals("binary"); break;
+                case "--join": g.joinSingle = v.equals("single"); break;
+                case "--names": g.names = v; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[k]);
+            }
+        }
+        g.run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        setUpModels();
+        Selector selector = Selector.open();
+        connect(selector);
+
+        LatencyHistogram stepLatency = new LatencyHistogram();
+        LatencyHistogram roundTrip = new LatencyHistogram();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long measuredStart = 0, cpuStart = 0;
+        long quietSteps = 0;
+        for (int step = 0; step < steps; step++) {
+            if (step == warmup) {
+                stepLatency.reset();
+                roundTrip.reset();
+                quietSteps = 0;
+                bytesSent = 0;
+                bytesReceived = 0;
+                measuredStart = System.nanoTime();
+                cpuStart = threads.getCurrentThreadCpuTime();
+            }
+            long t0 = System.nanoTime();
+            long simTime = (long) (step + 1) * timestep;
+            int remaining = 0;
+            for (int i = 0; i < n; i++) {
+                if (step > 0) advance(i, simTime - timestep);
+                Reply r = replies[i];
+                if (batchPos[i] < r.steps && insideBand(i, r, simTime)) {
+                    // next setpoints of the batch, nothing to send
+                    heatSp[i] = r.heat[batchPos[i]];
+                    coolSp[i] = r.cool[batchPos[i]];
+                    batchPos[i]++;
+                    quietSteps++;
+                    continue;
+                }
+                encodeFrame(i, simTime);
+                replied[i] = false;
+                sentAt[i] = System.nanoTime();
+                write(selector, i);
+                remaining++;
+            }
+            while (remaining > 0) {
+                selector.select();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    int i = (Integer) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        write(selector, i);
+                    }
+                    if (key.isValid() && key.isReadable() && read(i)) {
+                        roundTrip.record(System.nanoTime() - sentAt[i]);
+                        remaining--;
+                    }
+                }
+            }
+            stepLatency.record(System.nanoTime() - t0);
+            if ((step + 1) % Math.max(1, steps / 10) == 0) {
+                System.out.println(String.format("step %d/%d  mean indoor %.2f C  step latency %s",
+                        step + 1, steps, mean(tin), stepLatency.summary()));
+            }
+        }
+        double seconds = (System.nanoTime() - measuredStart) / 1e9;
+        double cpuSeconds = (threads.getCurrentThreadCpuTime() - cpuStart) / 1e9;
+        int measured = steps - Math.min(warmup, steps);
+        double frames = Math.max(1, roundTrip.count());
+
+        for (int i = 0; i < n; i++) {
+            out[i].clear();
+            if (binaryLink[i]) {
+                out[i].putInt(11).put(EPFrame.KIND_TERMINATE).putDouble((steps + 1) * (double) timestep).putShort((short) 0).flip();
+            }
+            else {
+                out[i].put(TERMINATE);
+                AsciiDecimal.put(out[i], (long) (steps + 1) * timestep);
+                out[i].put(CRLF).put(CRLF).flip();
+            }
+            while (out[i].hasRemaining() && channels[i].write(out[i]) >= 0) { /* spin, sockets are nearly idle */ }
+            channels[i].close();
+        }
+        selector.close();
+
+        System.out.println();
+        System.out.println(String.format("%d buildings, %d steps measured (%d warmup) in %.2f s", n, measured, Math.min(warmup, steps), seconds));
+        System.out.println(String.format("throughput: %.1f steps/s, %.0f building-steps/s", measured / seconds, measured * (double) n / seconds));
+        System.out.println("step latency:       " + stepLatency.summary());
+        System.out.println("building round trip: " + roundTrip.summary());
+        System.out.println(String.format("round trips: %d, building-steps covered by batches: %d (%.1f%%)",
+                roundTrip.count(), quietSteps, 100.0 * quietSteps / Math.max(1, roundTrip.count() + quietSteps)));
+        System.out.println(String.format("protocol: %s, bytes per round trip: %.0f sent, %.0f received; generator CPU %.2f us per round trip",
+                binary ? "binary, accepted by " + count(binaryLink) + " buildings" : "text", bytesSent / frames, bytesReceived / frames, 1e6 * cpuSeconds / frames));
+        System.out.println(String.format("final indoor temperature: mean %.2f C, setpoints: heat %.2f C, cool %.2f C (means)",
+                mean(tin), mean(heatSp), mean(coolSp)));
+    }
+
+    private void setUpModels() {
+        sendNames = new byte[vars.count()][];
+        for (int id = 0; id < sendNames.length; id++) {
+            sendNames[id] = bytes(vars.name(id));
+        }
+
+        SplittableRandom rnd = new SplittableRandom(seed);
+        channels = new SocketChannel[n];
+        binaryLink = new boolean[n];
+        out = new ByteBuffer[n];
+        in = new ByteBuffer[n];
+        replies = new Reply[n];
+        replied = new boolean[n];
+        batchPos = new int[n];
+        sentAt = new long[n];
+        tin = new double[n];
+        r = new double[n];
+        c = new double[n];
+        pHeat = new double[n];
+        pCool = new double[n];
+        outMean = new double[n];
+        outAmp = new double[n];
+        humidity = new double[n];
+        floorArea = new double[n];
+        heatSp = new double[n];
+        coolSp = new double[n];
+        heatEnergy = new double[n];
+        coolEnergy = new double[n];
+        for (int i = 0; i < n; i++) {
+            out[i] = ByteBuffer.allocateDirect(1024);
+            in[i] = ByteBuffer.allocate(1024);
+            replies[i] = new Reply();
+            floorArea[i] = 100 + 200 * rnd.nextDouble();                  // m2
+            r[i] = 0.002 + 0.004 * rnd.nextDouble();                      // K/W
+            c[i] = floorArea[i] * (1.5e5 + 1.5e5 * rnd.nextDouble());     // J/K, time constant ~ 1-5 h
+            pHeat[i] = floorArea[i] * (40 + 40 * rnd.nextDouble());       // W
+            pCool[i] = floorArea[i] * (40 + 40 * rnd.nextDouble());       // W
+            outMean[i] = 5 + 25 * rnd.nextDouble();                       // C
+            outAmp[i] = 3 + 7 * rnd.nextDouble();                         // C
+            humidity[i] = 30 + 40 * rnd.nextDouble();                     // %
+            tin[i] = 18 + 6 * rnd.nextDouble();
+            heatSp[i] = 20;
+            coolSp[i] = 24;
+        }
+    }
+
+    private void connect(Selector selector) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + connectTimeout * 1000L;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        if (joinSingle) { // any order: shuffle
+            SplittableRandom rnd = new SplittableRandom(seed);
+            for (int k = n - 1; k > 0; k--) {
+                int j = rnd.nextInt(k + 1), t = order[k];
+                order[k] = order[j];
+                order[j] = t;
+            }
+        }
+        long t0 = System.nanoTime();
+        for (int i : order) {
+            InetSocketAddress addr = new InetSocketAddress(host, joinSingle ? port : port + i);
+            while (true) {
+                SocketChannel ch = SocketChannel.open();
+                try {
+                    ch.connect(addr);
+                    channels[i] = ch;
+                    break;
+                }
+                catch (ConnectException e) { // controller not listening yet
+                    ch.close();
+                    if (System.currentTimeMillis() > deadline) throw e;
+                    Thread.sleep(200);
+                }
+            }
+            channels[i].setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        if (joinSingle) {
+            join(order);
+        }
+        if (binary) {
+            hello();
+        }
+        for (int i = 0; i < n; i++) {
+            channels[i].configureBlocking(false);
+            channels[i].register(selector, SelectionKey.OP_READ, i);
+        }
+        System.out.println("Connected " + n + " buildings to " + host + ":" + port + (joinSingle ? " (JOIN)" : "-" + (port + n - 1))
+                + String.format(" in %.2f s", (System.nanoTime() - t0) / 1e9)
+                + (binary ? ", " + count(binaryLink) + " on the binary protocol" : ""));
+    }
+
+    // Name every building on the join port, then wait for the answers
+    private void join(int[] order) throws IOException {
+        String[] list = names.contains("%d") ? null : names.split(",");
+        if (list != null && list.length < n) throw new IllegalArgumentException("--names lists " + list.length + " of " + n + " buildings");
+        for (int i : order) {
+            String name = (list != null) ? list[i].trim() : String.format(names, i);
+            ByteBuffer b = ByteBuffer.wrap(bytes("JOIN\r\n" + name + "\r\n\r\n"));
+            while (b.hasRemaining()) channels[i].write(b);
+        }
+        for (int i : order) {
+            String[] lines = answer(i);
+            if (!lines[0].equals("JOIN")) {
+                throw new IOException("Building " + i + " was not admitted: " + String.join(" ", lines));
+            }
+        }
+    }
+
+    // One text answer (lines up to a blank line) on a still blocking connection
+    private String[] answer(int i) throws IOException {
+        ByteBuffer b = in[i];
+        int blank = -1;
+        while (blank < 0) {
+            if (channels[i].read(b) < 0) throw new IOException("Controller closed the connection of building " + i);
+            for (int k = 3; k < b.position() && blank < 0; k++) {
+                if (b.get(k - 3) == '\r' && b.get(k - 2) == '\n' && b.get(k - 1) == '\r' && b.get(k) == '\n') blank = k + 1;
+            }
+        }
+        String[] lines = new String(b.array(), 0, blank, StandardCharsets.ISO_8859_1).split("\r\n");
+        b.clear();
+        return lines;
+    }
+
+    // Ask for the binary protocol on every (still blocking) connection: HELLO with our variable numbers,
+    // then wait for each answer before sending anything else
+    private void hello() throws IOException {
+        for (int i = 0; i < n; i++) {
+            ByteBuffer b = out[i];
+            b.clear();
+            b.put(HELLO);
+            AsciiDecimal.put(b, (long) EPFrame.BINARY_VERSION);
+            b.put(CRLF);
+            for (int id = 0; id < sendNames.length; id++) {
+                b.put(sendNames[id]).put(CRLF);
+                AsciiDecimal.put(b, (long) id);
+                b.put(CRLF);
+            }
+            b.put(CRLF).flip();
+            while (b.hasRemaining()) channels[i].write(b);
+        }
+        for (int i = 0; i < n; i++) {
+            String[] lines = answer(i); // HELLO / version / blank line
+            binaryLink[i] = lines.length > 1 && Integer.parseInt(lines[1].trim()) == EPFrame.BINARY_VERSION;
+        }
+    }
+
+    private static int count(boolean[] a) {
+        int c = 0;
+        for (boolean v : a) if (v) c++;
+        return c;
+    }
+
+    // Outdoor temperature at simulation time t [s]: daily sine, coldest at 4 am
+    private double outdoor(int i, long t) {
+        return outMean[i] - outAmp[i] * Math.cos(2 * Math.PI * ((t % 86400) - 4 * 3600) / 86400.0);
+    }
+
+    // Advance building i's room by one step with its current setpoints
+    private void advance(int i, long t) {
+        double dt = timestep;
+        double tout = outdoor(i, t);
+        double decay = Math.exp(-dt / (r[i] * c[i]));
+        double free = tout + (tin[i] - tout) * decay; // no HVAC
+        // Constant power q [W, + heating, - cooling] over the step shifts the steady state by q*R,
+        // so it moves the end temperature by q*R*(1-decay). Use just enough to reach the setpoint.
+        double gain = r[i] * (1 - decay);
+        double q = 0;
+        if (free < heatSp[i]) {
+            q = Math.min(pHeat[i], (heatSp[i] - free) / gain);
+        }
+        else if (free > coolSp[i]) {
+            q = -Math.min(pCool[i], (free - coolSp[i]) / gain);
+        }
+        tin[i] = free + q * gain;
+        heatEnergy[i] = Math.max(q, 0) * dt;
+        coolEnergy[i] = Math.max(-q, 0) * dt;
+    }
+
+    // Batch still valid: zone and outdoor temperature inside the band sent with it
+    private boolean insideBand(int i, Reply r, long simTime) {
+        double tout = outdoor(i, simTime);
+        return tin[i] > r.indoorLow && tin[i] < r.indoorHigh && tout > r.outdoorLow && tout < r.outdoorHigh;
+    }
+
+    private void encodeFrame(int i, long simTime) {
+        ByteBuffer b = out[i];
+        b.clear();
+        boolean bin = binaryLink[i];
+        int countAt = 0, count = 0;
+        if (bin) {
+            b.putInt(0); // length, filled in below
+            b.put(EPFrame.KIND_SET);
+            b.putDouble(simTime);
+            countAt = b.position();
+            b.putShort((short) 0);
+        }
+        else {
+            b.put(SET);
+            AsciiDecimal.put(b, simTime);
+            b.put(CRLF);
+        }
+        double solar = Math.max(0, 800 * Math.sin(2 * Math.PI * ((simTime % 86400) - 6 * 3600) / 86400.0));
+        double net = (heatEnergy[i] + coolEnergy[i]) / 3.6e6; // kWh
+        for (int id = 0; id < sendNames.length; id++) {
+            double v;
+            switch (id) {
+                case EPVariables.OUTDOOR_AIR_TEMP: v = outdoor(i, simTime); break;
+                case EPVariables.ZONE_MEAN_AIR_TEMP: v = tin[i]; break;
+                case EPVariables.ZONE_HUMIDITY: v = humidity[i]; break;
+                case EPVariables.HEATING_ENERGY: v = heatEnergy[i]; break;
+                case EPVariables.COOLING_ENERGY: v = coolEnergy[i]; break;
+                case EPVariables.NET_ENERGY: v = net; break;
+                case EPVariables.ENERGY_PURCHASED: v = net; break;
+                case EPVariables.ENERGY_SURPLUS: v = 0; break;
+                case EPVariables.DAY_OF_WEEK: v = (simTime / 86400) % 7 + 1; break;
+                case EPVariables.SOLAR_RADIATION: v = solar; break;
+                case EPVariables.HEATING_SETPOINT: v = heatSp[i]; break;
+                case EPVariables.COOLING_SETPOINT: v = coolSp[i]; break;
+                default: continue;
+            }
+            if (bin) {
+                b.putShort((short) id);
+                b.putDouble(v);
+                count++;
+                continue;
+            }
+            b.put(sendNames[id]).put(CRLF);
+            AsciiDecimal.put(b, v);
+            b.put(CRLF);
+        }
+        if (bin) {
+            b.putShort(countAt, (short) count);
+            b.putInt(0, b.position() - 4);
+        }
+        else {
+            b.put(CRLF);
+        }
+        b.flip();
+    }
+
+    private void write(Selector selector, int i) throws IOException {
+        bytesSent += channels[i].write(out[i]);
+        SelectionKey key = channels[i].keyFor(selector);
+        key.interestOps(out[i].hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    // Read what has arrived for building i. True when its reply for this step is complete.
+    private boolean read(int i) throws IOException {
+        ByteBuffer b = in[i];
+        int got = channels[i].read(b);
+        if (got < 0) {
+            throw new IOException("Controller closed the connection of building " + i);
+        }
+        bytesReceived += got;
+        b.flip();
+        Reply r = replies[i];
+        boolean done = !replied[i] && (binaryLink[i] ? r.parseBinary(b) : r.parse(b));
+        b.compact();
+        if (!done && b.position() == b.capacity()) { // a binary BATCH bigger than the buffer
+            ByteBuffer bigger = ByteBuffer.allocate(b.capacity() * 2);
+            b.flip();
+            in[i] = bigger.put(b);
+        }
+        if (!done) return false;
+        replied[i] = true;
+        if (r.hasHeat) heatSp[i] = r.heat[0];
+        if (r.hasCool) coolSp[i] = r.cool[0];
+        batchPos[i] = 1; // SET: steps = 1, nothing left
+        r.reset();
+        return true;
+    }
+
+    /** The controller's reply, SET or BATCH, parsed as bytes arrive. Setpoint lists are comma separated. */
+    private static final class Reply {
+        private static final byte[][] NAMES = {bytes("epGetStartCooling"), bytes("epGetStartHeating"), bytes("batchSteps"),
+                bytes("indoorLow"), bytes("indoorHigh"), bytes("outdoorLow"), bytes("outdoorHigh")};
+        private static final int COOL = 0, HEAT = 1, STEPS = 2, IN_LOW = 3, IN_HIGH = 4, OUT_LOW = 5, OUT_HIGH = 6;
+
+        // Last complete reply. A SET reply is a batch of 1 with an unlimited band
+        int steps = 0;
+        boolean hasCool, hasHeat;
+        double[] cool = new double[1], heat = new double[1];
+        double indoorLow, indoorHigh, outdoorLow, outdoorHigh;
+
+        private byte[] line = new byte[256];
+        private int len = 0;
+        private int lineNo = 0;
+        private int name = -1;
+        private boolean cr = false;
+
+        boolean parse(ByteBuffer b) {
+            while (b.hasRemaining()) {
+                byte c = b.get();
+                if (cr) {
+                    cr = false;
+                    if (c == '\n') continue;
+                }
+                if (c == '\r' || c == '\n') {
+                    cr = c == '\r';
+                    if (endLine()) return true;
+                }
+                else {
+                    if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                    line[len++] = c;
+                }
+            }
+            return false;
+        }
+
+        // A whole binary SET or BATCH, if it has arrived
+        boolean parseBinary(ByteBuffer b) {
+            if (b.remaining() < 4 || b.remaining() - 4 < b.getInt(b.position())) return false;
+            b.getInt();
+            byte kind = b.get();
+            b.getDouble(); // time
+            indoorLow = outdoorLow = Double.NEGATIVE_INFINITY;
+            indoorHigh = outdoorHigh = Double.POSITIVE_INFINITY;
+            hasCool = hasHeat = true;
+            if (kind == EPFrame.KIND_BATCH) {
+                steps = b.getShort() & 0xFFFF;
+                indoorLow = b.getDouble();
+                indoorHigh = b.getDouble();
+                outdoorLow = b.getDouble();
+                outdoorHigh = b.getDouble();
+                if (cool.length < steps) cool = new double[steps];
+                if (heat.length < steps) heat = new double[steps];
+                for (int k = 0; k < steps; k++) cool[k] = b.getDouble();
+                for (int k = 0; k < steps; k++) heat[k] = b.getDouble();
+                b.position(b.position() + steps); // dishwasher
+            }
+            else {
+                steps = 1;
+                cool[0] = b.getDouble();
+                heat[0] = b.getDouble();
+                b.get(); // dishwasher
+            }
+            return true;
+        }
+
+        // True at the blank line ending the reply
+        private boolean endLine() {
+            int l = len;
+            len = 0;
+            if (lineNo == 0) {
+                steps = 1;
+                hasCool = hasHeat = false;
+                indoorLow = outdoorLow = Double.NEGATIVE_INFINITY;
+                indoorHigh = outdoorHigh = Double.POSITIVE_INFINITY;
+            }
+            lineNo++;
+            if (lineNo <= 2) return false; // header, time
+            if (lineNo % 2 == 1) { // name
+                if (l == 0) return true;
+                name = -1;
+                for (int k = 0; k < NAMES.length; k++) {
+                    if (lineIs(NAMES[k], l)) name = k;
+                }
+                return false;
+            }
+            switch (name) {
+                case COOL: hasCool = true; cool = list(l, cool); break;
+                case HEAT: hasHeat = true; heat = list(l, heat); break;
+                case STEPS: steps = (int) AsciiDecimal.parseDouble(line, 0, l); break;
+                case IN_LOW: indoorLow = AsciiDecimal.parseDouble(line, 0, l); break;
+                case IN_HIGH: indoorHigh = AsciiDecimal.parseDouble(line, 0, l); break;
+                case OUT_LOW: outdoorLow = AsciiDecimal.parseDouble(line, 0, l); break;
+                case OUT_HIGH: outdoorHigh = AsciiDecimal.parseDouble(line, 0, l); break;
+                default: break;
+            }
+            return false;
+        }
+
+        private boolean lineIs(byte[] s, int l) {
+            if (l != s.length) return false;
+            for (int k = 0; k < l; k++) {
+                if (line[k] != s[k]) return false;
+            }
+            return true;
+        }
+
+        private double[] list(int l, double[] into) {
+            double[] a = (into.length < steps) ? new double[steps] : into;
+            int k = 0, start = 0;
+            for (int p = 0; p <= l && k < a.length; p++) {
+                if (p == l || line[p] == ',') {
+                    a[k++] = AsciiDecimal.parseDouble(line, start, p - start);
+                    start = p + 1;
+                }
+            }
+            return a;
+        }
+
+        void reset() {
+            lineNo = 0;
+            len = 0;
+        }
+    }
+
+    private static double mean(double[] a) {
+        double s = 0;
+        for (double v : a) s += v;
+        return a.length == 0 ? 0 : s / a.length;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+File:           FrameParseBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Decoding one EP message per building (EPFrame.parse), all 12 EPVariables per message.
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParseBenchmark {
+
+    @Benchmark
+    public void parse(BuildingFixture f, Blackhole bh) {
+        for (int i = 0; i < f.buildings; i++) {
+            bh.consume(f.receive(i).valueAt(0));
+        }
+    }
+}
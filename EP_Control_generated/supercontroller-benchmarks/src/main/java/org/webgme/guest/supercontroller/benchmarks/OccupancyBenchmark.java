@@ -0,0 +1,40 @@
+/*
+File:           OccupancyBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: The occupancy lookups of one step for every building: status of the current row, probability and
+       comfort range of the current hour, from the memory-mapped OccupancyStore.
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.webgme.guest.supercontroller.OccupancyStore;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OccupancyBenchmark {
+
+    @Benchmark
+    public void lookup(BuildingFixture f, Blackhole bh) {
+        for (int i = 0; i < f.buildings; i++) {
+            OccupancyStore occ = f.bldg.occupancy[i];
+            int row = f.controller.occupancyRow(i);
+            int hour = row / BuildingFixture.NT;
+            bh.consume(occ.status(row));
+            bh.consume(occ.prob(hour));
+            bh.consume(occ.comfortRange(hour));
+        }
+    }
+}
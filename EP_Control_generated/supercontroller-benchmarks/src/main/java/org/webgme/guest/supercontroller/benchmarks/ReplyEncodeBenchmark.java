@@ -0,0 +1,37 @@
+/*
+File:           ReplyEncodeBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Encoding every building's SET reply into its direct buffer (BuildingController.encodeReply).
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyEncodeBenchmark {
+
+    @Benchmark
+    public void encode(BuildingFixture f, Blackhole bh) {
+        for (int i = 0; i < f.buildings; i++) {
+            ByteBuffer out = f.replies[i];
+            out.clear();
+            f.controller.encodeReply(i, f.frames[i], out);
+            bh.consume(out.position());
+        }
+    }
+}
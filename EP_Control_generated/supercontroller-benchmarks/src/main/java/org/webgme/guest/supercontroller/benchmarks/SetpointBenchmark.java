@@ -0,0 +1,48 @@
+/*
+File:           SetpointBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Java setpoints of every building for one step: adaptive comfort temperature, occupancy comfort band,
+       fuzzy control and heat/cool shutoff (BuildingController.javaSetpoints), building by building and as one
+       SetpointKernel pass over all of them (setpoint_kernel: batch), up to a fleet of 10000 buildings.
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.webgme.guest.supercontroller.SetpointKernel;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetpointBenchmark {
+
+    @Benchmark
+    public void javaSetpoints(BuildingFixture f, Blackhole bh) {
+        for (int i = 0; i < f.buildings; i++) {
+            f.controller.javaSetpoints(i, f.controller.occupancyRow(i) / BuildingFixture.NT, false);
+        }
+        bh.consume(f.bldg.setCool[f.buildings - 1]);
+    }
+
+    @Benchmark
+    public void kernel(BuildingFixture f, Blackhole bh) {
+        SetpointKernel k = f.controller.kernel();
+        k.begin(f.controller.timeLoop());
+        for (int i = 0; i < f.buildings; i++) {
+            k.add(i);
+        }
+        k.run();
+        bh.consume(f.bldg.setCool[f.buildings - 1]);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+File:           TimestepBenchmark.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: One full simulated timestep, everything supercontroller does per step except the sockets and the
+       HLA time advance: step bookkeeping, then for each building parse its message, compute setpoints and
+       the dishwasher schedule, and encode the reply, then the step summary line. With -p telemetry=off,
+       summary, detail this is the time per step with logging off and on (telemetry: in config.txt).
+*/
+
+package org.webgme.guest.supercontroller.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.webgme.guest.supercontroller.EPFrame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimestepBenchmark {
+
+    @Benchmark
+    public void timestep(BuildingFixture f, Blackhole bh) {
+        long stepStart = System.nanoTime();
+        f.nextStep();
+        for (int i = 0; i < f.buildings; i++) {
+            EPFrame frame = f.receive(i);
+            f.controller.step(i, frame);
+            ByteBuffer out = f.replies[i];
+            out.clear();
+            f.controller.encodeReply(i, frame, out);
+            bh.consume(out.position());
+        }
+        f.endStep((System.nanoTime() - stepStart) / 1e6);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+File:           AsciiDecimal.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Decimal text <-> double straight from/to byte buffers, for the EP socket protocol, without building Strings.
+       Parsing gives exactly the same double as Double.parseDouble:
+           - up to 15 digits and |exponent| <= 22: one correctly rounded multiply/divide (Clinger's fast path)
+           - up to 18 digits and exponent down to -27: exact long division by 5^k with round-half-even
+           - anything else (NaN, Infinity, huge exponents, > 18 digits): falls back to Double.parseDouble
+       Formatting writes plain decimal text that parses back to exactly the same double (shortest that the
+       fast path finds, else 17 correctly rounded digits). Only NaN, Infinity and numbers outside
+       [1e-5, 1e15) go through Double.toString.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class AsciiDecimal {
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long[] LPOW10 = new long[19];
+    private static final long[] POW5 = new long[28];
+    static {
+        POW5[0] = 1;
+        for (int k = 1; k < POW5.length; k++) POW5[k] = POW5[k - 1] * 5;
+        LPOW10[0] = 1;
+        for (int k = 1; k < LPOW10.length; k++) LPOW10[k] = LPOW10[k - 1] * 10;
+    }
+
+    private AsciiDecimal() {}
+
+    /** Parse the ASCII number in buf[off, off+len). Throws NumberFormatException like Double.parseDouble. */
+    public static double parseDouble(byte[] buf, int off, int len) {
+        int p = off;
+        int end = off + len;
+        // trim like String.trim()
+        while (p < end && buf[p] <= ' ') p++;
+        while (end > p && buf[end - 1] <= ' ') end--;
+        int start = p;
+        boolean neg = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            neg = buf[p] == '-';
+            p++;
+        }
+        long mant = 0;
+        int digits = 0;      // significant digits in mant
+        int exp10 = 0;
+        boolean anyDigit = false;
+        boolean dot = false;
+        for (; p < end; p++) {
+            int c = buf[p];
+            if (c >= '0' && c <= '9') {
+                anyDigit = true;
+                if (digits == 0 && c == '0') { // leading zeros are not significant
+                    if (dot) exp10--;
+                    continue;
+                }
+                if (digits >= 18) return slow(buf, start, end); // would overflow exact long math
+                mant = mant * 10 + (c - '0');
+                digits++;
+                if (dot) exp10--;
+            }
+            else if (c == '.' && !dot) {
+                dot = true;
+            }
+            else {
+                break;
+            }
+        }
+        if (!anyDigit) return slow(buf, start, end);
+        if (p < end) {
+            int c = buf[p];
+            if (c != 'e' && c != 'E') return slow(buf, start, end);
+            p++;
+            boolean eneg = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                eneg = buf[p] == '-';
+                p++;
+            }
+            if (p >= end) return slow(buf, start, end);
+            int e = 0;
+            for (; p < end; p++) {
+                c = buf[p];
+                if (c < '0' || c > '9' || e > 10000) return slow(buf, start, end);
+                e = e * 10 + (c - '0');
+            }
+            exp10 += eneg ? -e : e;
+        }
+        double v;
+        if (mant == 0) {
+            v = 0.0;
+        }
+        else if (digits <= 15 && exp10 >= -22 && exp10 <= 22) {
+            // mant < 2^53 and 10^|exp10| are exact doubles, so one rounding: correctly rounded
+            v = (exp10 >= 0) ? mant * POW10[exp10] : mant / POW10[-exp10];
+        }
+        else if (exp10 < 0 && exp10 >= -27) {
+            v = divideByPow10(mant, -exp10);
+        }
+        else {
+            return slow(buf, start, end);
+        }
+        return neg ? -v : v;
+    }
+
+    // mant / 10^k = mant / 5^k * 2^-k, quotient bits by long division, rounded half-even to 53 bits
+    private static double divideByPow10(long mant, int k) {
+        long d = POW5[k];
+        long q = mant / d;
+        long r = mant % d;
+        int exp2 = -k;
+        while (q < (1L << 62)) {
+            // r < d < 2^63 so r << 1 fits in 64 bits unsigned
+            r <<= 1;
+            q <<= 1;
+            if (Long.compareUnsigned(r, d) >= 0) {
+                r -= d;
+                q |= 1;
+            }
+            exp2--;
+        }
+        long low = q & 0x3FF;
+        long q53 = q >>> 10;
+        exp2 += 10;
+        if (low > 0x200 || (low == 0x200 && (r != 0 || (q53 & 1) != 0))) {
+            q53++;
+        }
+        return Math.scalb((double) q53, exp2);
+    }
+
+    /** Append v as decimal text, e.g. 22.5 -> "22.5", 50 -> "50.0". Double.parseDouble of the text gives back v. */
+    public static void put(ByteBuffer out, double v) {
+        double a = Math.abs(v);
+        if (!(a >= 1e-5 && a < 1e15)) { // also NaN
+            if (a == 0) {
+                putAscii(out, (Double.doubleToRawLongBits(v) < 0) ? "-0.0" : "0.0");
+            }
+            else {
+                putAscii(out, Double.toString(v));
+            }
+            return;
+        }
+        boolean neg = v < 0;
+        // Fewest decimals that come back exactly, while the scaled value is still an exact long
+        for (int k = 0; k <= 22; k++) {
+            double scaled = a * POW10[k];
+            if (scaled >= 9007199254740992.0) break; // 2^53
+            long m = Math.round(scaled);
+            if (m / POW10[k] == a) { // correctly rounded, same as parsing the text
+                putFixed(out, neg, m, k);
+                return;
+            }
+        }
+        // 17 significant digits, exactly rounded, always come back to the same double
+        int k = 16 - (int) Math.floor(Math.log10(a));
+        long m = roundScaled(a, k);
+        if (m >= LPOW10[17]) m = roundScaled(a, --k);
+        else if (m < LPOW10[16]) m = roundScaled(a, ++k);
+        putFixed(out, neg, m, k);
+    }
+
+    // round(a * 10^k) half-even, computed exactly: a = q * 2^e so a * 10^k = q * 5^k * 2^(e+k).
+    // For a in [1e-5, 1e15) and 17 digits: 2 <= k <= 22 and e+k < 0.
+    private static long roundScaled(double a, int k) {
+        long bits = Double.doubleToRawLongBits(a);
+        int be = (int) (bits >>> 52) & 0x7FF;
+        long q = (bits & 0xFFFFFFFFFFFFFL) | (1L << 52); // a is normal in this range
+        int shift = 1075 - be - k;
+        long f = POW5[k];
+        // 128-bit product q * f, q < 2^53, f < 2^52
+        long ql = q & 0xFFFFFFFFL, qh = q >>> 32;
+        long fl = f & 0xFFFFFFFFL, fh = f >>> 32;
+        long lo = ql * fl;
+        long mid = qh * fl + ql * fh;
+        long hi = qh * fh + (mid >>> 32);
+        long lo2 = lo + (mid << 32);
+        if (Long.compareUnsigned(lo2, lo) < 0) hi++;
+        lo = lo2;
+        // shift right, keeping what falls off for rounding
+        long m;
+        boolean above, exactHalf;
+        if (shift < 64) {
+            m = (hi << (64 - shift)) | (lo >>> shift);
+            long rest = lo & ((1L << shift) - 1);
+            long half = 1L << (shift - 1);
+            above = rest > half;
+            exactHalf = rest == half;
+        }
+        else {
+            int s = shift - 64;
+            m = hi >>> s;
+            long rest = (s == 0) ? 0 : hi & ((1L << s) - 1);
+            long half = (s == 0) ? 0 : 1L << (s - 1);
+            if (s == 0) { // first dropped bit is the top bit of lo
+                above = lo < 0 && (lo << 1) != 0;
+                exactHalf = lo == Long.MIN_VALUE;
+            }
+            else {
+                above = rest > half || (rest == half && lo != 0);
+                exactHalf = rest == half && lo == 0;
+            }
+        }
+        if (above || (exactHalf && (m & 1) != 0)) m++;
+        return m;
+    }
+
+    // m * 10^-k with at least one digit each side of the point and no trailing zeros after the first decimal
+    private static void putFixed(ByteBuffer out, boolean neg, long m, int k) {
+        while (k > 1 && m % 10 == 0) {
+            m /= 10;
+            k--;
+        }
+        if (neg) out.put((byte) '-');
+        if (k == 0) {
+            put(out, m);
+            out.put((byte) '.').put((byte) '0');
+            return;
+        }
+        long p = LPOW10[Math.min(k, 18)];
+        long intPart = (k > 18) ? 0 : m / p;
+        long frac = (k > 18) ? m : m % p;
+        put(out, intPart);
+        out.put((byte) '.');
+        // leading zeros of the fraction
+        for (int d = k - 1; d > 0 && (d >= 19 || frac < LPOW10[d]); d--) out.put((byte) '0');
+        put(out, frac);
+    }
+
+    /** Append v as decimal integer text. */
+    public static void put(ByteBuffer out, long v) {
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                putAscii(out, Long.toString(v));
+                return;
+            }
+            out.put((byte) '-');
+            v = -v;
+        }
+        int n = 1;
+        while (n < 19 && v >= LPOW10[n]) n++;
+        for (int d = n - 1; d >= 0; d--) {
+            long p = LPOW10[d];
+            out.put((byte) ('0' + v / p));
+            v %= p;
+        }
+    }
+
+    /** Append text that is plain ASCII (numbers, protocol keywords) without encoding it to a byte[] first. */
+    public static void putAscii(ByteBuffer out, CharSequence s) {
+        for (int k = 0; k < s.length(); k++) out.put((byte) s.charAt(k));
+    }
+
+    private static double slow(byte[] buf, int start, int end) {
+        return Double.parseDouble(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,674 @@
+/*
+File:           BuildingController.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: One building's timestep, outside supercontroller so it runs without the RTI: read the EP frame, compute
+       setpoints (Java fixed/adaptive/occupancy with fuzzy control, PriceOptimizer, ThermostatEngine or
+       thermostat.py), run the dishwasher scheduler and encode the SET reply. supercontroller-benchmarks drives
+       it directly.
+       Buildings with batch_steps: > 1 whose setpoints can be planned ahead get a BATCH reply instead, and
+       EP stays quiet until the batch is used up or a temperature leaves the band sent with it.
+       thermostat.py setpoints come from SetpointCache when buildings share the same inputs.
+       State lives in BuildingStateStore. beginStep() does the once-per-step bookkeeping (occupancy timestep,
+       batch steps) on the main thread; step(i, ...) only touches building i, so buildings can run
+       concurrently. stepBatch() steps several buildings at once, their Java setpoints in one SetpointKernel
+       pass. The dishwasher scheduler keeps a few counters per building, takes its day and time of day from
+       the building's own occupancy row and draws from the building's own SplittableRandom, so its memory is
+       constant over any run length and results do not depend on thread timing.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class BuildingController {
+
+	private final BuildingStateStore bldg;
+	private final EPVariables epVars; // names of the variables EP sends, as int IDs
+	private final StepTelemetry telemetry;
+	private final StepProfiler profiler; // python & control time per building
+	private final SetpointCache setpointCache; // setpoints by inputs, shared by all buildings
+	private final int nt; //timesteps per hour
+	private final int numSims;
+	private final String thermostatFile;
+	// Persistent thermostat.py workers, one pool per python command. Empty = start a process per request
+	private final Map<String, PythonThermostatPool> pythonPools;
+	
+	// Shared by all buildings, only written between steps ========================================
+	private double currentTime = 0;
+	private int timeLoop = -1; //occupancy timestep. Each building wraps it to the length of its own data.
+	//gets incremented at start so set to -1 to get 0 initially.
+	// Appliance scheduling constants. Per-building state is in BuildingStateStore
+	private final int runTime = 12; //number of time steps the appliance is activated
+	private final int sleepTime, wakeTime; //step of the day the house goes to sleep / wakes up
+	private final int stepsPerDay;
+	private final int numActPerDay = 1; //number of activations 
+	private final double dailyActivationProb = .59;
+	
+	// Batch exchange
+	private final boolean anyBatch;
+	private final double epStep; // EP seconds per timestep
+	private static final double BAND_OFF = 999; // temperature band edge that never triggers a report
+	private final ThreadLocal<double[][]> batchScratch; // cool & heat setpoints of a batch being encoded
+	private final byte[] noDishwasher; // batches are only for buildings without a dishwasher
+	private final ThreadLocal<SetpointKernel> kernels; // Java setpoints of stepBatch, one per thread
+	private PriceOptimizer optimizer = null; // setpoints of Java buildings with optimize: true, null = javaSetpoints
+	
+	//Various constants
+	private final double fuzzyOffset = 1.0;
+	private final double fuzzyMargin = 0.1; //Distance from max allowed before it activates
+	private final double fuzzyFudge = 0.1; //fudge factor to avoid low amounts of energy keeping it very close to the setting
+
+	/** bldg must be fully configured, occupancy included. pythonPools may be empty. */
+	public BuildingController(BuildingStateStore bldg, int nt, EPVariables epVars, StepTelemetry telemetry,
+			StepProfiler profiler, SetpointCache setpointCache, String thermostatFile, Map<String, PythonThermostatPool> pythonPools) {
+		this.bldg = bldg;
+		this.nt = nt;
+		this.epVars = epVars;
+		this.telemetry = telemetry;
+		this.profiler = profiler;
+		this.setpointCache = setpointCache;
+		this.thermostatFile = thermostatFile;
+		this.pythonPools = pythonPools;
+		numSims = bldg.size();
+		sleepTime = 22*nt; //time that the house is asleep
+		wakeTime = 6*nt; //time that the house is awake
+		stepsPerDay = 24*nt;
+		int maxBatch = 1;
+		for(int i = 0; i<numSims; i++){
+			maxBatch = Math.max(maxBatch, bldg.batchSteps[i]);
+		}
+		anyBatch = maxBatch > 1;
+		epStep = 3600.0 / nt;
+		final int scratchSize = maxBatch;
+		batchScratch = new ThreadLocal<double[][]>() {
+			protected double[][] initialValue() {
+				return new double[2][scratchSize];
+			}
+		};
+		noDishwasher = new byte[maxBatch];
+		kernels = new ThreadLocal<SetpointKernel>() {
+			protected SetpointKernel initialValue() {
+				return new SetpointKernel(BuildingController.this.bldg, BuildingController.this.nt, fuzzyOffset, fuzzyMargin, fuzzyFudge);
+			}
+		};
+	}
+	
+	/** Java buildings with optimize: true get their setpoints from optimizer from now on */
+	public void useOptimizer(PriceOptimizer optimizer) {
+		this.optimizer = optimizer;
+	}
+
+	/** Whether building i's setpoints come from the price optimizer */
+	private boolean optimized(int i) {
+		return optimizer != null && bldg.optimize[i] && bldg.source[i] == BuildingStateStore.SOURCE_JAVA;
+	}
+	
+	/** Once per timestep, before any building: advance the occupancy timestep & batch bookkeeping. */
+	public void beginStep(double currentTime) {
+		this.currentTime = currentTime;
+		// Buildings whose occupancy data is too short repeat it (see occupancyRow)
+		timeLoop++;
+		if(timeLoop % stepsPerDay == 0 && telemetry.detail()) telemetry.log().debug("DAY COUNTER: {}", timeLoop/stepsPerDay + 1);
+		
+		// Buildings inside a batch owe no EP message this step
+		if(anyBatch){
+			for(int i = 0; i<numSims; i++){
+				if(bldg.blockStep[i] >= 0) bldg.blockStep[i]++;
+				bldg.quiet[i] = bldg.blockStep[i] >= 0 && bldg.blockStep[i] < bldg.batchSteps[i];
+			}
+		}
+	}
+
+	/** Occupancy timestep of the last beginStep(), -1 before the first: saved by Checkpoint */
+	public int timeLoop() {
+		return timeLoop;
+	}
+
+	/** Continue from a checkpoint: the next beginStep() is the step after timeLoop */
+	public void resume(int timeLoop) {
+		this.timeLoop = timeLoop;
+	}
+
+	/** Row of building i's occupancy data this step, repeated from the start if its data is shorter than the simulation */
+	public int occupancyRow(int i) {
+		return timeLoop % bldg.occupancy[i].size();
+	}
+
+	/** One building's timestep: read its EP data, compute setpoints & appliance schedule.
+	 *  Only touches element [i] of the per-building columns, so different buildings can run concurrently. */
+	public void step(int i, EPFrame frame) {
+		final long t0 = profiler.start();
+		// Detail output for this building this step? Checked before building any message
+		final boolean detail = telemetry.detail(i);
+		final int occRow = occupancyRow(i);
+		receive(i, frame, occRow, detail);
+		final long pythonNs = setpoints(i, occRow / nt, detail); // casting (int) always truncates
+		dishwasher(i, occRow, detail);
+		if(profiler.enabled()) profiler.record(StepProfiler.Phase.CONTROL, i, System.nanoTime() - t0 - pythonNs);
+	}
+
+	/** step() for count buildings whose frames are all in: ids[k] with frames[k]. The Java setpoints of
+	 *  buildings with SOURCE_JAVA (not optimized, no detail output this step) are computed together by SetpointKernel,
+	 *  everything else as in step(). Only touches the buildings in ids. */
+	public void stepBatch(int[] ids, EPFrame[] frames, int count) {
+		final long t0 = profiler.start();
+		long pythonNs = 0;
+		final SetpointKernel kernel = kernels.get();
+		kernel.begin(timeLoop);
+		for(int k = 0; k < count; k++){
+			final int i = ids[k];
+			final boolean detail = telemetry.detail(i);
+			final int occRow = occupancyRow(i);
+			receive(i, frames[k], occRow, detail);
+			if(bldg.source[i] == BuildingStateStore.SOURCE_JAVA && !detail && !optimized(i)){
+				bldg.setHeatStr[i] = null;
+				bldg.setCoolStr[i] = null;
+				kernel.add(i);
+			}
+			else{
+				pythonNs += setpoints(i, occRow / nt, detail);
+			}
+		}
+		kernel.run();
+		for(int k = 0; k < count; k++){
+			dishwasher(ids[k], occupancyRow(ids[k]), telemetry.detail(ids[k]));
+		}
+		if(profiler.enabled() && count > 0){
+			final long each = (System.nanoTime() - t0 - pythonNs) / count;
+			for(int k = 0; k < count; k++){
+				profiler.record(StepProfiler.Phase.CONTROL, ids[k], each);
+			}
+		}
+	}
+
+	/** This thread's kernel for the Java setpoints of many buildings */
+	public SetpointKernel kernel() {
+		return kernels.get();
+	}
+
+	// Building i's EP data into the store
+	private void receive(int i, EPFrame frame, int occRow, boolean detail) {
+		final Logger tlog = telemetry.log();
+		if(detail) tlog.debug("Occupancy at {} = {}", occRow, bldg.occupancy[i].status(occRow));
+		
+		//BEGIN GETTING DATA FROM EP ========================================================
+		if(detail) tlog.debug("===> Received from EP #{} <===  EP SimTime = {}", i, frame.time());
+		
+		for(int k = 0; k < frame.varCount(); k++) {
+			if(detail) tlog.debug("    {} = {}", epVars.name(frame.varId(k)), frame.valueAt(k));
+			// Add any variable that you want to get from EnergyPlus to EPVariables, then here...
+			switch(frame.varId(k)){
+				case EPVariables.OUTDOOR_AIR_TEMP: bldg.outdoorTemp[i] = frame.valueAt(k); break;
+				case EPVariables.ZONE_MEAN_AIR_TEMP: bldg.indoorTemp[i] = frame.valueAt(k); break;
+				/*
+				 * //These will be implemented later
+				case EPVariables.ZONE_HUMIDITY: humidity[i] = frame.valueAt(k); break;
+				case EPVariables.HEATING_ENERGY: heatEnergy[i] = frame.valueAt(k); break;
+				case EPVariables.COOLING_ENERGY: coolEnergy[i] = frame.valueAt(k); break;
+				case EPVariables.NET_ENERGY: netEnergy[i] = frame.valueAt(k); break;
+				case EPVariables.ENERGY_PURCHASED: energyPurchase[i] = frame.valueAt(k); break;
+				case EPVariables.ENERGY_SURPLUS: energySurplus[i] = frame.valueAt(k); break;
+				case EPVariables.DAY_OF_WEEK: dayInt[i] = (int) frame.valueAt(k); break;
+				case EPVariables.SOLAR_RADIATION: solarRad[i] = frame.valueAt(k); break;
+				case EPVariables.HEATING_SETPOINT: setHeatStrFromEP[i] = frame.valueAt(k); break;
+				case EPVariables.COOLING_SETPOINT: setCoolStrFromEP[i] = frame.valueAt(k); break;
+				*/
+				default: break; // not used by the controller
+			}
+		}
+		
+		//END GET DATA FROM EP ============================================================
+	}
+
+	// Building i's HVAC setpoints. hour: row of occupancy data. Returns the ns spent in Python
+	private long setpoints(int i, int hour, boolean detail) {
+		final Logger tlog = telemetry.log();
+		final OccupancyStore occ = bldg.occupancy[i];
+		long pythonNs = 0;
+
+		//BEGIN COMPUTING HVAC SETPOINTS ============================================================
+		
+		//Reset with flag values to detect errors.
+		bldg.setHeat[i] = -1.1;
+		bldg.setCool[i] = 111.1;
+		bldg.setHeatStr[i] = null;
+		bldg.setCoolStr[i] = null;
+		
+		// BEGIN JAVA THERMOSTAT.PY OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+		// Same setpoints as thermostat.py but without a subprocess. Like Python, no fuzzy control.
+		if (bldg.source[i] == BuildingStateStore.SOURCE_ENGINE){
+			// Not cached (SetpointCache): ~50 ns, cheaper than a shared lookup
+			final double outdoor = bldg.outdoorTemp[i];
+			bldg.setHeat[i] = ThermostatEngine.heatSetpoint(bldg.engineMode[i], bldg.hcc(i), outdoor, occ.status(hour), occ.prob(hour), bldg.fixedMin[i]);
+			bldg.setCool[i] = ThermostatEngine.coolSetpoint(bldg.engineMode[i], bldg.hcc(i), outdoor, occ.status(hour), occ.prob(hour), bldg.fixedMax[i]);
+			if(detail) tlog.debug("thermostat.py setpoints (Java): setCool[{}] = {}   setHeat[{}] = {}", i, bldg.setCool[i], i, bldg.setHeat[i]);
+		}
+		// END JAVA THERMOSTAT.PY OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+		
+		// BEGIN PYTHON SETPOINT OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+		else if (bldg.source[i] == BuildingStateStore.SOURCE_PYTHON){
+			long tp = profiler.start();
+			pythonSetpoints(i, occ, detail);
+			pythonNs = profiler.stop(StepProfiler.Phase.PYTHON, i, tp);
+		}
+		
+		// BEGIN PRICE OPTIMIZER OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+		// Java buildings with optimize: true. Replaces energyOptTset2hr.py; no fuzzy control
+		else if (optimized(i)){
+			optimizer.setpoints(i, timeLoop);
+			if(detail) tlog.debug("Optimizer setpoints: setCool[{}] = {}   setHeat[{}] = {}", i, bldg.setCool[i], i, bldg.setHeat[i]);
+		}
+		
+		// BEGIN JAVA SETPOINTS OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
+		else{
+			javaSetpoints(i, hour, detail);
+		}
+		
+		//END COMPUTING HVAC SETPOINTS ============================================================
+		return pythonNs;
+	}
+
+	/** thermostat.py setpoints, as text in setHeatStr/setCoolStr */
+	private void pythonSetpoints(int i, OccupancyStore occ, boolean detail) {
+		final Logger tlog = telemetry.log();
+		char var2save = 'Z'; // default value to save nothing
+		bldg.setHeatStr[i] = "0.0"; // sent if Python does not return a setpoint
+		bldg.setCoolStr[i] = "99.9";
+		
+		// thermostat.py ignores indoorTemp, so the result only depends on the other arguments
+		final double outdoor = setpointCache.quantize(bldg.outdoorTemp[i]);
+		final double occStatus = occ.status((int)currentTime % occ.size());
+		final SetpointCache.Key key = setpointCache.key(SetpointCache.PYTHON, 0, bldg.hcc(i), outdoor, occStatus, 0, 0, 0, bldg.thermostatCommand[i], bldg.modeText[i]);
+		final SetpointCache.Setpoints cached = setpointCache.get(key);
+		if(cached != null){
+			bldg.setHeatStr[i] = cached.heatStr;
+			bldg.setCoolStr[i] = cached.coolStr;
+			if(detail) tlog.debug("thermostat.py setpoints from cache: setCool[{}] = {}   setHeat[{}] = {}", i, cached.coolStr, i, cached.heatStr);
+			return;
+		}
+		
+		String pycmd="";
+		String pyargs="";
+		String s="";
+		List<String> pyOut;
+		try {
+			Process pro;
+			
+			//some of these aren't implemented or aren't needed
+			//pycmd = pythonCommand + " ./" + thermostatFile + " -s indoorTemp" +String.valueOf(indoorTemp[i])+" ourdoorTemp" + String.valueOf(outdoorTemp[i])+ " occupancyStatus=" + String.valueOf(occStatus.get(currentTime)) + " occupancyProb=" + String.valueOf(occupancyProb) + " heatOrCool=" + hcc[i] + " MODE=" + mode[i] + " date_range=" + dateRange + " loc=" + loc + " price=" + priceType;
+			
+			pyargs = "-s indoorTemp=" +String.valueOf(bldg.indoorTemp[i])+" ourdoorTemp=" + String.valueOf(outdoor)+ " occupancyStatus=" + String.valueOf(occStatus) + " heatOrCool=" + bldg.hcc(i) + " MODE=" + bldg.modeText[i];
+			pycmd = bldg.thermostatCommand[i] + " " + thermostatFile + " " + pyargs;
+			
+			/*
+			// Call Python optimization & occupancy code with necessary info
+			if (optimizeSet[i]){
+				pycmd = pythonCommand + " ./" + optimizerFile + " " + sday +" " +sblock +" "+ String.valueOf(zoneTemps[i])+ " " + String.valueOf(24) + " " + nt + " " + hcc[i] + " " + mode[i] + " " + dateRange + " " + loc + " " + priceType; 
+			}
+			else{ // Call Python adaptive and occupancy setpoints code with necessary info
+				pycmd = pythonCommand + " ./" + setpointFile + " " +sday +" " +sblock +" "+ String.valueOf(zoneTemps[i])+ " " + String.valueOf(24) + " " + nt + " " + hcc[i] + " " + mode[i] + " " + dateRange + " " + loc + " " + priceType;
+			}
+			*/
+			if(detail) tlog.debug("Run:  {}", pycmd); //Display command used for debugging
+			PythonThermostatPool pool = pythonPools.get(bldg.thermostatCommand[i]);
+			if (pool != null) {
+				pyOut = pool.request(pyargs); // persistent worker, same output as running pycmd
+			}
+			else {
+				pro = Runtime.getRuntime().exec(pycmd); // Runs command
+				BufferedReader stdInput = new BufferedReader(new InputStreamReader(pro.getInputStream()));
+				pyOut = new ArrayList<String>();
+				while ((s = stdInput.readLine()) != null) {
+					pyOut.add(s);
+				}
+			}
+			
+			// Gets input data from Python that will either be a keystring or a variable. 
+			// AS long as there is another output line with data,
+			for (int k = 0; k < pyOut.size(); k++) {
+				s = pyOut.get(k);
+				//System.out.println(s);  //for debug
+				// New nested switch-case to reduce computing time and fix so it's not appending data meant for the next one. - Brian
+				// Replaced a bunch of booleans with single key char var2save - Brian
+				// If current line is a keystring, identify it by setting the key var2save to that identity
+				switch (s) {
+					/*
+					case "energy consumption":
+						var2save = 'E';
+						break;
+					case "indoor temp prediction":
+						var2save = 'T';
+						break;
+					case "pricing per timestep":
+						var2save = 'P';
+						break;
+					case "outdoor temp":
+						var2save = 'O';
+						break;
+					case "solar radiation": 
+						var2save = 'S'; 
+						break;
+					*/
+					case "thermostat_set_heat": 
+						var2save = 'H'; 
+						break;
+					case "thermostat_set_cool": 
+						var2save = 'C'; 
+						break;
+					case "Traceback (most recent call last):":
+						tlog.warn("Hiss... Python crash detected for #{}. Try pasting command after \"Run\" in the terminal and debug Python: {}", i, pycmd);
+						var2save = 'Z';
+						break;
+					default: // Not a keystring, so it is probably data
+						switch(var2save) {
+							case 'H': bldg.setHeatStr[i] = s; break;
+							case 'C': bldg.setCoolStr[i] = s; break;
+							/*
+							case 'E': dataStringOptE = dataStringOptE + separatorOpt + s; break;
+							case 'T': dataStringOptT = dataStringOptT + separatorOpt + s; break;
+							case 'P': dataStringOptP = dataStringOptP + separatorOpt + s; break;
+							case 'O': dataStringOptO = dataStringOptO + separatorOpt + s; break;
+							case 'S': dataStringOptS = dataStringOptS + separatorOpt + s; break;
+							case 'H': dsoHeatSet = dsoHeatSet + separatorOpt + s; break;
+							case 'C': dsoCoolSet = dsoCoolSet + separatorOpt + s; break;
+							*/
+							default: // Do nothing; it's ok if unneeded strings come through.
+						} // End var2save switch case
+				} // End s switch case
+			} //End for each output line
+		} // End try
+		catch (IOException e) {
+			tlog.warn("Hiss... Python crashed or failed to run. Try pasting command after \"Run\" in the terminal and debug Python: " + pycmd, e);
+		}
+		// Extra check if no keystrings found, var2save will still be default 'Z'. Controller will probably crash after this, but it is usually caused by Python code crashing and not returning anything. Warn user so they debug correct program.
+		if (var2save == 'Z') { tlog.warn("Hiss... No keystrings from Python found for #{}. Python may have crashed and returned null. Check command: {}", i, pycmd); }
+		else { setpointCache.put(key, new SetpointCache.Setpoints(bldg.setHeatStr[i], bldg.setCoolStr[i])); }
+		
+		//Assumption: fuzzy control is implemented inside Python.
+	}
+
+	/** Java fixed/adaptive/occupancy setpoints with fuzzy control and heat/cool shutoff. hour: row of occupancy data */
+	public void javaSetpoints(int i, int hour, boolean detail) {
+		final Logger tlog = telemetry.log();
+		final OccupancyStore occ = bldg.occupancy[i];
+		double comfTemp = 0;
+		double comfExpansion = 0;
+		// Not cached (SetpointCache): a few flops, cheaper than a shared lookup
+		final double outdoor = bldg.outdoorTemp[i];
+		// Fixed setpoint
+		if(bldg.mode[i] == BuildingStateStore.MODE_FIXED){
+			bldg.setHeat[i] = bldg.fixedMin[i];
+			bldg.setCool[i] = bldg.fixedMax[i];
+		}
+		// Anything based on adaptive comfort model.
+		else {
+			//compute mean comfortable temperature (stored as comfTemp, a temporary variable)
+			comfTemp = comfortTemp(outdoor);
+			// Adaptive 90
+			if(bldg.mode[i] == BuildingStateStore.MODE_ADAPTIVE){
+				bldg.setHeat[i] = comfTemp - 2;
+				bldg.setCool[i] = comfTemp + 2;
+			}
+			//Likely this will become "Manual control" setting
+			// shut on and off manually with some kind of random factor for forgetfulness.
+			// reset periodically if uncomfortable enough.
+			else if(bldg.mode[i] == BuildingStateStore.MODE_OCCUPANCY){
+				
+				//Should work once occProb is implemented
+				if(occ.status(hour)==1.0){
+					bldg.setHeat[i] = comfTemp - 2;
+					bldg.setCool[i] = comfTemp + 2;
+				}
+				else{
+					if(detail) tlog.debug("OccProb = {}", occ.prob(hour));
+					//Exact norm.ppf comfort band, as in Python. Probability kept >= 1% like the old
+					// lookup table so an always-vacant hour does not give an infinite band
+					comfExpansion = ThermostatEngine.comfortRange(Math.max(0.01, Math.min(1.0, occ.prob(hour))));
+					if(detail) tlog.debug("ComfExpansion = {}", comfExpansion);
+					bldg.setHeat[i] = comfTemp - 2 -comfExpansion;
+					bldg.setCool[i] = comfTemp + 2 +comfExpansion;
+				} //end else
+			} //end else if (MODE_OCCUPANCY)
+		} //end anything adaptive-based
+		
+		if(detail) tlog.debug("Java setpoints before fuzzy & heat/cool: setCool[{}] = {}   setHeat[{}] = {}", i, bldg.setCool[i], i, bldg.setHeat[i]);
+		
+		//Fuzzy control -----------------------------------------------------------------------------
+		//booleans fuzzyCool[i] and fuzzyHeat[i] are for toggle effect; otherwise it would activate barely
+		// above the margin then shut off until it gets close to the margin again
+		//margin is safety to account for cooling/heating delay so it stays inside setpoints
+		//fudge handles when EP stays right at the threshold but doesn't hit it (unrealistic)
+		//toggle on when indoor temp is hotter than cooling setpoint (with margin)
+		if(bldg.indoorTemp[i] >= bldg.setCool[i] - fuzzyMargin - fuzzyFudge){
+			bldg.fuzzyCool[i] = true;
+			//bldg.setCool[i] -= fuzzyOffset + fuzzyMargin;
+		} //toggle off if indoor temp is colder than cooling setpoint + offest
+		else if(bldg.indoorTemp[i] <= bldg.setCool[i] - (fuzzyMargin + fuzzyOffset) + fuzzyFudge){
+			bldg.fuzzyCool[i] = false;
+			//bldg.setCool[i] -= fuzzyMargin;
+		}
+		if(bldg.fuzzyCool[i]){ //make setpoint colder by offset and margin
+			bldg.setCool[i] -= fuzzyOffset + fuzzyMargin;
+			if(detail) tlog.debug("Activated fuzzy for cooling");
+		}
+		else{ //only margin
+			bldg.setCool[i] -= fuzzyMargin;
+		}
+		
+		// toggle on when it gets colder than heating setpoint with margin
+		if(bldg.indoorTemp[i] <= bldg.setHeat[i] + fuzzyMargin + fuzzyFudge){
+			bldg.fuzzyHeat[i] = true;
+		} // toggle off if hotter than heating setpoint with offset
+		else if(bldg.indoorTemp[i] >= bldg.setHeat[i] + fuzzyMargin + fuzzyOffset - fuzzyFudge){
+			bldg.fuzzyHeat[i] = false;
+		}
+		if(bldg.fuzzyHeat[i]){ //increase setpoint by offset and margin
+			bldg.setHeat[i] += fuzzyOffset + fuzzyMargin;
+		}
+		else{ //only margin
+			bldg.setHeat[i] += fuzzyMargin;
+		}
+		// End Java Fuzzy Control ---------------------------------
+		
+		//Remove heating if in cooling mode
+		if(bldg.hvac[i] == BuildingStateStore.HVAC_COOL){
+			bldg.setHeat[i] = 0.0;
+		}
+		//Remove cooling if in heating mode
+		else if(bldg.hvac[i] == BuildingStateStore.HVAC_HEAT){
+			bldg.setCool[i] = 50.0;
+		}
+		
+		if(detail) tlog.debug("Java setpoints after fuzzy: setCool[{}] = {}   setHeat[{}] = {}", i, bldg.setCool[i], i, bldg.setHeat[i]);
+	}
+
+	/** Adaptive comfort model: mean comfortable temperature for this outdoor temperature */
+	static double comfortTemp(double outdoorTemp) {
+		if(outdoorTemp <= 9.6774){
+			return 20.9;
+		}
+		else if(outdoorTemp < 33.22){
+			return 17.9 + 0.31*outdoorTemp;
+		}
+		else{ //outdoorTemp > 33.548
+			return 28.2;
+		}
+	}
+
+	/** Dishwasher schedule for this step. occRow: row of occupancy data */
+	public void dishwasher(int i, int occRow, boolean detail) {
+		final Logger tlog = telemetry.log();
+		final OccupancyStore occ = bldg.occupancy[i];
+		//BEGIN APPLIANCE SCHEDULER ============================================================
+		if(bldg.hasDishwasher[i]){
+			// Day & time of day of this building's occupancy data, which repeats if it is shorter than the run
+			final int day = occRow / stepsPerDay;
+			final int stepOfDay = occRow % stepsPerDay;
+			//reset for new day: today's activation probability is the daily probability spread over the
+			// steps the building is occupied today
+			if (day != bldg.applianceDay[i]) {
+				bldg.applianceDay[i] = day;
+				bldg.numActToday[i] = 0;
+				bldg.activationProb[i] = (occ.days() > 0) ? dailyActivationProb/occ.occupiedSteps(day % occ.days()) : 0;
+				if(detail) tlog.debug("Dishwasher day {} for #{}: activation probability {}", day + 1, i, bldg.activationProb[i]);
+			}
+			//make sure the current run takes precedence. runSteps replaces activationHistory, which only held 1s
+			if (bldg.runSteps[i] > 0 && bldg.runSteps[i] < runTime){
+				bldg.setDishwasher[i] = 1;
+				bldg.runSteps[i]++;
+			}else {
+				//dealing with occupancy//dealing with wake/sleep time//dealing with number of activations per day
+				if (occ.status(occRow) == 1 && stepOfDay > wakeTime && stepOfDay < sleepTime &&  bldg.numActToday[i] < numActPerDay) {
+					//dealing with length of operation
+					if (bldg.runSteps[i] == runTime) {
+						bldg.setDishwasher[i] = 0;
+						bldg.numActToday[i] = bldg.numActToday[i] + 1;
+						bldg.runSteps[i] = 0;
+					}else if (bldg.runSteps[i] == 0) {
+						double randomNum = bldg.applianceRandom[i].nextDouble(); //random num for monte carlo, this building's own stream
+						bldg.applianceDraws[i]++;
+						if(detail) tlog.debug("Random number for activation: {}  Activation probability: {}", randomNum, bldg.activationProb[i]);
+						if (randomNum < bldg.activationProb[i]) {
+							bldg.setDishwasher[i] = 1;
+							bldg.runSteps[i] = 1;
+							if(detail) tlog.debug("Dishwasher Activated");
+						}else {
+							bldg.setDishwasher[i] = 0; // end determiners
+						}
+					}
+				}
+				else {
+					bldg.setDishwasher[i] = 0;
+				}
+			}
+		}
+		else{
+			bldg.setDishwasher[i] = 0;
+		}
+		//END APPLIANCE SCHEDULER =================================================================
+	}
+
+	/** Room needed in the reply buffer for building i's SET or BATCH message */
+	public int replyLength(int i, EPFrame frame) {
+		if(batchEligible(i, frame)) return EPReplyEncoder.maxBatchLength(frame, bldg.batchSteps[i]);
+		return EPReplyEncoder.maxLength(frame, bldg.setCoolStr[i], bldg.setHeatStr[i]);
+	}
+
+	/** Encode building i's setpoint instructions for EP into out, the socket buffer */
+	public void encodeReply(int i, EPFrame frame, ByteBuffer out) {
+		if(batchEligible(i, frame)){
+			encodeBatch(i, frame, out);
+			return;
+		}
+		bldg.blockStep[i] = -1;
+		if(telemetry.detail(i)){
+			telemetry.log().debug("<=== SENDING to EP for #{} ===>  Time = {}  epGetStartCooling = {}  epGetStartHeating = {}  dishwasherSchedule = {}",
+					i, frame.time(), (bldg.setCoolStr[i] != null) ? bldg.setCoolStr[i] : bldg.setCool[i], (bldg.setHeatStr[i] != null) ? bldg.setHeatStr[i] : bldg.setHeat[i], bldg.setDishwasher[i]);
+		}
+		EPReplyEncoder.encode(out, frame, bldg.setCoolStr[i], bldg.setCool[i], bldg.setHeatStr[i], bldg.setHeat[i], bldg.setDishwasher[i]);
+	}
+
+	// Batch exchange =====================================================================================
+
+	/** Whether building i's reply can plan batch_steps: steps ahead. Setpoints must not depend on anything
+	 *  but occupancy data and temperatures EP can watch: no dishwasher (random), no Python, no price optimizer, and either
+	 *  java_thermostat or Java fixed/adaptive90, whose fuzzy control only changes when the zone
+	 *  temperature crosses a threshold known now. */
+	public boolean batchEligible(int i, EPFrame frame) {
+		if(bldg.batchSteps[i] <= 1 || bldg.hasDishwasher[i] || frame.isTerminate()) return false;
+		if(bldg.source[i] == BuildingStateStore.SOURCE_ENGINE) return true;
+		return bldg.source[i] == BuildingStateStore.SOURCE_JAVA && !optimized(i)
+			&& (bldg.mode[i] == BuildingStateStore.MODE_FIXED || bldg.mode[i] == BuildingStateStore.MODE_ADAPTIVE);
+	}
+
+	/** False if frame is an early report from inside a batch that EP sent from a step this controller has not
+	 *  reached yet (EP runs ahead during a batch); EPSocketServer.defer(i) keeps it for a later step. */
+	public boolean frameDue(int i, EPFrame frame) {
+		int b = bldg.blockStep[i];
+		if(b < 0 || b >= bldg.batchSteps[i]) return true;
+		return frame.timeValue() <= bldg.blockTime[i] + (b + 0.5) * epStep;
+	}
+
+	/** True if frame is an early report from an EP time behind this step: the controller ran through quiet
+	 *  steps before it arrived. EP may then report again before this step ends (EPSocketServer.expectAgain). */
+	public boolean frameBehind(int i, EPFrame frame) {
+		int b = bldg.blockStep[i];
+		return b > 0 && frame.timeValue() < bldg.blockTime[i] + (b - 0.5) * epStep;
+	}
+
+	/** BATCH reply: this step's setpoints (from step()) followed by the next ones, and the band that would
+	 *  change them. Outdoor temperature is assumed to stay within batch_outdoor_band: of this step's. */
+	private void encodeBatch(int i, EPFrame frame, ByteBuffer out) {
+		final int n = bldg.batchSteps[i];
+		final double[][] scratch = batchScratch.get();
+		final double[] cool = scratch[0];
+		final double[] heat = scratch[1];
+		final double outdoor = bldg.outdoorTemp[i];
+		double indoorLow = -BAND_OFF, indoorHigh = BAND_OFF;
+		double outdoorLow = -BAND_OFF, outdoorHigh = BAND_OFF;
+		cool[0] = bldg.setCool[i];
+		heat[0] = bldg.setHeat[i];
+		if(bldg.source[i] == BuildingStateStore.SOURCE_ENGINE){
+			// no fuzzy control: setpoints follow the occupancy data
+			final OccupancyStore occ = bldg.occupancy[i];
+			final int row = occupancyRow(i);
+			for(int k = 1; k < n; k++){
+				int hour = ((row + k) % occ.size()) / nt;
+				heat[k] = ThermostatEngine.heatSetpoint(bldg.engineMode[i], bldg.hcc(i), outdoor, occ.status(hour), occ.prob(hour), bldg.fixedMin[i]);
+				cool[k] = ThermostatEngine.coolSetpoint(bldg.engineMode[i], bldg.hcc(i), outdoor, occ.status(hour), occ.prob(hour), bldg.fixedMax[i]);
+			}
+			if(bldg.engineMode[i] != ThermostatEngine.Mode.FIXED){
+				outdoorLow = outdoor - bldg.batchOutdoorBand[i];
+				outdoorHigh = outdoor + bldg.batchOutdoorBand[i];
+			}
+		}
+		else{
+			// fixed/adaptive90: same setpoints until a fuzzy toggle, which javaSetpoints() flips when the zone
+			// temperature crosses these thresholds
+			double baseHeat = bldg.fixedMin[i];
+			double baseCool = bldg.fixedMax[i];
+			if(bldg.mode[i] == BuildingStateStore.MODE_ADAPTIVE){
+				double comfTemp = comfortTemp(outdoor);
+				baseHeat = comfTemp - 2;
+				baseCool = comfTemp + 2;
+				outdoorLow = outdoor - bldg.batchOutdoorBand[i];
+				outdoorHigh = outdoor + bldg.batchOutdoorBand[i];
+			}
+			if(bldg.hvac[i] != BuildingStateStore.HVAC_HEAT){
+				if(bldg.fuzzyCool[i]) indoorLow = Math.max(indoorLow, baseCool - (fuzzyMargin + fuzzyOffset) + fuzzyFudge);
+				else indoorHigh = Math.min(indoorHigh, baseCool - fuzzyMargin - fuzzyFudge);
+			}
+			if(bldg.hvac[i] != BuildingStateStore.HVAC_COOL){
+				if(bldg.fuzzyHeat[i]) indoorHigh = Math.min(indoorHigh, baseHeat + fuzzyMargin + fuzzyOffset - fuzzyFudge);
+				else indoorLow = Math.max(indoorLow, baseHeat + fuzzyMargin + fuzzyFudge);
+			}
+			for(int k = 1; k < n; k++){
+				cool[k] = cool[0];
+				heat[k] = heat[0];
+			}
+		}
+		if(telemetry.detail(i)){
+			telemetry.log().debug("<=== SENDING BATCH to EP for #{} ===>  Time = {}  steps = {}  indoor band = [{}, {}]  outdoor band = [{}, {}]  epGetStartCooling = {}  epGetStartHeating = {}",
+					i, frame.time(), n, indoorLow, indoorHigh, outdoorLow, outdoorHigh, cool[0], heat[0]);
+		}
+		EPReplyEncoder.encodeBatch(out, frame, n, indoorLow, indoorHigh, outdoorLow, outdoorHigh, cool, heat, noDishwasher);
+		// An early report can be answered at a later step than the one EP sent it from (this controller runs
+		// through quiet steps without waiting). Start the new batch that many steps in, so every step keeps
+		// meaning the same EP time and the next report is due when EP sends it.
+		final double time = frame.timeValue();
+		int lag = 0;
+		if(bldg.blockStep[i] >= 0){
+			lag = Math.max(0, (int)Math.round((bldg.blockTime[i] + bldg.blockStep[i]*epStep - time) / epStep));
+		}
+		bldg.blockStep[i] = lag;
+		bldg.blockTime[i] = time;
+	}
+}
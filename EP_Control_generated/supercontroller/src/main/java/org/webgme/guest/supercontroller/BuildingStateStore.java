@@ -0,0 +1,186 @@
+/*
+File:           BuildingStateStore.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: State of every building the supercontroller drives, one primitive column per field (struct of arrays).
+       Building IDs are dense ints 0..size()-1, the same as the EP simulation index, and every slot is
+       allocated up front, so a timestep only reads and writes array elements and allocates nothing
+       (except buildings using Python, whose setpoints arrive as Strings).
+       Modes and heat/cool are byte codes decided once from config_<bldg>.txt instead of Strings compared
+       on every step. Columns are as narrow as the values allow so a step over thousands of buildings touches
+       few cache lines; summary telemetry scans whole columns.
+       Memory per building, 64-bit JVM with compressed references (the default below 32 GB heap):
+          10 double/long columns                               80 bytes
+           5 int columns                                       20 bytes
+           9 byte/boolean columns                               9 bytes
+           7 reference columns                                 28 bytes
+                                                              137 bytes  (BYTES_PER_BUILDING)
+       plus each building's config Strings (MODE text and thermostat command, ~100 bytes), its appliance
+       SplittableRandom (32 bytes) and occupancy data, which is shared between buildings (OccupancyCache).
+       10,000 buildings: ~1.7 MB of state + ~1 MB of Strings, the same on the last step as on the first.
+       During a step, building i only touches element [i], so different buildings can run concurrently.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.util.SplittableRandom;
+
+public final class BuildingStateStore {
+
+    /** Approximate bytes of columns per building, see the table above. */
+    public static final int BYTES_PER_BUILDING = 137;
+
+    // Where setpoints come from: thermostat_code_language: in config_<bldg>.txt
+    public static final byte SOURCE_JAVA = 0;   // java: fixed/adaptive/occupancy below, with fuzzy control
+    public static final byte SOURCE_ENGINE = 1; // java_thermostat: ThermostatEngine, same as thermostat.py
+    public static final byte SOURCE_PYTHON = 2; // python: thermostat.py
+
+    // Java setpoint mode: MODE: in config_<bldg>.txt
+    public static final byte MODE_NONE = 0;
+    public static final byte MODE_FIXED = 1;
+    public static final byte MODE_ADAPTIVE = 2;
+    public static final byte MODE_OCCUPANCY = 3;
+
+    // heatorcool: in config_<bldg>.txt. The codes are the config letters, so (char) hvac[i] is the old hcc
+    public static final byte HVAC_UNSET = 'z';
+    public static final byte HVAC_HEAT = 'h';
+    public static final byte HVAC_COOL = 'c';
+    public static final byte HVAC_AUTO = 'a';
+
+    private final int size;
+
+    // Setpoints sent to EP. setHeatStr/setCoolStr: Python output sent as-is, null = send setHeat/setCool
+    public final double[] setHeat, setCool;
+    public final String[] setHeatStr, setCoolStr;
+    public final byte[] setDishwasher;
+    // Received from EP
+    public final double[] indoorTemp, outdoorTemp;
+    // Config
+    public final byte[] source, mode, hvac;
+    public final ThermostatEngine.Mode[] engineMode;
+    public final double[] fixedMin, fixedMax;
+    public final boolean[] optimize, hasDishwasher;
+    public final String[] modeText, thermostatCommand; // passed to Python
+    public final OccupancyStore[] occupancy; // shared between buildings with the same data
+    // Fuzzy control toggles
+    public final boolean[] fuzzyCool, fuzzyHeat;
+    // Appliance scheduler
+    public final double[] activationProb; // dishwasher activation probability per occupied step, today
+    public final int[] numActToday;
+    public final int[] runSteps; // steps the dishwasher has been running, 0 = off
+    public final int[] applianceDay; // day of the building's occupancy data numActToday counts, -1 = none yet
+    public final SplittableRandom[] applianceRandom; // activation draws, one reproducible stream per building
+    public final long[] applianceDraws; // numbers drawn from applianceRandom, to rebuild it from a checkpoint
+    private long applianceSeed;
+    private int applianceFirst;
+    // Batch exchange: batch_steps: & batch_outdoor_band: in config_<bldg>.txt, 1 = a reply every step
+    public final int[] batchSteps;
+    public final double[] batchOutdoorBand; // EP reports early if outdoor temp moves this far, C
+    public final int[] blockStep; // steps since the last batch reply, -1 = not in a batch
+    public final double[] blockTime; // EP time of the frame the last batch replied to
+    public final boolean[] quiet; // no frame due from EP this step (inside a batch)
+
+    public BuildingStateStore(int size) {
+        this.size = size;
+        setHeat = new double[size];
+        setCool = new double[size];
+        setHeatStr = new String[size];
+        setCoolStr = new String[size];
+        setDishwasher = new byte[size];
+        indoorTemp = new double[size];
+        outdoorTemp = new double[size];
+        source = new byte[size];
+        mode = new byte[size];
+        hvac = new byte[size];
+        engineMode = new ThermostatEngine.Mode[size];
+        fixedMin = new double[size];
+        fixedMax = new double[size];
+        optimize = new boolean[size];
+        hasDishwasher = new boolean[size];
+        modeText = new String[size];
+        thermostatCommand = new String[size];
+        occupancy = new OccupancyStore[size];
+        fuzzyCool = new boolean[size];
+        fuzzyHeat = new boolean[size];
+        activationProb = new double[size];
+        numActToday = new int[size];
+        runSteps = new int[size];
+        applianceDay = new int[size];
+        applianceRandom = new SplittableRandom[size];
+        applianceDraws = new long[size];
+        batchSteps = new int[size];
+        batchOutdoorBand = new double[size];
+        blockStep = new int[size];
+        blockTime = new double[size];
+        quiet = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            hvac[i] = HVAC_UNSET;
+            fixedMin[i] = 20;
+            fixedMax[i] = 23;
+            modeText[i] = "";
+            batchSteps[i] = 1;
+            batchOutdoorBand[i] = 1.0;
+            blockStep[i] = -1;
+            applianceDay[i] = -1;
+        }
+        seedAppliances(0, 0);
+    }
+
+    /** Give every building its own random stream for the appliance scheduler, split from seed in building
+     *  order. first: number of buildings before this store's building 0 (sharding), so every building gets
+     *  the same stream however the federation is split. */
+    public void seedAppliances(long seed, int first) {
+        applianceSeed = seed;
+        applianceFirst = first;
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int k = 0; k < first; k++) {
+            root.split();
+        }
+        for (int i = 0; i < size; i++) {
+            applianceRandom[i] = root.split();
+            applianceDraws[i] = 0;
+        }
+    }
+
+    /** Seed of seedAppliances() */
+    public long applianceSeed() { return applianceSeed; }
+
+    /** first of seedAppliances() */
+    public int applianceFirst() { return applianceFirst; }
+
+    /** Set building i's appliance stream to where it was after draws numbers */
+    public void skipApplianceDraws(int i, long draws) {
+        for (long d = applianceDraws[i]; d < draws; d++) {
+            applianceRandom[i].nextDouble();
+        }
+        applianceDraws[i] = Math.max(applianceDraws[i], draws);
+    }
+
+    /** Number of buildings. IDs are 0..size()-1. */
+    public int size() { return size; }
+
+    /** Java setpoint mode from the MODE: text, as the old contains() checks: occupancy, then adaptive, then fixed. */
+    public static byte parseMode(String mode) {
+        if (mode.contains("occupancy")) return MODE_OCCUPANCY;
+        if (mode.contains("adaptive")) return MODE_ADAPTIVE;
+        if (mode.contains("fixed")) return MODE_FIXED;
+        return MODE_NONE;
+    }
+
+    /** Heat/cool code from the first letter of heatorcool:, HVAC_UNSET if it is not h, c or a. */
+    public static byte parseHvac(String heatOrCool) {
+        String s = heatOrCool.trim();
+        if (s.isEmpty()) return HVAC_UNSET;
+        switch (s.charAt(0)) {
+            case 'h': return HVAC_HEAT;
+            case 'c': return HVAC_COOL;
+            case 'a': return HVAC_AUTO;
+            default: return HVAC_UNSET;
+        }
+    }
+
+    /** Heat/cool letter for ThermostatEngine and thermostat.py */
+    public char hcc(int i) { return (char) hvac[i]; }
+
+    /** Bytes of columns, not counting Strings and occupancy data. */
+    public long footprint() { return (long) size * BYTES_PER_BUILDING; }
+}
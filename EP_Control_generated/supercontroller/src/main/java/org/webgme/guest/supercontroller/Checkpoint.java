@@ -0,0 +1,225 @@
+/*
+File:           Checkpoint.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Snapshot of the controller's state every checkpoint_interval: steps (config.txt), so a crashed annual run
+       can continue from the last snapshot with checkpoint_resume: true instead of from timestep 0.
+       Saved: logical time, step count, occupancy timestep and, per building, fuzzy toggles, dishwasher counters,
+       the position of its appliance random stream and the last EP temperatures. Not saved: anything rebuilt
+       from the config files (modes, occupancy data), caches, profiles, and batch state (EP starts a new
+       connection, so every building starts with a SET reply).
+       save() only copies the columns into a buffer on the calling thread (~50 bytes per building); a
+       background thread writes it to <file>.tmp and renames it over <file>, so a crash mid-write leaves the
+       previous checkpoint. If the previous write is still running, that checkpoint is skipped.
+       File layout, big-endian: magic "SCCK", version, building count, each building name (UTF), next logical
+       time, steps done, occupancy timestep, appliance seed, the per-building columns, CRC32 of all before it.
+       EnergyPlus has no mid-run restart: resumed simulations must start at the checkpoint's day, which
+       load() logs.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+public class Checkpoint {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final int MAGIC = 0x5343434B; // "SCCK"
+    private static final int VERSION = 1;
+    private static final int BYTES_PER_BUILDING = 3 + 3 * 4 + 8 + 3 * 8;
+
+    /** Where the run continues after load() */
+    public static final class Position {
+        public final double time;    // logical time of the next step
+        public final int steps;      // steps already done
+        public final int timeLoop;   // occupancy timestep of the last step done
+
+        Position(double time, int steps, int timeLoop) {
+            this.time = time;
+            this.steps = steps;
+            this.timeLoop = timeLoop;
+        }
+    }
+
+    private final BuildingStateStore bldg;
+    private final File file;
+    private final int intervalSteps;
+    private final byte[] header; // magic, version & names: the same in every checkpoint
+    private final ByteBuffer buffer; // filled by save(), then written by the background thread
+    private Future<?> pending;  // the write of buffer
+    private final ExecutorService writer;
+
+    /** Checkpoint bldg every intervalSteps steps to file. intervalSteps 0 = never */
+    public Checkpoint(BuildingStateStore bldg, String[] names, File file, int intervalSteps) throws IOException {
+        this.bldg = bldg;
+        this.file = file;
+        this.intervalSteps = Math.max(0, intervalSteps);
+        header = header(names);
+        if (this.intervalSteps == 0) {
+            buffer = null;
+            writer = null;
+            return;
+        }
+        buffer = ByteBuffer.allocate(size());
+        writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "checkpoint-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create checkpoint folder " + dir);
+        }
+        log.info("Checkpoint every " + intervalSteps + " steps to " + file);
+    }
+
+    // Bytes of a checkpoint of these buildings, CRC included
+    private int size() {
+        return header.length + 8 + 4 + 4 + 8 + bldg.size() * BYTES_PER_BUILDING + 8;
+    }
+
+    /** True after the step that completes an interval */
+    public boolean due(int steps) {
+        return intervalSteps > 0 && steps % intervalSteps == 0;
+    }
+
+    /** Snapshot the state after `steps` steps; the run continues at logical time nextTime. Call between steps,
+     *  after every building is done. Copies on this thread, writes on the background thread. */
+    public void save(double nextTime, int steps, int timeLoop) {
+        if (pending != null && !pending.isDone()) {
+            log.warn("Checkpoint at step " + steps + " skipped: the previous one is still being written");
+            return;
+        }
+        final ByteBuffer b = buffer;
+        b.clear();
+        b.put(header);
+        b.putDouble(nextTime);
+        b.putInt(steps);
+        b.putInt(timeLoop);
+        b.putLong(bldg.applianceSeed());
+        final int n = bldg.size();
+        for (int i = 0; i < n; i++) {
+            b.put((byte) (bldg.fuzzyCool[i] ? 1 : 0));
+            b.put((byte) (bldg.fuzzyHeat[i] ? 1 : 0));
+            b.put(bldg.setDishwasher[i]);
+            b.putInt(bldg.numActToday[i]);
+            b.putInt(bldg.runSteps[i]);
+            b.putInt(bldg.applianceDay[i]);
+            b.putLong(bldg.applianceDraws[i]);
+            b.putDouble(bldg.activationProb[i]);
+            b.putDouble(bldg.indoorTemp[i]);
+            b.putDouble(bldg.outdoorTemp[i]);
+        }
+        final int savedSteps = steps;
+        pending = writer.submit(new Runnable() {
+            public void run() {
+                write(b, savedSteps);
+            }
+        });
+    }
+
+    // Background thread: CRC, temp file, rename over the last checkpoint
+    private void write(ByteBuffer b, int steps) {
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, b.position());
+        b.putLong(crc.getValue());
+        File tmp = new File(file.getPath() + ".tmp");
+        long t0 = System.nanoTime();
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(b.array(), 0, b.position());
+                out.getFD().sync();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug(String.format("Checkpoint at step %d: %.1f kB in %.1f ms", steps, b.position() / 1024.0, (System.nanoTime() - t0) / 1e6));
+        }
+        catch (IOException e) {
+            log.warn("Cannot write checkpoint " + file + ": " + e);
+        }
+    }
+
+    /** Wait for the last checkpoint to be written */
+    public void close() {
+        if (writer == null) return;
+        writer.shutdown();
+        try {
+            writer.awaitTermination(60, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Restore bldg (already configured from the config files) from file and return where to continue.
+     *  The buildings must be the same, in the same order, as when it was saved. */
+    public Position load(int nt) throws IOException {
+        if (!file.isFile()) throw new IOException("No checkpoint " + file + " to resume from");
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (b.remaining() < 16) throw new IOException("Checkpoint " + file + " is truncated");
+        CRC32 crc = new CRC32();
+        crc.update(b.array(), 0, b.limit() - 8);
+        if (crc.getValue() != b.getLong(b.limit() - 8)) throw new IOException("Checkpoint " + file + " is corrupt (CRC)");
+        if (b.getInt() != MAGIC) throw new IOException(file + " is not a supercontroller checkpoint");
+        if (b.getInt() != VERSION) throw new IOException("Checkpoint " + file + " is from another version");
+        b.position(0);
+        for (int k = 0; k < header.length; k++) {
+            if (b.get() != header[k]) {
+                throw new IOException("Checkpoint " + file + " is for other buildings than building_names: in config.txt");
+            }
+        }
+        if (b.limit() != size()) throw new IOException("Checkpoint " + file + " has the wrong size");
+        double time = b.getDouble();
+        int steps = b.getInt();
+        int timeLoop = b.getInt();
+        bldg.seedAppliances(b.getLong(), bldg.applianceFirst());
+        final int n = bldg.size();
+        for (int i = 0; i < n; i++) {
+            bldg.fuzzyCool[i] = b.get() != 0;
+            bldg.fuzzyHeat[i] = b.get() != 0;
+            bldg.setDishwasher[i] = b.get();
+            bldg.numActToday[i] = b.getInt();
+            bldg.runSteps[i] = b.getInt();
+            bldg.applianceDay[i] = b.getInt();
+            bldg.skipApplianceDraws(i, b.getLong());
+            bldg.activationProb[i] = b.getDouble();
+            bldg.indoorTemp[i] = b.getDouble();
+            bldg.outdoorTemp[i] = b.getDouble();
+        }
+        int day = (timeLoop + 1) / (24 * nt);
+        int stepOfDay = (timeLoop + 1) % (24 * nt);
+        log.info(String.format("Resuming from %s: logical time %s after %d steps. Start EnergyPlus at day %d of the run"
+            + " (step %d of that day, %02d:%02d)", file, time, steps, day + 1, stepOfDay, stepOfDay / nt, (stepOfDay % nt) * 60 / nt));
+        return new Position(time, steps, timeLoop);
+    }
+
+    // Magic, version, building count & names: identifies which buildings a checkpoint belongs to
+    private static byte[] header(String[] names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
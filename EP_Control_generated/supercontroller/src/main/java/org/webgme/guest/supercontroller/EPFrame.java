@@ -0,0 +1,290 @@
+/*
+File:           EPFrame.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: One message received from an EnergyPlus simulation, parsed incrementally as bytes arrive.
+       Protocol (text, one item per line):
+           header            (usually "SET", "TERMINATE" when EP is done)
+           time
+           varName           \ repeated for each variable
+           value             /
+           <blank line>      end of frame
+       Decoded in place from reusable buffers: names become EPVariables IDs and values go into a double slot
+       per ID, so once the buffers have grown to fit, a timestep produces no garbage.
+       Binary protocol, negotiated once per connection. Instead of its first frame a client may send
+           HELLO
+           1                 binary protocol version it speaks
+           varName           \ repeated for each variable it will send
+           id                /  the number it uses for it, 0-65535
+           <blank line>
+       and must wait for EPSocketServer's answer, HELLO / version / blank line. Version 0 means text as before;
+       BINARY_VERSION means every later frame, both ways, is binary (big-endian, no text at all):
+           int     length of the rest of the frame
+           byte    KIND_SET or KIND_TERMINATE
+           double  time
+           short   count
+           count x (short id, double value)
+       Clients that never send HELLO keep the text protocol. Replies: see EPReplyEncoder.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class EPFrame {
+    // Parser states, one per expected line
+    private static final int HEADER = 0;
+    private static final int TIME = 1;
+    private static final int NAME = 2;
+    private static final int VALUE = 3;
+    private static final int DONE = 4;
+
+    private static final byte[] TERMINATE = "TERMINATE".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HELLO = "HELLO".getBytes(StandardCharsets.ISO_8859_1);
+
+    /** Binary protocol version this side speaks, and the frame kinds */
+    public static final int BINARY_VERSION = 1;
+    public static final byte KIND_SET = 'S';
+    public static final byte KIND_TERMINATE = 'T';
+    public static final byte KIND_BATCH = 'B'; // replies only
+    private static final int MAX_BINARY_FRAME = 1 << 20;
+
+    private final EPVariables vars;
+    private int state = HEADER;
+    private byte[] line = new byte[64];
+    private int lineLen = 0;
+    private boolean skipLF = false; // same line ending rules as BufferedReader.readLine: \n, \r or \r\n
+
+    private boolean terminate = false;
+    private boolean hello = false;
+    private byte[] time = new byte[32];
+    private int timeLen = 0;
+    private boolean binaryTime = false; // time came as timeNumber, time[] is only formatted when asked for
+    private double timeNumber;
+
+    // Binary protocol: the client's variable numbers -> EPVariables IDs, null while the text protocol is used.
+    // A binary frame split across reads is gathered in line[], read through staged.
+    private int[] binaryIds = null;
+    private ByteBuffer staged;
+    private int currentVar = -1;
+
+    // Variables in the order received this frame
+    private int[] ids = new int[16];
+    private int count = 0;
+    // Value slot per variable ID, and whether it was received this frame
+    private double[] values;
+    private boolean[] present;
+
+    public EPFrame(EPVariables vars) {
+        this.vars = vars;
+        values = new double[vars.count()];
+        present = new boolean[vars.count()];
+        time[0] = '0';
+        timeLen = 1;
+    }
+
+    /** Consume bytes from buf until this frame is complete or buf is empty. Returns true when complete.
+     *  Bytes after the end of the frame are left in buf for the next timestep. */
+    public boolean parse(ByteBuffer buf) {
+        if (binaryIds != null) return parseBinary(buf);
+        while (state != DONE && buf.hasRemaining()) {
+            byte c = buf.get();
+            if (skipLF) {
+                skipLF = false;
+                if (c == '\n') continue;
+            }
+            if (c == '\r' || c == '\n') {
+                skipLF = (c == '\r');
+                endLine();
+            }
+            else {
+                if (lineLen == line.length) line = Arrays.copyOf(line, line.length * 2);
+                line[lineLen++] = c;
+            }
+        }
+        return state == DONE;
+    }
+
+    private void endLine() {
+        switch (state) {
+            case HEADER:
+                terminate = lineLen == TERMINATE.length && startsWith(TERMINATE);
+                hello = lineLen == HELLO.length && startsWith(HELLO);
+                state = TIME;
+                break;
+            case TIME:
+                if (lineLen > time.length) time = new byte[lineLen];
+                System.arraycopy(line, 0, time, 0, lineLen);
+                timeLen = lineLen;
+                binaryTime = false;
+                state = NAME;
+                break;
+            case NAME:
+                if (lineLen == 0) {
+                    state = DONE;
+                }
+                else {
+                    currentVar = vars.id(line, 0, lineLen);
+                    state = VALUE;
+                }
+                break;
+            case VALUE:
+                setValue(currentVar, AsciiDecimal.parseDouble(line, 0, lineLen));
+                state = NAME;
+                break;
+            default:
+                break;
+        }
+        lineLen = 0;
+    }
+
+    // One length-prefixed frame, decoded straight from buf when it is all there, else gathered in line[]
+    private boolean parseBinary(ByteBuffer buf) {
+        if (state == DONE) return true;
+        if (skipLF) { // the HELLO's last line ended with \r, drop its \n
+            if (!buf.hasRemaining()) return false;
+            skipLF = false;
+            if (buf.get(buf.position()) == '\n') buf.get();
+        }
+        if (lineLen == 0 && buf.remaining() >= 4 && buf.remaining() - 4 >= frameLength(buf.getInt(buf.position()))) {
+            decodeBinary(buf);
+            return true;
+        }
+        int need = 4;
+        while (buf.hasRemaining()) {
+            if (lineLen >= 4) need = 4 + frameLength(ByteBuffer.wrap(line, 0, 4).getInt());
+            if (lineLen == need) break;
+            if (need > line.length) line = Arrays.copyOf(line, Math.max(need, line.length * 2));
+            int n = Math.min(buf.remaining(), need - lineLen);
+            buf.get(line, lineLen, n);
+            lineLen += n;
+        }
+        if (lineLen < 4 || lineLen < 4 + frameLength(ByteBuffer.wrap(line, 0, 4).getInt())) return false;
+        if (staged == null || staged.array() != line) staged = ByteBuffer.wrap(line);
+        staged.clear();
+        decodeBinary(staged);
+        lineLen = 0;
+        return true;
+    }
+
+    private static int frameLength(int len) {
+        if (len < 11 || len > MAX_BINARY_FRAME) {
+            throw new IllegalStateException("Bad binary frame from EnergyPlus: length " + len);
+        }
+        return len;
+    }
+
+    private void decodeBinary(ByteBuffer b) {
+        int end = b.position() + 4 + b.getInt();
+        terminate = b.get() == KIND_TERMINATE;
+        timeNumber = b.getDouble();
+        binaryTime = true;
+        int n = b.getShort() & 0xFFFF;
+        for (int k = 0; k < n; k++) {
+            int clientId = b.getShort() & 0xFFFF;
+            double v = b.getDouble();
+            int id = (clientId < binaryIds.length) ? binaryIds[clientId] : -1;
+            if (id >= 0) setValue(id, v); // not in the HELLO: ignored
+        }
+        b.position(end);
+        state = DONE;
+    }
+
+    private boolean startsWith(byte[] s) {
+        for (int k = 0; k < s.length; k++) {
+            if (line[k] != s[k]) return false;
+        }
+        return true;
+    }
+
+    private void setValue(int id, double v) {
+        if (id >= values.length) { // a name registered after this frame was created
+            int n = vars.count();
+            values = Arrays.copyOf(values, n);
+            present = Arrays.copyOf(present, n);
+        }
+        if (!present[id]) {
+            if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+            present[id] = true;
+        }
+        values[id] = v;
+    }
+
+    /** Called when the connection closes. A partially received TERMINATE counts as complete. */
+    public boolean completeOnClose() {
+        if (binaryIds != null) return state == DONE;
+        if (lineLen > 0) endLine();
+        if (terminate) {
+            state = DONE;
+        }
+        return state == DONE;
+    }
+
+    public boolean isComplete() { return state == DONE; }
+
+    /** Get ready for the next timestep's message. */
+    public void reset() {
+        state = HEADER;
+        lineLen = 0;
+        terminate = false;
+        hello = false;
+        for (int k = 0; k < count; k++) {
+            present[ids[k]] = false;
+        }
+        count = 0;
+    }
+
+    public boolean isTerminate() { return terminate; }
+
+    /** A HELLO asking for the binary protocol, see the notes above. EPSocketServer answers it. */
+    public boolean isHello() { return hello; }
+
+    /** Binary protocol version the HELLO asks for */
+    public int helloVersion() { return (int) timeValue(); }
+
+    /** Switch this connection to the binary protocol, with the variable numbers of the HELLO just parsed */
+    public void useBinary() {
+        int max = -1;
+        for (int k = 0; k < count; k++) {
+            max = Math.max(max, (int) valueAt(k));
+        }
+        if (max > 0xFFFF) throw new IllegalStateException("HELLO variable number " + max + " is not 0-65535");
+        int[] map = new int[max + 1];
+        Arrays.fill(map, -1);
+        for (int k = 0; k < count; k++) {
+            if (valueAt(k) >= 0) map[(int) valueAt(k)] = varId(k);
+        }
+        binaryIds = map;
+        reset();
+    }
+
+    public boolean isBinary() { return binaryIds != null; }
+
+    /** EP simulation time exactly as received, to echo back in a text reply. */
+    public byte[] timeBytes() { formatTime(); return time; }
+    public int timeLength() { formatTime(); return timeLen; }
+    public String time() { formatTime(); return new String(time, 0, timeLen, StandardCharsets.ISO_8859_1); }
+    /** EP simulation time as a number, s */
+    public double timeValue() { return binaryTime ? timeNumber : AsciiDecimal.parseDouble(time, 0, timeLen); }
+
+    // Text of a binary frame's time, for logs
+    private void formatTime() {
+        if (!binaryTime) return;
+        ByteBuffer out = ByteBuffer.wrap(time);
+        AsciiDecimal.put(out, timeNumber);
+        timeLen = out.position();
+        binaryTime = false;
+    }
+
+    public boolean has(int varId) { return varId < present.length && present[varId]; }
+
+    /** Value of variable varId this frame, or otherwise if EP did not send it. */
+    public double value(int varId, double otherwise) { return has(varId) ? values[varId] : otherwise; }
+
+    /** Variables in the order they were received */
+    public int varCount() { return count; }
+    public int varId(int k) { return ids[k]; }
+    public double valueAt(int k) { return values[ids[k]]; }
+}
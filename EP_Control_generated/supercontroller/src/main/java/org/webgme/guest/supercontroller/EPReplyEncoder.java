@@ -0,0 +1,183 @@
+/*
+File:           EPReplyEncoder.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Writes the SET reply for one EnergyPlus simulation straight into a (direct) ByteBuffer:
+           SET
+           time                  (echoed exactly as EP sent it)
+           epGetStartCooling
+           value
+           epGetStartHeating
+           value
+           dishwasherSchedule
+           value
+           <blank line>
+       Setpoints are doubles formatted by AsciiDecimal, or text passed through as-is (Python output),
+       so building a reply creates no Strings.
+       Batch reply (batch_steps: in config_<bldg>.txt), setpoints for the next n steps in one message:
+           BATCH
+           time
+           batchSteps            n
+           indoorLow             \ EP sends its next message after n steps, or as soon as the zone
+           indoorHigh             | temperature is <= indoorLow or >= indoorHigh, or the outdoor
+           outdoorLow             | temperature <= outdoorLow or >= outdoorHigh, whichever comes
+           outdoorHigh           /  first. Unused values of the batch are dropped.
+           epGetStartCooling     v1,v2,...,vn   (vk applies where the k-th SET reply would)
+           epGetStartHeating     v1,v2,...,vn
+           dishwasherSchedule    d1,d2,...,dn
+           <blank line>
+       Connections on the binary protocol (EPFrame) get the same replies as length-prefixed binary frames:
+           SET     int length, byte KIND_SET, double time, double cooling, double heating, byte dishwasher
+           BATCH   int length, byte KIND_BATCH, double time, short n, double indoorLow, indoorHigh, outdoorLow,
+                   outdoorHigh, n x double cooling, n x double heating, n x byte dishwasher
+       Python's text setpoints are sent as their number there.
+       encodeHello() is the answer to a HELLO, always text.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public final class EPReplyEncoder {
+
+    private static final byte[] SET = bytes("SET\r\n");
+    private static final byte[] COOLING = bytes("\r\nepGetStartCooling\r\n");
+    private static final byte[] HEATING = bytes("\r\nepGetStartHeating\r\n");
+    private static final byte[] DISHWASHER = bytes("\r\ndishwasherSchedule\r\n");
+    private static final byte[] END = bytes("\r\n\r\n");
+    private static final byte[] BATCH = bytes("BATCH\r\n");
+    private static final byte[] BATCH_STEPS = bytes("\r\nbatchSteps\r\n");
+    private static final byte[] INDOOR_LOW = bytes("\r\nindoorLow\r\n");
+    private static final byte[] INDOOR_HIGH = bytes("\r\nindoorHigh\r\n");
+    private static final byte[] OUTDOOR_LOW = bytes("\r\noutdoorLow\r\n");
+    private static final byte[] OUTDOOR_HIGH = bytes("\r\noutdoorHigh\r\n");
+    private static final byte[] HELLO = bytes("HELLO\r\n");
+
+    // Binary SET reply, and a BATCH without its setpoints, length prefix included
+    private static final int BINARY_SET = 4 + 1 + 8 + 8 + 8 + 1;
+    private static final int BINARY_BATCH = 4 + 1 + 8 + 2 + 4 * 8;
+
+    // Longest text AsciiDecimal writes for a double or an int
+    private static final int MAX_NUMBER = 26;
+
+    private EPReplyEncoder() {}
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Room needed by encode() for this frame. coolText/heatText as passed to encode(). */
+    public static int maxLength(EPFrame frame, String coolText, String heatText) {
+        if (frame.isBinary()) return BINARY_SET;
+        return SET.length + frame.timeLength() + COOLING.length + HEATING.length + DISHWASHER.length + END.length
+            + (coolText == null ? MAX_NUMBER : coolText.length())
+            + (heatText == null ? MAX_NUMBER : heatText.length())
+            + MAX_NUMBER;
+    }
+
+    /** Append the SET reply to frame. A non-null coolText/heatText is sent instead of cool/heat. */
+    public static void encode(ByteBuffer out, EPFrame frame, String coolText, double cool,
+                              String heatText, double heat, int dishwasher) {
+        if (frame.isBinary()) {
+            out.putInt(BINARY_SET - 4);
+            out.put(EPFrame.KIND_SET);
+            out.putDouble(frame.timeValue());
+            out.putDouble(setpoint(coolText, cool));
+            out.putDouble(setpoint(heatText, heat));
+            out.put((byte) dishwasher);
+            return;
+        }
+        out.put(SET);
+        out.put(frame.timeBytes(), 0, frame.timeLength());
+        out.put(COOLING);
+        putValue(out, coolText, cool);
+        out.put(HEATING);
+        putValue(out, heatText, heat);
+        out.put(DISHWASHER);
+        AsciiDecimal.put(out, (long) dishwasher);
+        out.put(END);
+    }
+
+    /** Room needed by encodeBatch() for this frame and batch length */
+    public static int maxBatchLength(EPFrame frame, int steps) {
+        if (frame.isBinary()) return BINARY_BATCH + steps * 17;
+        return BATCH.length + frame.timeLength() + BATCH_STEPS.length + INDOOR_LOW.length + INDOOR_HIGH.length
+            + OUTDOOR_LOW.length + OUTDOOR_HIGH.length + COOLING.length + HEATING.length + DISHWASHER.length
+            + END.length + 5 * MAX_NUMBER + 3 * steps * (MAX_NUMBER + 1);
+    }
+
+    /** Append a BATCH reply to frame: the first steps values of cool, heat and dishwasher, and the
+     *  temperature band outside which EP reports early. */
+    public static void encodeBatch(ByteBuffer out, EPFrame frame, int steps, double indoorLow, double indoorHigh,
+                                   double outdoorLow, double outdoorHigh, double[] cool, double[] heat, byte[] dishwasher) {
+        if (frame.isBinary()) {
+            out.putInt(BINARY_BATCH - 4 + steps * 17);
+            out.put(EPFrame.KIND_BATCH);
+            out.putDouble(frame.timeValue());
+            out.putShort((short) steps);
+            out.putDouble(indoorLow);
+            out.putDouble(indoorHigh);
+            out.putDouble(outdoorLow);
+            out.putDouble(outdoorHigh);
+            for (int k = 0; k < steps; k++) out.putDouble(cool[k]);
+            for (int k = 0; k < steps; k++) out.putDouble(heat[k]);
+            out.put(dishwasher, 0, steps);
+            return;
+        }
+        out.put(BATCH);
+        out.put(frame.timeBytes(), 0, frame.timeLength());
+        out.put(BATCH_STEPS);
+        AsciiDecimal.put(out, (long) steps);
+        out.put(INDOOR_LOW);
+        AsciiDecimal.put(out, indoorLow);
+        out.put(INDOOR_HIGH);
+        AsciiDecimal.put(out, indoorHigh);
+        out.put(OUTDOOR_LOW);
+        AsciiDecimal.put(out, outdoorLow);
+        out.put(OUTDOOR_HIGH);
+        AsciiDecimal.put(out, outdoorHigh);
+        out.put(COOLING);
+        for (int k = 0; k < steps; k++) {
+            if (k > 0) out.put((byte) ',');
+            AsciiDecimal.put(out, cool[k]);
+        }
+        out.put(HEATING);
+        for (int k = 0; k < steps; k++) {
+            if (k > 0) out.put((byte) ',');
+            AsciiDecimal.put(out, heat[k]);
+        }
+        out.put(DISHWASHER);
+        for (int k = 0; k < steps; k++) {
+            if (k > 0) out.put((byte) ',');
+            AsciiDecimal.put(out, (long) dishwasher[k]);
+        }
+        out.put(END);
+    }
+
+    /** Answer to a HELLO: the protocol version used from now on, 0 = text */
+    public static void encodeHello(ByteBuffer out, int version) {
+        out.put(HELLO);
+        AsciiDecimal.put(out, (long) version);
+        out.put(END);
+    }
+
+    // Setpoint as a number: Python's text parsed, NaN if it is not one (binary protocol, ResultsSink)
+    static double setpoint(String text, double v) {
+        if (text == null) return v;
+        try {
+            return Double.parseDouble(text.trim());
+        }
+        catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static void putValue(ByteBuffer out, String text, double v) {
+        if (text != null) {
+            AsciiDecimal.putAscii(out, text);
+        }
+        else {
+            AsciiDecimal.put(out, v);
+        }
+    }
+}
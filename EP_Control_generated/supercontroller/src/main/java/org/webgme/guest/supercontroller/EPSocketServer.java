@@ -0,0 +1,665 @@
+/*
+File:           EPSocketServer.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Non-blocking socket transport for all EnergyPlus simulations.
+       One Selector multiplexes every connection, so each building is handed to the controller as soon as
+       its frame is complete instead of waiting on the buildings before it.
+       Simulation i connects at port portNo+i, same as before, or with joinAll() every simulation connects to
+       portNo and names its building first (join_mode: single in config.txt):
+           JOIN
+           buildingName      as in building_names: of config.txt
+           <blank line>
+       answered with JOIN / its building index / blank line, or REJECT / reason / blank line and a close for a
+       name that is unknown or already joined. Either way connections are admitted as they come, in any order.
+Usage:
+       server.acceptAll(timeout);           // once, at startup, or server.joinAll(names, timeout)
+       server.beginStep();                  // every timestep
+       while ((i = server.nextFrame()) >= 0) {
+           EPFrame f = server.frame(i);
+           ByteBuffer out = server.replyBuffer(i, n); ... encode reply into out ...
+           server.send(i);
+       }
+       server.flush();                      // all replies written before time advance
+       Only the thread running the loop may call these, except replyBuffer() and sendLater() which the thread
+       handling building i may call.
+       Replies are encoded into preallocated slices of one direct buffer and written with a single write
+       per socket, so the send side creates no garbage.
+       beginStep(quiet) is for batch replies: quiet buildings owe no frame this step, but one that arrives
+       anyway (an early report) is handed out too; defer(i) keeps it for the next step instead, and
+       expectAgain(i) lets a building that is behind this step send another one after its reply.
+       nextFrame(deadline) returns LATE if the deadline passes with frames still owed, or with a building still
+       expected again; skip(i) then lets the step go on without building i (its frame is handed out in a
+       later step) and drop(i) disconnects it (StepDeadline). With dropOnClose(true) a simulation that closes
+       its connection without a complete frame is disconnected the same way instead of failing the step,
+       and reported once by lost(i).
+       At shutdown, owe(i) makes a building skipped in the last step (skipped(i)) owe a frame again, so its
+       EnergyPlus can still get the reply it waits for before it finishes.
+       A simulation may open with a HELLO asking for the binary protocol (EPFrame); it is answered here, never
+       handed out, and the connection is binary from then on if acceptBinary. Others keep the text protocol.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class EPSocketServer {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int REPLY_SLOT = 256; // bytes per building, enough for any SET reply with numeric setpoints
+
+    /** nextFrame(deadline): the deadline passed, some buildings still owe a frame */
+    public static final int LATE = -2;
+
+    private final InetAddress addr;
+    private final int portNo;
+    private final int numSims;
+    private final boolean acceptBinary;
+    private final Selector selector;
+
+    private final SocketChannel[] channels;
+    private final SelectionKey[] keys;
+    private final ByteBuffer[] readBuf;
+    private final ByteBuffer[] replyBuf;
+    private final ByteBuffer[] writeBuf; // reply being written, or null
+    private final EPFrame[] frames;
+    private final boolean[] received; // frame for this step already handed out
+    private final boolean[] closed;
+    private final boolean[] optional; // no frame owed this step, one is handed out if it arrives in time
+    private final boolean[] again; // may send another frame this step once its reply is sent
+    private int againPending = 0;
+    private final boolean[] skipped; // skip(i) went on without a frame it owed this step
+    private final boolean[] lost; // closed the connection without finishing, not reported by lost(i) yet
+    private boolean dropOnClose = false;
+
+    // Buildings with a complete frame not yet handed out, a ring indexed modulo numSims. Each building is
+    // in it at most once at a time.
+    private final int[] ready;
+    private int readyHead = 0, readyTail = 0;
+    private int remaining = 0; // buildings still to be received this step
+    private int pendingWrites = 0;
+
+    // Replies finished by worker threads (building index + 1, 0 = not yet), written by the event loop thread.
+    // A ring like ready: a building has at most one reply in it at a time.
+    private final AtomicIntegerArray outbox;
+    private final AtomicInteger outboxTail = new AtomicInteger();
+    private int outboxHead = 0;
+
+    public EPSocketServer(InetAddress addr, int portNo, int numSims, EPVariables vars) throws IOException {
+        this(addr, portNo, numSims, vars, true);
+    }
+
+    /** acceptBinary false answers every HELLO with version 0: text protocol only */
+    public EPSocketServer(InetAddress addr, int portNo, int numSims, EPVariables vars, boolean acceptBinary) throws IOException {
+        this.addr = addr;
+        this.portNo = portNo;
+        this.numSims = numSims;
+        this.acceptBinary = acceptBinary;
+        this.selector = Selector.open();
+        channels = new SocketChannel[numSims];
+        keys = new SelectionKey[numSims];
+        readBuf = new ByteBuffer[numSims];
+        replyBuf = new ByteBuffer[numSims];
+        writeBuf = new ByteBuffer[numSims];
+        frames = new EPFrame[numSims];
+        received = new boolean[numSims];
+        closed = new boolean[numSims];
+        optional = new boolean[numSims];
+        again = new boolean[numSims];
+        lost = new boolean[numSims];
+        skipped = new boolean[numSims];
+        ready = new int[numSims];
+        outbox = new AtomicIntegerArray(numSims);
+        ByteBuffer replies = ByteBuffer.allocateDirect(numSims * REPLY_SLOT);
+        for (int i = 0; i < numSims; i++) {
+            readBuf[i] = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            readBuf[i].flip(); // start empty, in read mode
+            replies.limit((i + 1) * REPLY_SLOT).position(i * REPLY_SLOT);
+            replyBuf[i] = replies.slice();
+            frames[i] = new EPFrame(vars);
+        }
+    }
+
+    /** Listen on portNo+i for every simulation and wait until all of them have connected.
+     *  Simulations may connect in any order. */
+    public void acceptAll() throws IOException {
+        acceptAll(0);
+    }
+
+    /** acceptAll(), giving up with an IOException naming the missing ports after timeoutMs (0 = wait forever) */
+    public void acceptAll(long timeoutMs) throws IOException {
+        long deadline = deadline(timeoutMs);
+        ServerSocketChannel[] welcome = new ServerSocketChannel[numSims];
+        for (int i = 0; i < numSims; i++) {
+            welcome[i] = ServerSocketChannel.open();
+            welcome[i].bind(new InetSocketAddress(addr, portNo + i), 50);
+            welcome[i].configureBlocking(false);
+            welcome[i].register(selector, SelectionKey.OP_ACCEPT, Integer.valueOf(i));
+            log.info("Waiting for EnergyPlus Simulation at " + (portNo + i));
+        }
+        int connected = 0;
+        while (connected < numSims) {
+            if (!selectUntil(deadline)) {
+                throw new IOException("Join timeout: no EnergyPlus simulation at ports " + missing(null) + " after " + timeoutMs / 1000 + " s");
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                int i = ((Integer) k.attachment()).intValue();
+                SocketChannel ch = welcome[i].accept();
+                if (ch == null) continue;
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                channels[i] = ch;
+                keys[i] = ch.register(selector, 0, Integer.valueOf(i)); // start reading once everyone is in
+                k.cancel();
+                welcome[i].close();
+                connected++;
+                log.info("Connection to EnergyPlus simulation at " + (portNo + i) + " successful!");
+            }
+        }
+        startReading();
+    }
+
+    // A connection to the join port that has not named its building yet
+    private static final class Joining {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(1024);
+
+        Joining(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** Listen on portNo only. Each simulation sends JOIN / its building name, and becomes simulation i for
+     *  names[i]. Returns once every building has joined; throws an IOException naming the missing buildings
+     *  after timeoutMs (0 = wait forever). */
+    public void joinAll(String[] names, long timeoutMs) throws IOException {
+        long deadline = deadline(timeoutMs);
+        Map<String, Integer> slot = new HashMap<String, Integer>();
+        for (int i = 0; i < numSims; i++) {
+            slot.put(names[i], Integer.valueOf(i));
+        }
+        ServerSocketChannel welcome = ServerSocketChannel.open();
+        welcome.bind(new InetSocketAddress(addr, portNo), Math.max(50, numSims));
+        welcome.configureBlocking(false);
+        SelectionKey welcomeKey = welcome.register(selector, SelectionKey.OP_ACCEPT);
+        log.info("Waiting for " + numSims + " EnergyPlus simulations to join at " + portNo);
+        int joined = 0;
+        while (joined < numSims) {
+            if (!selectUntil(deadline)) {
+                throw new IOException("Join timeout: " + missing(names) + " did not join port " + portNo + " within " + timeoutMs / 1000 + " s");
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+                if (k == welcomeKey) {
+                    SocketChannel ch;
+                    while ((ch = welcome.accept()) != null) {
+                        ch.configureBlocking(false);
+                        ch.socket().setTcpNoDelay(true);
+                        ch.register(selector, SelectionKey.OP_READ, new Joining(ch));
+                    }
+                    continue;
+                }
+                if (k.isValid() && k.isReadable() && join(k, (Joining) k.attachment(), slot)) {
+                    joined++;
+                }
+            }
+        }
+        welcomeKey.cancel();
+        welcome.close();
+        startReading();
+    }
+
+    // Read a JOIN. True once it named a building that had not joined yet; answered either way.
+    private boolean join(SelectionKey k, Joining j, Map<String, Integer> slot) throws IOException {
+        int n = j.channel.read(j.in);
+        int end = messageEnd(j.in);
+        if (n < 0 || (end < 0 && !j.in.hasRemaining())) { // gone, or not a JOIN
+            k.cancel();
+            j.channel.close();
+            return false;
+        }
+        if (end < 0) return false;
+        String[] lines = new String(j.in.array(), 0, end, StandardCharsets.ISO_8859_1).split("\r\n|\r|\n");
+        String name = (lines.length >= 2 && lines[0].equals("JOIN")) ? lines[1].trim() : null;
+        Integer i = (name == null) ? null : slot.get(name);
+        if (i == null || channels[i] != null) {
+            String reason = (name == null) ? "expected JOIN" : (i == null) ? "unknown building " + name : name + " already joined";
+            log.warn("Join from " + j.channel.socket().getRemoteSocketAddress() + " rejected: " + reason);
+            writeFully(j.channel, "REJECT\r\n" + reason + "\r\n\r\n");
+            k.cancel();
+            j.channel.close();
+            return false;
+        }
+        channels[i] = j.channel;
+        keys[i] = k;
+        k.attach(i);
+        k.interestOps(0); // start reading once everyone is in
+        // whatever the simulation sent after its JOIN (a HELLO, its first frame) is its data
+        j.in.flip().position(end);
+        readBuf[i].compact();
+        readBuf[i].put(j.in);
+        readBuf[i].flip();
+        writeFully(j.channel, "JOIN\r\n" + i + "\r\n\r\n");
+        log.info("EnergyPlus simulation " + name + " joined as building " + i);
+        return true;
+    }
+
+    // End of the first message in buf (just after its blank line), or -1 if it is not all there
+    private static int messageEnd(ByteBuffer buf) {
+        byte[] b = buf.array();
+        int limit = buf.position();
+        int lineStart = 0;
+        for (int p = 0; p < limit; p++) {
+            if (b[p] != '\r' && b[p] != '\n') continue;
+            int next = p + 1;
+            if (b[p] == '\r') {
+                if (next == limit) return -1; // \r\n split across reads
+                if (b[next] == '\n') next++;
+            }
+            if (p == lineStart) return next;
+            lineStart = next;
+            p = next - 1;
+        }
+        return -1;
+    }
+
+    // Short answers on a fresh connection: its send buffer is empty, so this does not spin
+    private static void writeFully(SocketChannel ch, String text) throws IOException {
+        ByteBuffer out = ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1));
+        while (out.hasRemaining()) ch.write(out);
+    }
+
+    private static long deadline(long timeoutMs) {
+        return (timeoutMs > 0) ? System.currentTimeMillis() + timeoutMs : Long.MAX_VALUE;
+    }
+
+    // select() until something is ready or the deadline passes. False at the deadline.
+    private boolean selectUntil(long deadline) throws IOException {
+        while (true) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            if (selector.select(Math.min(left, 1000)) > 0) return true;
+        }
+    }
+
+    // Buildings not connected yet: names, or ports if names is null. The first 10.
+    private String missing(String[] names) {
+        List<String> m = new ArrayList<String>();
+        int count = 0;
+        for (int i = 0; i < numSims; i++) {
+            if (channels[i] != null) continue;
+            if (count++ < 10) m.add((names != null) ? names[i] : String.valueOf(portNo + i));
+        }
+        return m + ((count > 10) ? " and " + (count - 10) + " more" : "");
+    }
+
+    // Everyone is in: stop accepting and start reading
+    private void startReading() throws IOException {
+        selector.selectNow(); // flush cancelled accept keys
+        for (int i = 0; i < numSims; i++) {
+            keys[i].interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /** Start a new timestep: every open connection owes one frame. */
+    public void beginStep() throws IOException {
+        beginStep(null);
+    }
+
+    /** Start a new timestep: every open connection except those with quiet[i] set owes one frame.
+     *  A quiet building's frame is still handed out if it is complete before the last owed frame. */
+    public void beginStep(boolean[] quiet) throws IOException {
+        readyHead = 0;
+        readyTail = 0;
+        outboxHead = 0;
+        outboxTail.set(0);
+        remaining = 0;
+        for (int i = 0; i < numSims; i++) {
+            skipped[i] = false;
+            if (received[i]) frames[i].reset(); // else a deferred or partly received early report
+            boolean deferred = frames[i].isComplete();
+            if (closed[i] && !deferred && readBuf[i].hasRemaining()) { // e.g. a TERMINATE read with the close
+                deferred = parseFrame(i) || frames[i].completeOnClose();
+            }
+            received[i] = closed[i] && !deferred;
+            if (received[i]) continue;
+            optional[i] = quiet != null && quiet[i] && !closed[i];
+            if (!optional[i]) remaining++;
+            // data for this step may already be sitting in the buffer
+            if (deferred || parseFrame(i)) queue(i);
+        }
+    }
+
+    // Parse what building i has sent. True once a frame to hand out is complete; a HELLO is answered instead.
+    private boolean parseFrame(int i) throws IOException {
+        while (frames[i].parse(readBuf[i])) {
+            if (!frames[i].isHello()) return true;
+            handshake(i);
+        }
+        return false;
+    }
+
+    // Answer building i's HELLO, switching its connection to the binary protocol if both sides speak it
+    private void handshake(int i) throws IOException {
+        EPFrame f = frames[i];
+        int version = (acceptBinary && f.helloVersion() >= EPFrame.BINARY_VERSION) ? EPFrame.BINARY_VERSION : 0;
+        if (version > 0) {
+            f.useBinary();
+        }
+        f.reset();
+        if (closed[i]) return;
+        ByteBuffer out = replyBuf[i];
+        out.clear();
+        EPReplyEncoder.encodeHello(out, version);
+        out.flip();
+        writeBuf[i] = out;
+        pendingWrites++;
+        writePending(i);
+        log.info("EnergyPlus simulation at " + (portNo + i) + ((version > 0) ? " uses the binary protocol" : " uses the text protocol"));
+    }
+
+    // Hand out building i's complete frame. An optional frame is extra: one more to hand out
+    private void queue(int i) {
+        ready[readyTail++ % numSims] = i;
+        if (optional[i]) remaining++;
+    }
+
+    /** Give back the frame nextFrame() just returned, unanswered: it is handed out again next step. */
+    public void defer(int i) {
+        received[i] = false;
+    }
+
+    /** Building i's frame is from an EP time behind this step (an early report answered late): once its
+     *  reply is sent, hand out the next frame it sends this step too, if any. Call before send(i)/sendLater(i). */
+    public void expectAgain(int i) {
+        again[i] = true;
+        againPending++;
+    }
+
+    /** Block until some building's frame is complete and return its index, or -1 once every building
+     *  has been handed out this step. */
+    public int nextFrame() throws IOException {
+        return nextFrame(Long.MAX_VALUE);
+    }
+
+    /** nextFrame(), but return LATE once System.nanoTime() passes deadline with frames still owed
+     *  (Long.MAX_VALUE = no deadline). */
+    public int nextFrame(long deadline) throws IOException {
+        while (remaining > 0 || againPending > 0) {
+            drainOutbox();
+            if (readyHead < readyTail) {
+                int i = ready[readyHead++ % numSims];
+                received[i] = true;
+                remaining--;
+                return i;
+            }
+            if (deadline == Long.MAX_VALUE) {
+                selector.select();
+            }
+            else {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return LATE;
+                selector.select(Math.max(1, left / 1000000));
+            }
+            processSelected();
+        }
+        return -1;
+    }
+
+    /** True if nextFrame() would return a frame without waiting: checks the sockets but never blocks */
+    public boolean frameReady() throws IOException {
+        if (readyHead < readyTail) return true;
+        if (remaining == 0 && againPending == 0) return false;
+        drainOutbox();
+        if (selector.selectNow() > 0) processSelected();
+        return readyHead < readyTail;
+    }
+
+    /** Building i still owes its frame this step, or is expected again (expectAgain) */
+    public boolean owed(int i) {
+        return (!received[i] && !optional[i] && !closed[i]) || again[i];
+    }
+
+    /** Go on without building i's frame this step. It is handed out whenever it is complete, from the next
+     *  step on (or later in this one, if another frame is still awaited). A building expected again is not
+     *  waited for any more. */
+    public void skip(int i) {
+        if (owed(i) && !closed[i]) skipped[i] = true;
+        if (again[i]) {
+            again[i] = false;
+            againPending--;
+        }
+        if (received[i] || optional[i] || closed[i]) return;
+        optional[i] = true;
+        remaining--;
+    }
+
+    /** Building i was skipped this step with a frame owed, and is still connected */
+    public boolean skipped(int i) {
+        return skipped[i] && !closed[i];
+    }
+
+    /** Building i owes one more frame this step: the next one it sends, after the one it was last handed out
+     *  (whose reply must have been sent). False if it is disconnected or already owes one. */
+    public boolean owe(int i) throws IOException {
+        if (closed[i] || owed(i)) return false;
+        if (received[i]) {
+            frames[i].reset();
+            received[i] = false;
+        }
+        else if (frames[i].isComplete()) {
+            return false; // queued already
+        }
+        optional[i] = false;
+        remaining++;
+        if (parseFrame(i)) queue(i);
+        return true;
+    }
+
+    /** true: a simulation closing its connection mid-timestep is disconnected like drop(i), for lost(i).
+     *  false (default): that fails the step with an IOException. */
+    public void dropOnClose(boolean drop) {
+        dropOnClose = drop;
+    }
+
+    /** Building i's simulation closed its connection without a TERMINATE since the last call (dropOnClose) */
+    public boolean lost(int i) {
+        if (!lost[i]) return false;
+        lost[i] = false;
+        return true;
+    }
+
+    /** Disconnect building i: skip it now and in every later step */
+    public void drop(int i) {
+        skip(i);
+        if (closed[i]) return;
+        closed[i] = true;
+        keys[i].cancel();
+        readBuf[i].position(readBuf[i].limit()); // whatever it sent is ignored
+        frames[i].reset();
+        if (writeBuf[i] != null && writeBuf[i].hasRemaining()) {
+            writeBuf[i] = null;
+            pendingWrites--;
+        }
+        try {
+            channels[i].close();
+        }
+        catch (IOException e) {
+            log.debug("Closing dropped EnergyPlus simulation at " + (portNo + i) + ": " + e);
+        }
+    }
+
+    private void processSelected() throws IOException {
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey k = it.next();
+            it.remove();
+            if (!k.isValid()) continue;
+            int i = ((Integer) k.attachment()).intValue();
+            if (k.isWritable()) {
+                writePending(i);
+            }
+            if (k.isValid() && k.isReadable()) {
+                readAvailable(i);
+            }
+        }
+    }
+
+    private void readAvailable(int i) throws IOException {
+        ByteBuffer buf = readBuf[i];
+        buf.compact();
+        if (!buf.hasRemaining()) { // one frame bigger than the buffer, grow it
+            ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+            readBuf[i] = buf;
+        }
+        int n = channels[i].read(buf);
+        buf.flip();
+        if (n < 0) {
+            keys[i].cancel();
+            closed[i] = true;
+            if (writeBuf[i] != null && writeBuf[i].hasRemaining()) { // nobody left to read it
+                writeBuf[i] = null;
+                pendingWrites--;
+            }
+            if (!received[i] && !frames[i].isComplete()) {
+                if (parseFrame(i) || frames[i].completeOnClose()) {
+                    queue(i);
+                }
+                else if (dropOnClose) { // as drop(i): nothing more is owed or read
+                    if (!optional[i]) remaining--;
+                    optional[i] = true;
+                    readBuf[i].position(readBuf[i].limit());
+                    frames[i].reset();
+                    lost[i] = true;
+                }
+                else {
+                    throw new IOException("EnergyPlus simulation at " + (portNo + i) + " closed the connection mid-timestep");
+                }
+            }
+            else if (dropOnClose && received[i] && !frames[i].isTerminate()) { // between frames
+                lost[i] = true;
+            }
+            log.info("EnergyPlus simulation at " + (portNo + i) + " disconnected");
+            return;
+        }
+        if (!received[i] && !frames[i].isComplete() && parseFrame(i)) {
+            queue(i);
+        }
+    }
+
+    public EPFrame frame(int i) {
+        return frames[i];
+    }
+
+    /** Empty buffer to encode building i's reply into, with room for at least minCapacity bytes.
+     *  Belongs to whoever handles building i until send(i)/sendLater(i). */
+    public ByteBuffer replyBuffer(int i, int minCapacity) {
+        if (replyBuf[i].capacity() < minCapacity) { // unusually long reply (e.g. Python text), outgrow the slot
+            replyBuf[i] = ByteBuffer.allocateDirect(Math.max(minCapacity, 2 * replyBuf[i].capacity()));
+        }
+        replyBuf[i].clear();
+        return replyBuf[i];
+    }
+
+    /** Send the reply encoded in replyBuffer(i): write as much as the socket takes right now. */
+    public void send(int i) throws IOException {
+        if (closed[i]) { // EP already hung up after TERMINATE
+            receiveAgain(i);
+            return;
+        }
+        ByteBuffer out = replyBuf[i];
+        out.flip();
+        writeBuf[i] = out;
+        pendingWrites++;
+        writePending(i);
+        receiveAgain(i);
+    }
+
+    private void receiveAgain(int i) throws IOException {
+        if (!again[i]) return;
+        again[i] = false;
+        againPending--;
+        if (closed[i]) return;
+        frames[i].reset();
+        received[i] = false;
+        optional[i] = true;
+        if (parseFrame(i)) queue(i);
+    }
+
+    private void writePending(int i) throws IOException {
+        ByteBuffer out = writeBuf[i];
+        if (out == null || !out.hasRemaining()) return;
+        channels[i].write(out);
+        if (out.hasRemaining()) {
+            keys[i].interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+        else {
+            keys[i].interestOps(SelectionKey.OP_READ);
+            pendingWrites--;
+        }
+    }
+
+    /** Thread-safe version of send(): hand the reply to the event loop and wake it to write it. */
+    public void sendLater(int i) {
+        outbox.set(outboxTail.getAndIncrement() % numSims, i + 1);
+        selector.wakeup();
+    }
+
+    private void drainOutbox() throws IOException {
+        // slots are claimed in order but may be filled out of order; stop at the first one still empty
+        int next;
+        while ((next = outbox.get(outboxHead % numSims)) != 0) {
+            outbox.set(outboxHead++ % numSims, 0);
+            send(next - 1);
+        }
+    }
+
+    /** Block until every queued reply has been written. */
+    public void flush() throws IOException {
+        drainOutbox();
+        while (pendingWrites > 0) {
+            selector.select();
+            processSelected();
+        }
+    }
+
+    public int numSims() { return numSims; }
+
+    public void close() {
+        try {
+            for (int i = 0; i < numSims; i++) {
+                if (channels[i] != null) channels[i].close();
+            }
+            selector.close();
+        }
+        catch (IOException e) {
+            log.warn("Error closing EnergyPlus sockets", e);
+        }
+    }
+}
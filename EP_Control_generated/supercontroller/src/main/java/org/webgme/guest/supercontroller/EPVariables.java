@@ -0,0 +1,124 @@
+/*
+File:           EPVariables.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Registry of the variable names EnergyPlus sends, each mapped to a small int ID.
+       Names are looked up straight from the received bytes, so decoding a frame never builds a String.
+       Add any variable that you want to get from EnergyPlus here: new constant + name in NAMES, same position.
+       Names have to match the modelDescription.xml file.
+       Names EP sends that are not listed get an ID the first time they are seen, which is the only time
+       the registry allocates.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class EPVariables {
+    // Known variables. IDs are positions in NAMES so they can be used in switch statements.
+    public static final int OUTDOOR_AIR_TEMP = 0;
+    public static final int ZONE_MEAN_AIR_TEMP = 1;
+    public static final int ZONE_HUMIDITY = 2;
+    public static final int HEATING_ENERGY = 3;
+    public static final int COOLING_ENERGY = 4;
+    public static final int NET_ENERGY = 5;
+    public static final int ENERGY_PURCHASED = 6;
+    public static final int ENERGY_SURPLUS = 7;
+    public static final int DAY_OF_WEEK = 8;
+    public static final int SOLAR_RADIATION = 9;
+    public static final int HEATING_SETPOINT = 10;
+    public static final int COOLING_SETPOINT = 11;
+
+    private static final String[] NAMES = {
+        "epSendOutdoorAirTemp",
+        "epSendZoneMeanAirTemp",
+        "epSendZoneHumidity",
+        "epSendHeatingEnergy",
+        "epSendCoolingEnergy",
+        "epSendNetEnergy",
+        "epSendEnergyPurchased",
+        "epSendEnergySurplus",
+        "epSendDayOfWeek",
+        "epSendSolarRadiation",
+        "epSendHeatingSetpoint",
+        "epSendCoolingSetpoint",
+    };
+
+    // Open addressing hash table of IDs, keyed on the name bytes. Replaced, never modified, when it
+    // grows so other threads can keep reading names while the event loop registers a new one.
+    private static final class Table {
+        final byte[][] names;
+        final String[] strings;
+        final int[] slots; // -1 = empty
+        final int count;
+
+        Table(byte[][] names, String[] strings, int count) {
+            this.names = names;
+            this.strings = strings;
+            this.count = count;
+            int size = Integer.highestOneBit(Math.max(16, count * 4) - 1) << 1;
+            slots = new int[size];
+            Arrays.fill(slots, -1);
+            for (int id = 0; id < count; id++) {
+                int h = hash(names[id], 0, names[id].length) & (size - 1);
+                while (slots[h] >= 0) h = (h + 1) & (size - 1);
+                slots[h] = id;
+            }
+        }
+    }
+
+    private volatile Table table;
+
+    public EPVariables() {
+        byte[][] b = new byte[NAMES.length][];
+        for (int id = 0; id < NAMES.length; id++) {
+            b[id] = NAMES[id].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        table = new Table(b, NAMES.clone(), NAMES.length);
+    }
+
+    static int hash(byte[] buf, int off, int len) {
+        int h = 0x811c9dc5; // FNV-1a
+        for (int k = off; k < off + len; k++) {
+            h = (h ^ (buf[k] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /** ID of the name in buf[off, off+len), registering it if it is new. Event loop thread only. */
+    public int id(byte[] buf, int off, int len) {
+        Table t = table;
+        int mask = t.slots.length - 1;
+        int h = hash(buf, off, len) & mask;
+        int id;
+        while ((id = t.slots[h]) >= 0) {
+            byte[] name = t.names[id];
+            if (name.length == len && regionEquals(name, buf, off, len)) return id;
+            h = (h + 1) & mask;
+        }
+        return register(buf, off, len);
+    }
+
+    private static boolean regionEquals(byte[] name, byte[] buf, int off, int len) {
+        for (int k = 0; k < len; k++) {
+            if (name[k] != buf[off + k]) return false;
+        }
+        return true;
+    }
+
+    private synchronized int register(byte[] buf, int off, int len) {
+        Table t = table;
+        int n = t.count;
+        byte[][] names = Arrays.copyOf(t.names, n + 1);
+        String[] strings = Arrays.copyOf(t.strings, n + 1);
+        names[n] = Arrays.copyOfRange(buf, off, off + len);
+        strings[n] = new String(names[n], StandardCharsets.ISO_8859_1);
+        table = new Table(names, strings, n + 1);
+        return n;
+    }
+
+    /** Number of IDs handed out so far. */
+    public int count() { return table.count; }
+
+    public String name(int id) { return table.strings[id]; }
+}
@@ -0,0 +1,97 @@
+/*
+File:           LatencyHistogram.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Fixed-size log-linear histogram of durations in nanoseconds, for latency percentiles without keeping
+       every sample. Values below 32 are exact; above, each power of 2 is split into 32 buckets, so a
+       percentile is within ~3% of the true value. 1888 counters cover 0 ns to 292 years.
+       record() never allocates. Not thread-safe: one thread records, or callers synchronize.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import java.util.Arrays;
+
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB + (63 - SUB_BITS) * SUB;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS;
+        return SUB + shift * SUB + (int) ((v >>> shift) & (SUB - 1));
+    }
+
+    // Smallest value counted in bucket idx
+    static long lowerBound(int idx) {
+        if (idx < SUB) return idx;
+        int shift = (idx - SUB) / SUB;
+        return (long) (SUB + (idx - SUB) % SUB) << shift;
+    }
+
+    /** Add one duration, in ns. Negative values count as 0. */
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts[index(v)]++;
+        total++;
+        sum += v;
+        if (v < min) min = v;
+        if (v > max) max = v;
+    }
+
+    /** Add all of other's samples to this one. */
+    public void add(LatencyHistogram other) {
+        for (int k = 0; k < BUCKETS; k++) counts[k] += other.counts[k];
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() { return total; }
+
+    public long max() { return max; }
+
+    public long min() { return total == 0 ? 0 : min; }
+
+    public double mean() { return total == 0 ? 0 : (double) sum / total; }
+
+    /** Value at percentile p (0-100), in ns: middle of the bucket holding it, clamped to [min, max]. 0 if empty. */
+    public long percentile(double p) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(p / 100.0 * total);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int k = 0; k < BUCKETS; k++) {
+            seen += counts[k];
+            if (seen >= rank) {
+                long lo = lowerBound(k);
+                long hi = (k + 1 < BUCKETS) ? lowerBound(k + 1) : Long.MAX_VALUE;
+                long mid = lo + (hi - lo - 1) / 2;
+                return Math.max(min, Math.min(max, mid));
+            }
+        }
+        return max;
+    }
+
+    /** "p50 1.234 ms  p90 ...  p99 ...  p99.9 ...  max ..." */
+    public String summary() {
+        return String.format("p50 %.3f ms  p90 %.3f ms  p99 %.3f ms  p99.9 %.3f ms  max %.3f ms  (n=%d)",
+                percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6,
+                max / 1e6, total);
+    }
+}
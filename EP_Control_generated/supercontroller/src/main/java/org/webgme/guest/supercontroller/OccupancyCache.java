@@ -0,0 +1,129 @@
+/*
+File:           OccupancyCache.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Shared occupancy datasets for all buildings (occupancy_dataset: in config_<bldg>.txt).
+       Each distinct file is opened once, and files with identical contents (same size & CRC32) share one
+       OccupancyStore, so 1000 buildings using 50 profiles hold 50 datasets.
+       Datasets are memory-mapped, so they live in the OS page cache instead of the Java heap. The cache itself
+       keeps at most maxBytes of datasets, evicting the least recently used first. Buildings already holding an
+       evicted dataset keep using it; it is reopened (mapped again, no CSV parsing) the next time it is asked for.
+       preload() opens all distinct files in parallel at startup.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class OccupancyCache {
+    private final static Logger log = LogManager.getLogger();
+
+    private final int rowsPerDay;
+    private final int maxRows;
+    private final long maxBytes;
+
+    // canonical path -> dataset, in least recently used order
+    private final LinkedHashMap<String, OccupancyStore> byPath = new LinkedHashMap<String, OccupancyStore>(16, 0.75f, true);
+    // "size:crc" -> dataset, so copies of the same file share one store
+    private final HashMap<String, OccupancyStore> byContent = new HashMap<String, OccupancyStore>();
+    private long bytes = 0;
+
+    /** rowsPerDay = 24 * timesteps per hour. maxRows: steps the simulation needs, like OccupancyStore.limit(). */
+    public OccupancyCache(int rowsPerDay, int maxRows, long maxBytes) {
+        this.rowsPerDay = rowsPerDay;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Dataset of csv, opened (or converted) if it is not cached. Thread-safe. */
+    public OccupancyStore get(File csv) throws IOException {
+        String path = csv.getCanonicalPath();
+        synchronized (this) {
+            OccupancyStore s = byPath.get(path);
+            if (s != null) return s;
+        }
+        return add(path, OccupancyStore.open(new File(path), rowsPerDay).limit(maxRows));
+    }
+
+    private synchronized OccupancyStore add(String path, OccupancyStore opened) {
+        OccupancyStore s = byPath.get(path);
+        if (s != null) return s; // another thread opened it first
+        String content = opened.sourceSize() + ":" + opened.sourceCrc();
+        s = byContent.get(content);
+        if (s == null) {
+            s = opened;
+            byContent.put(content, s);
+            bytes += s.byteSize();
+        }
+        byPath.put(path, s);
+        evict();
+        return s;
+    }
+
+    // Drop least recently used datasets until under budget. Buildings that hold one keep using it.
+    private void evict() {
+        Iterator<Map.Entry<String, OccupancyStore>> it = byPath.entrySet().iterator();
+        while (bytes > maxBytes && byPath.size() > 1 && it.hasNext()) {
+            OccupancyStore s = it.next().getValue();
+            it.remove();
+            if (!byPath.containsValue(s)) { // no other path shares it
+                byContent.values().remove(s);
+                bytes -= s.byteSize();
+            }
+        }
+    }
+
+    /** Open every distinct file in parallel. Throws the first failure. */
+    public void preload(Collection<File> files, int threads) throws IOException {
+        LinkedHashSet<String> paths = new LinkedHashSet<String>();
+        for (File f : files) {
+            paths.add(f.getCanonicalPath());
+        }
+        long t0 = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, paths.size())));
+        try {
+            List<Future<OccupancyStore>> pending = new ArrayList<Future<OccupancyStore>>();
+            for (final String p : paths) {
+                pending.add(pool.submit(new Callable<OccupancyStore>() {
+                    public OccupancyStore call() throws IOException { return get(new File(p)); }
+                }));
+            }
+            for (Future<OccupancyStore> f : pending) {
+                f.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading occupancy data", e);
+        }
+        catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof IOException) throw (IOException) c;
+            throw new IOException("Could not load occupancy data", c);
+        }
+        finally {
+            pool.shutdown();
+        }
+        log.info(String.format("Loaded %d occupancy files (%d distinct datasets, %.1f kB) in %.1f ms",
+                paths.size(), distinct(), bytes / 1024.0, (System.nanoTime() - t0) / 1e6));
+    }
+
+    /** Number of different datasets currently cached. */
+    public synchronized int distinct() { return byContent.size(); }
+}
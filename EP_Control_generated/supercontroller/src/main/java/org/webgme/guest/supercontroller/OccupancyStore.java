@@ -0,0 +1,262 @@
+/*
+File:           OccupancyStore.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Occupancy data (e.g. OccupancyAnnualHourly.csv) as primitive columns in a binary file memory-mapped at
+       startup, instead of parsing the CSV into ArrayLists every run.
+       The binary file <csv>.occ is built from the CSV the first time and whenever the CSV changes
+       (size & modification time, or CRC32 of the contents if only the time changed).
+       Two CSV formats are read:
+           table (OccupancyAnnualHourly.csv): header line, then one row per step. Columns used: B = probability,
+               D = occupancy status (0/1), E = comfort range. Rows with fewer than 5 columns are ignored.
+           status list (Occupancy8Days.csv): only 0/1 values, comma separated, no header. Probability is taken
+               as the status and comfort range as 0.
+       Also stores how many steps are occupied in each day, used by the appliance scheduler.
+       Layout (big endian):
+           header     magic "OCC1", rows, rowsPerDay, days, source size, source mtime, source CRC32
+           status     byte[rows], padded to 8 bytes
+           prob       double[rows]
+           comfort    double[rows]
+           occupied   int[days]      occupied steps per day, full days only
+       Probabilities stay 64-bit: as float, 0.817 becomes 0.81699997 and the setpoints would shift.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public final class OccupancyStore {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final int MAGIC = 0x4F434331; // "OCC1"
+    private static final int HEADER = 48;
+
+    private final ByteBuffer data; // whole file, header included
+    private final ByteBuffer status;
+    private final DoubleBuffer prob;
+    private final DoubleBuffer comfort;
+    private final IntBuffer occupied;
+    private final int rows;
+    private final int rowsPerDay;
+    private final int days;
+
+    private OccupancyStore(ByteBuffer data, ByteBuffer status, DoubleBuffer prob, DoubleBuffer comfort, IntBuffer occupied,
+                           int rows, int rowsPerDay, int days) {
+        this.data = data;
+        this.status = status;
+        this.prob = prob;
+        this.comfort = comfort;
+        this.occupied = occupied;
+        this.rows = rows;
+        this.rowsPerDay = rowsPerDay;
+        this.days = days;
+    }
+
+    /** Open the occupancy data of csv, (re)building csv.occ if needed. rowsPerDay = 24 * timesteps per hour. */
+    public static OccupancyStore open(File csv, int rowsPerDay) throws IOException {
+        File bin = new File(csv.getPath() + ".occ");
+        ByteBuffer b = null;
+        if (bin.isFile()) {
+            b = map(bin);
+            if (!current(b, csv, rowsPerDay)) b = null;
+        }
+        if (b == null) {
+            long t0 = System.nanoTime();
+            b = build(csv, rowsPerDay);
+            log.info(String.format("Converted %s to binary occupancy data in %.1f ms", csv, (System.nanoTime() - t0) / 1e6));
+            try {
+                Path tmp = Files.createTempFile(bin.getAbsoluteFile().getParentFile().toPath(), bin.getName(), ".tmp");
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer all = b.duplicate();
+                    while (all.hasRemaining()) ch.write(all);
+                }
+                // other federates may be starting at the same time: they see the old file or the new one, never half
+                Files.move(tmp, bin.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                b = map(bin);
+            }
+            catch (IOException e) {
+                log.warn("Could not cache occupancy data in " + bin + ", using it from memory: " + e);
+            }
+        }
+        return wrap(b);
+    }
+
+    private static ByteBuffer map(File bin) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(bin, "r")) {
+            FileChannel ch = f.getChannel();
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()); // stays valid after close
+        }
+    }
+
+    private static boolean current(ByteBuffer b, File csv, int rowsPerDay) throws IOException {
+        if (b.capacity() < HEADER || b.getInt(0) != MAGIC || b.getInt(8) != rowsPerDay) return false;
+        int n = b.getInt(4);
+        if (b.capacity() != HEADER + pad8(n) + 16L * n + 4L * b.getInt(12)) return false; // truncated
+        if (b.getLong(16) != csv.length()) return false;
+        if (b.getLong(24) == csv.lastModified()) return true;
+        return b.getLong(32) == crc(csv); // touched or copied, but same contents
+    }
+
+    private static long crc(File csv) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[65536];
+        try (InputStream in = Files.newInputStream(csv.toPath())) {
+            int n;
+            while ((n = in.read(buf)) > 0) crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private static int pad8(int n) { return (n + 7) & ~7; }
+
+    /** Parse the CSV into the binary layout. */
+    static ByteBuffer build(File csv, int rowsPerDay) throws IOException {
+        int cap = 1024;
+        byte[] st = new byte[cap];
+        double[] pr = new double[cap];
+        double[] cr = new double[cap];
+        int n = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(csv))) {
+            String line = br.readLine();
+            boolean statusList = line != null && isStatusList(line);
+            if (!statusList) line = br.readLine(); // skip header line
+            for (; line != null; line = br.readLine()) {
+                String[] row = line.split(",");
+                if (!statusList && row.length <= 4) continue;
+                for (int c = 0; c < (statusList ? row.length : 1); c++) {
+                    if (statusList && row[c].trim().isEmpty()) continue;
+                    if (n == cap) {
+                        cap *= 2;
+                        st = Arrays.copyOf(st, cap);
+                        pr = Arrays.copyOf(pr, cap);
+                        cr = Arrays.copyOf(cr, cap);
+                    }
+                    if (statusList) {
+                        st[n] = (byte) Integer.parseInt(row[c].trim());
+                        pr[n] = st[n];
+                    }
+                    else {
+                        pr[n] = Double.parseDouble(row[1]); //Col B
+                        st[n] = (byte) Integer.parseInt(row[3]); //Col D
+                        cr[n] = Double.parseDouble(row[4]); //Col E
+                    }
+                    n++;
+                }
+            }
+        }
+        int days = n / rowsPerDay;
+        ByteBuffer b = ByteBuffer.allocate(HEADER + pad8(n) + 16 * n + 4 * days);
+        b.putInt(0, MAGIC);
+        b.putInt(4, n);
+        b.putInt(8, rowsPerDay);
+        b.putInt(12, days);
+        b.putLong(16, csv.length());
+        b.putLong(24, csv.lastModified());
+        b.putLong(32, crc(csv));
+        b.position(HEADER);
+        b.put(st, 0, n);
+        b.position(HEADER + pad8(n));
+        for (int k = 0; k < n; k++) b.putDouble(pr[k]);
+        for (int k = 0; k < n; k++) b.putDouble(cr[k]);
+        for (int d = 0; d < days; d++) {
+            int occ = 0;
+            for (int k = d * rowsPerDay; k < (d + 1) * rowsPerDay; k++) {
+                if (st[k] == 1) occ++;
+            }
+            b.putInt(occ);
+        }
+        b.clear();
+        return b;
+    }
+
+    // A line of nothing but integers: status list format, no header
+    private static boolean isStatusList(String line) {
+        boolean any = false;
+        for (String v : line.split(",")) {
+            String t = v.trim();
+            if (t.isEmpty()) continue;
+            for (int k = 0; k < t.length(); k++) {
+                if (t.charAt(k) < '0' || t.charAt(k) > '9') return false;
+            }
+            any = true;
+        }
+        return any;
+    }
+
+    private static OccupancyStore wrap(ByteBuffer b) {
+        int n = b.getInt(4);
+        int perDay = b.getInt(8);
+        int days = b.getInt(12);
+        int off = HEADER;
+        ByteBuffer status = slice(b, off, n);
+        off += pad8(n);
+        DoubleBuffer prob = slice(b, off, 8 * n).asDoubleBuffer();
+        off += 8 * n;
+        DoubleBuffer comfort = slice(b, off, 8 * n).asDoubleBuffer();
+        off += 8 * n;
+        IntBuffer occupied = slice(b, off, 4 * days).asIntBuffer();
+        return new OccupancyStore(b, status, prob, comfort, occupied, n, perDay, days);
+    }
+
+    private static ByteBuffer slice(ByteBuffer b, int off, int len) {
+        ByteBuffer d = b.duplicate();
+        d.limit(off + len).position(off);
+        return d.slice();
+    }
+
+    /** Only the first rows of the data, like the old reader which stopped after the steps the simulation needs. */
+    public OccupancyStore limit(int maxRows) {
+        int n = Math.min(rows, maxRows);
+        return new OccupancyStore(data, status, prob, comfort, occupied, n, rowsPerDay, Math.min(days, n / rowsPerDay));
+    }
+
+    /** Size and CRC32 of the CSV this was built from, so identical files can share one store. */
+    public long sourceSize() { return data.getLong(16); }
+    public long sourceCrc() { return data.getLong(32); }
+
+    /** Bytes of occupancy data held, mapped or in memory. */
+    public long byteSize() { return data.capacity(); }
+
+    /** Whether the data lives in a memory-mapped file (outside the Java heap). */
+    public boolean isMapped() { return data.isDirect(); }
+
+    /** Number of rows (timesteps) of data. Rows past the end throw IndexOutOfBoundsException. */
+    public int size() { return rows; }
+
+    public int status(int row) { return status.get(check(row)); }
+
+    public double prob(int row) { return prob.get(check(row)); }
+
+    public double comfortRange(int row) { return comfort.get(check(row)); }
+
+    /** Number of complete days of data. */
+    public int days() { return days; }
+
+    /** Occupied steps in day (0-based), timeStepsOccupied of the old reader. */
+    public int occupiedSteps(int day) {
+        if (day < 0 || day >= days) throw new IndexOutOfBoundsException("Day " + day + " of " + days);
+        return occupied.get(day);
+    }
+
+    private int check(int row) {
+        if (row < 0 || row >= rows) throw new IndexOutOfBoundsException("Row " + row + " of " + rows);
+        return row;
+    }
+}
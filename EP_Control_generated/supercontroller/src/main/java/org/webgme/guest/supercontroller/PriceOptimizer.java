@@ -0,0 +1,302 @@
+/*
+File:           PriceOptimizer.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Built-in price-aware controller for buildings with optimize: true and thermostat_code_language: java, in
+       place of the Python optimizer (energyOptTset2hr.py). Every step it plans heating or cooling for the next
+       optimizer_horizon_h: hours and sends the first step of the plan as the setpoint.
+       Model: first-order building, indoor temperature relaxes to outdoor + lift with time constant
+       optimizer_time_constant_h:. x[k] = phi*x[k-1] + (1-phi)*(outdoor + s*u[k]), phi = exp(-step/tau),
+       u[k] >= 0 the lift the HVAC holds during step k, s = +1 heating, -1 cooling.
+       Problem (a small QP): minimize  sum price[k]*u[k]  +  w/2 * sum (distance of x[k] outside the comfort band)^2
+       over 0 <= u[k] <= MAX_LIFT. The band is what javaSetpoints would send for that step (fixed, adaptive,
+       occupancy comfort band from the building's occupancy data); w = optimizer_comfort_weight:. Prices are
+       normalized to a mean of 1. Outdoor temperature is assumed to stay as it is over the horizon.
+       Solved by accelerated projected gradient (FISTA with adaptive restart), gradient by one backward pass,
+       O(horizon) per iteration. Each step starts from the previous step's plan shifted by one, so it usually
+       converges in a few iterations; it stops after optimizer_budget_ms: per building regardless (counted and
+       logged by close()). Plans are not checkpointed; a resumed run starts them again.
+       Prices, electricity_pricing_type: in config.txt:
+           n   none: flat, the plan only saves energy within the comfort band
+           d   day-ahead: the prices of the whole horizon are known, so it preheats / precools before a peak
+           r   real-time: only the current price is known and assumed for the whole horizon
+       electricity_price_file: one price per hour of the run (last number of each line, other lines skipped),
+       repeated if shorter than the run. Blank = a time-of-use tariff: 2x from 16:00 to 21:00, assuming the
+       run starts at midnight like the occupancy data.
+       Only building i's state is touched when solving building i, so buildings can be solved concurrently.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PriceOptimizer {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final double MAX_LIFT = 40; // C the HVAC can hold the building above / below outdoor
+    private static final double TOLERANCE = 1e-3; // C of lift: converged when no u[k] moves more
+    private static final int MAX_ITERATIONS = 5000;
+    private static final int PEAK_START = 16, PEAK_END = 21; // time-of-use peak hours [start, end)
+
+    private final BuildingStateStore bldg;
+    private final int nt;
+    private final int horizon; // steps
+    private final char pricing;
+    private final double[] hourly; // price per hour of the run, mean 1
+    private final double phi;
+    private final double weight;
+    private final long budgetNs;
+    private final double step; // 1/L, L = weight * |du->x|^2 <= weight * (1 - phi^horizon)^2
+
+    // Per building: plan of the last step (horizon values each, shifted for the next step) and solve stats
+    private final double[] plan;
+    private final byte[] planSign; // s of the plan, 0 = none yet
+    private final long[] solves, solveNs, maxNs, iterations, overBudget;
+    private final ThreadLocal<double[][]> scratch;
+
+    /** hourlyPrices: price per hour of the run, null = time-of-use tariff. pricing: n, d or r */
+    public PriceOptimizer(BuildingStateStore bldg, int nt, char pricing, double[] hourlyPrices, double horizonHours,
+                          double timeConstantHours, double comfortWeight, double budgetMs) {
+        this.bldg = bldg;
+        this.nt = nt;
+        this.horizon = Math.max(1, (int) Math.round(horizonHours * nt));
+        this.pricing = (pricing == 'd' || pricing == 'r') ? pricing : 'n';
+        this.hourly = normalize((hourlyPrices != null && hourlyPrices.length > 0) ? hourlyPrices : timeOfUse());
+        this.phi = Math.exp(-1.0 / (nt * Math.max(0.01, timeConstantHours)));
+        this.weight = Math.max(1e-6, comfortWeight);
+        this.budgetNs = (long) (Math.max(0, budgetMs) * 1e6);
+        final double reach = 1 - Math.pow(phi, horizon);
+        this.step = 1 / (weight * reach * reach);
+        int n = bldg.size();
+        plan = new double[n * horizon];
+        planSign = new byte[n];
+        solves = new long[n];
+        solveNs = new long[n];
+        maxNs = new long[n];
+        iterations = new long[n];
+        overBudget = new long[n];
+        final int h = horizon;
+        scratch = new ThreadLocal<double[][]>() {
+            protected double[][] initialValue() {
+                return new double[7][h]; // lo, hi, price, u, y, gradient/adjoint, x
+            }
+        };
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (bldg.optimize[i] && bldg.source[i] == BuildingStateStore.SOURCE_JAVA) count++;
+        }
+        log.info(String.format("Price optimizer for %d buildings: %d-step horizon, time constant %.1f h, comfort weight %.1f, "
+            + "budget %.1f ms, prices %s%s", count, horizon, timeConstantHours, weight, budgetMs,
+            (this.pricing == 'd') ? "day-ahead" : (this.pricing == 'r') ? "real-time" : "none",
+            (this.pricing != 'n' && hourlyPrices == null) ? " (time-of-use tariff)" : ""));
+    }
+
+    /** Hourly prices from file: the last number of each line, lines without one (headers) skipped */
+    public static double[] loadPrices(File file) throws IOException {
+        List<Double> prices = new ArrayList<Double>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] fields = line.split(",");
+                try {
+                    prices.add(Double.valueOf(fields[fields.length - 1].trim()));
+                }
+                catch (NumberFormatException e) {
+                    // header or comment
+                }
+            }
+        }
+        if (prices.isEmpty()) throw new IOException("No prices in " + file);
+        double[] p = new double[prices.size()];
+        for (int k = 0; k < p.length; k++) {
+            p[k] = prices.get(k);
+        }
+        return p;
+    }
+
+    private static double[] timeOfUse() {
+        double[] p = new double[24];
+        for (int h = 0; h < 24; h++) {
+            p[h] = (h >= PEAK_START && h < PEAK_END) ? 2 : 1;
+        }
+        return p;
+    }
+
+    private static double[] normalize(double[] p) {
+        double sum = 0;
+        for (double v : p) sum += v;
+        double mean = sum / p.length;
+        double[] out = new double[p.length];
+        for (int k = 0; k < p.length; k++) {
+            out[k] = (mean > 0) ? p[k] / mean : 1;
+        }
+        return out;
+    }
+
+    /** Plan building i from occupancy timestep timeLoop on and set its setpoints for this step:
+     *  the planned temperature on the side being conditioned, the comfort band edge on the other. */
+    public void setpoints(int i, int timeLoop) {
+        final long t0 = System.nanoTime();
+        final double[][] s = scratch.get();
+        final double[] lo = s[0], hi = s[1], price = s[2];
+        final int h = horizon;
+        final double outdoor = bldg.outdoorTemp[i];
+        band(i, timeLoop, outdoor, lo, hi);
+        for (int k = 0; k < h; k++) {
+            int hour = (pricing == 'r') ? timeLoop / nt : (timeLoop + k) / nt;
+            price[k] = (pricing == 'n') ? 1 : hourly[hour % hourly.length];
+        }
+        // Heat or cool: from heatorcool:, or for auto from where outdoor is relative to the band now
+        final byte hvac = bldg.hvac[i];
+        final int sign = (hvac == BuildingStateStore.HVAC_HEAT) ? 1 : (hvac == BuildingStateStore.HVAC_COOL) ? -1
+                : (outdoor < (lo[0] + hi[0]) / 2) ? 1 : -1;
+        final int it = solve(i, sign, bldg.indoorTemp[i], outdoor, t0 + budgetNs);
+
+        // First step of the plan, kept inside the comfort band: the penalty lets the plan sit just outside it
+        final double u0 = s[3][0];
+        final double x0 = Math.max(lo[0], Math.min(hi[0], phi * bldg.indoorTemp[i] + (1 - phi) * (outdoor + sign * u0)));
+        if (sign > 0) {
+            bldg.setHeat[i] = x0;
+            bldg.setCool[i] = hi[0];
+        }
+        else {
+            bldg.setHeat[i] = lo[0];
+            bldg.setCool[i] = x0;
+        }
+        if (hvac == BuildingStateStore.HVAC_COOL) {
+            bldg.setHeat[i] = 0.0;
+        }
+        else if (hvac == BuildingStateStore.HVAC_HEAT) {
+            bldg.setCool[i] = 50.0;
+        }
+
+        final long ns = System.nanoTime() - t0;
+        solves[i]++;
+        solveNs[i] += ns;
+        iterations[i] += it;
+        if (ns > maxNs[i]) maxNs[i] = ns;
+    }
+
+    // Comfort band of each step of the horizon, as javaSetpoints computes it before fuzzy control
+    private void band(int i, int timeLoop, double outdoor, double[] lo, double[] hi) {
+        final byte mode = bldg.mode[i];
+        final OccupancyStore occ = bldg.occupancy[i];
+        final double comf = BuildingController.comfortTemp(outdoor);
+        int lastHour = -1;
+        double expansion = 0;
+        for (int k = 0; k < horizon; k++) {
+            if (mode == BuildingStateStore.MODE_FIXED) {
+                lo[k] = bldg.fixedMin[i];
+                hi[k] = bldg.fixedMax[i];
+            }
+            else if (mode == BuildingStateStore.MODE_ADAPTIVE) {
+                lo[k] = comf - 2;
+                hi[k] = comf + 2;
+            }
+            else if (mode == BuildingStateStore.MODE_OCCUPANCY) {
+                final int hour = ((timeLoop + k) % occ.size()) / nt; // same row as javaSetpoints
+                if (hour != lastHour) {
+                    lastHour = hour;
+                    expansion = (occ.status(hour) == 1.0) ? 0
+                        : ThermostatEngine.comfortRange(Math.max(0.01, Math.min(1.0, occ.prob(hour))));
+                }
+                lo[k] = comf - 2 - expansion;
+                hi[k] = comf + 2 + expansion;
+            }
+            else { // no mode: no comfort limits
+                lo[k] = -BAND_NONE;
+                hi[k] = BAND_NONE;
+            }
+        }
+    }
+
+    private static final double BAND_NONE = 1000;
+
+    // FISTA over u in [0, MAX_LIFT], starting from the building's shifted plan. Returns the iterations used
+    private int solve(int i, int sign, double indoor, double outdoor, long deadline) {
+        final double[][] s = scratch.get();
+        final double[] lo = s[0], hi = s[1], price = s[2], u = s[3], y = s[4], g = s[5], x = s[6];
+        final int h = horizon;
+        final int base = i * h;
+        if (planSign[i] == sign) {
+            System.arraycopy(plan, base, u, 0, h);
+        }
+        else { // no plan for this mode yet: hold the near edge of the band
+            final double target = (sign > 0) ? lo[0] : hi[0];
+            final double lift = Math.max(0, Math.min(MAX_LIFT, sign * (target - outdoor)));
+            for (int k = 0; k < h; k++) u[k] = lift;
+        }
+        System.arraycopy(u, 0, y, 0, h);
+        final double step = this.step;
+        final double gain = (1 - phi) * sign;
+        double t = 1;
+        int it = 0;
+        boolean overrun = false;
+        while (it < MAX_ITERATIONS) {
+            it++;
+            // Forward: temperatures of the plan y
+            double prev = indoor;
+            for (int k = 0; k < h; k++) {
+                prev = phi * prev + (1 - phi) * outdoor + gain * y[k];
+                x[k] = prev;
+            }
+            // Backward: adjoint of the comfort term, then the gradient
+            double adj = 0;
+            for (int k = h - 1; k >= 0; k--) {
+                final double v = (x[k] < lo[k]) ? x[k] - lo[k] : (x[k] > hi[k]) ? x[k] - hi[k] : 0;
+                adj = weight * v + phi * adj;
+                g[k] = price[k] + gain * adj;
+            }
+            // Projected step from y, momentum, restart when the step goes against the gradient
+            final double tNext = (1 + Math.sqrt(1 + 4 * t * t)) / 2;
+            final double momentum = (t - 1) / tNext;
+            double moved = 0, ascent = 0;
+            for (int k = 0; k < h; k++) {
+                final double next = Math.max(0, Math.min(MAX_LIFT, y[k] - step * g[k]));
+                final double d = next - u[k];
+                moved = Math.max(moved, Math.abs(d));
+                ascent += g[k] * d;
+                u[k] = next;
+                y[k] = next + momentum * d;
+            }
+            t = tNext;
+            if (ascent > 0) {
+                t = 1;
+                System.arraycopy(u, 0, y, 0, h);
+            }
+            if (moved < TOLERANCE) break;
+            if ((it & 15) == 0 && System.nanoTime() > deadline) {
+                overrun = true;
+                break;
+            }
+        }
+        if (overrun) overBudget[i]++;
+        // Warm start of the next step: this plan one step on
+        System.arraycopy(u, 1, plan, base, h - 1);
+        plan[base + h - 1] = u[h - 1];
+        planSign[i] = (byte) sign;
+        return it;
+    }
+
+    /** Log solve time and budget overruns over the run */
+    public void close() {
+        long n = 0, ns = 0, max = 0, its = 0, over = 0;
+        for (int i = 0; i < solves.length; i++) {
+            n += solves[i];
+            ns += solveNs[i];
+            its += iterations[i];
+            over += overBudget[i];
+            max = Math.max(max, maxNs[i]);
+        }
+        if (n == 0) return;
+        log.info(String.format("Price optimizer: %d solves, mean %.1f us (%.1f iterations), max %.2f ms, %d stopped at the %.1f ms budget",
+            n, ns / 1e3 / n, (double) its / n, max / 1e6, over, budgetNs / 1e6));
+    }
+}
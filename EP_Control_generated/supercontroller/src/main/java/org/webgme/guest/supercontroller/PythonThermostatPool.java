@@ -0,0 +1,231 @@
+/*
+File:           PythonThermostatPool.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Long-lived "thermostat.py -worker" processes, so the Python setpoint option does not start a new
+       interpreter and re-import scipy for every building every timestep.
+       Each request is one line on the worker's stdin with the same parameters as the command line, and the
+       answer is the usual output (thermostat_set_heat, value, thermostat_set_cool, value) ended by "thermostat_done".
+       Requests are pipelined: several can be outstanding on one worker and are answered in order.
+       Crashed workers are restarted and their outstanding requests retried once.
+       Set size in config.txt with python_workers: (0 = old behavior, one process per request)
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PythonThermostatPool {
+    private final static Logger log = LogManager.getLogger();
+
+    static final String DONE = "thermostat_done";
+
+    private final String command;
+    private final String script;
+    private final long timeoutMs;
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    /** One request in flight. Lines are filled in by the worker's reader thread. */
+    private static class Request {
+        final String args;
+        final ArrayList<String> lines = new ArrayList<String>(4);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean failed = false;
+
+        Request(String args) { this.args = args; }
+    }
+
+    private class Worker {
+        final int id;
+        Process proc;
+        BufferedWriter in;
+        ConcurrentLinkedQueue<Request> inflight;
+        volatile boolean alive = false;
+        int restarts = 0;
+
+        Worker(int id) { this.id = id; }
+
+        synchronized void start() throws IOException {
+            // command may carry its own options (e.g. "python3 -u"), split it like Runtime.exec does
+            ArrayList<String> cmd = new ArrayList<String>(Arrays.asList(command.trim().split("\\s+")));
+            cmd.add(script);
+            cmd.add("-worker");
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT); // Python tracebacks show up in the controller log
+            proc = pb.start();
+            in = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream()));
+            inflight = new ConcurrentLinkedQueue<Request>();
+            alive = true;
+            final Process p = proc;
+            final ConcurrentLinkedQueue<Request> q = inflight;
+            Thread reader = new Thread(new Runnable() {
+                public void run() { readLoop(p, q); }
+            }, "thermostat-worker-" + id);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readLoop(Process p, ConcurrentLinkedQueue<Request> q) {
+            BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            try {
+                String s;
+                while ((s = out.readLine()) != null) {
+                    Request r = q.peek();
+                    if (r == null) continue; // stray output, nobody asked
+                    if (s.equals(DONE)) {
+                        q.poll();
+                        r.done.countDown();
+                    }
+                    else {
+                        r.lines.add(s);
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.warn("Lost output of thermostat worker " + id, e);
+            }
+            // Worker exited: fail everything still waiting so it can be retried on a new process
+            synchronized (this) {
+                if (proc == p) alive = false;
+            }
+            Request r;
+            while ((r = q.poll()) != null) {
+                r.failed = true;
+                r.done.countDown();
+            }
+        }
+
+        /** Queue a request. Synchronized so queue order matches the order written to stdin. */
+        synchronized boolean send(Request r) {
+            if (!alive) return false;
+            inflight.add(r);
+            try {
+                in.write(r.args);
+                in.newLine();
+                in.flush();
+                return true;
+            }
+            catch (IOException e) {
+                inflight.remove(r);
+                alive = false;
+                return false;
+            }
+        }
+
+        synchronized void restartIfDead() {
+            if (alive && proc.isAlive()) return;
+            stop();
+            restarts++;
+            log.warn("Restarting thermostat worker " + id + " (restart #" + restarts + ")");
+            try {
+                start();
+            }
+            catch (IOException e) {
+                log.error("Could not restart thermostat worker " + id, e);
+            }
+        }
+
+        synchronized void kill() {
+            alive = false;
+            if (proc != null) proc.destroy();
+        }
+
+        synchronized void stop() {
+            alive = false;
+            if (proc == null) return;
+            try {
+                in.close(); // worker exits at end of stdin
+            }
+            catch (IOException e) {
+                // already gone
+            }
+            try {
+                if (!proc.waitFor(2, TimeUnit.SECONDS)) proc.destroy();
+            }
+            catch (InterruptedException e) {
+                proc.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** command: python interpreter (thermostat_code_language), script: thermostat.py */
+    public PythonThermostatPool(String command, String script, int size, long timeoutMs) throws IOException {
+        this.command = command;
+        this.script = script;
+        this.timeoutMs = timeoutMs;
+        workers = new Worker[size];
+        for (int k = 0; k < size; k++) {
+            workers[k] = new Worker(k);
+            workers[k].start();
+        }
+        // Health check: every worker must answer before the simulation starts
+        for (int k = 0; k < size; k++) {
+            List<String> reply = request(workers[k], "-s");
+            if (!reply.contains("thermostat_set_heat")) {
+                log.error("Thermostat worker " + k + " (" + command + " " + script + " -worker) did not answer a test request. Check Python & scipy.");
+            }
+        }
+        log.info("Started " + size + " " + command + " thermostat workers");
+    }
+
+    /** Run thermostat.py with the given parameters and return its output lines (without the end marker).
+     *  Returns an empty list if Python fails, the same as a crashed subprocess. Thread-safe. */
+    public List<String> request(String args) {
+        int k = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+        return request(workers[k], args);
+    }
+
+    private List<String> request(Worker w, String args) {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Request r = new Request(args);
+            if (!w.send(r)) {
+                w.restartIfDead();
+                continue;
+            }
+            try {
+                if (!r.done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                    log.error("Thermostat worker " + w.id + " timed out after " + timeoutMs + " ms, killing it");
+                    w.kill();
+                    w.restartIfDead();
+                    return new ArrayList<String>();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new ArrayList<String>();
+            }
+            if (!r.failed) return r.lines;
+            log.warn("Thermostat worker " + w.id + " crashed, retrying request");
+            w.restartIfDead();
+        }
+        return new ArrayList<String>();
+    }
+
+    /** Restart any worker that has died since the last check. Called once per timestep. */
+    public void checkHealth() {
+        for (int k = 0; k < workers.length; k++) {
+            workers[k].restartIfDead();
+        }
+    }
+
+    public void shutdown() {
+        for (int k = 0; k < workers.length; k++) {
+            workers[k].stop();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+File:           ResultsSink.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Per-building time series of a run, written off the timestep loop (write_extra_data_files: in config.txt).
+       record() copies each building's indoor & outdoor temperature, cooling & heating setpoint and dishwasher
+       state into a snapshot taken from a fixed pool and hands it to a background thread through a lock-free
+       queue; the thread writes them in chunks and gives the snapshots back. results_buffer_mb: caps the pool,
+       so memory is bounded: if the writer falls that far behind, record() waits for it (counted, and logged
+       by close()) instead of growing.
+       File results/results_<start time>[_shard<k>].bin, big-endian, columnar per chunk:
+           header   magic "SCRS", version, building count n, each building name (UTF)
+           chunk    int k (steps in it), k x long step, k x double logical time,
+                    then each column building by building, k values per building:
+                    indoor, outdoor, cooling, heating (float, C), dishwasher (byte)
+       so one building's series in a chunk is contiguous. Python's text setpoints are stored as their number.
+       results_csv: true also writes results_<...>.csv, one row per building and step (much bigger and slower).
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class ResultsSink {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final int MAGIC = 0x53435253; // "SCRS"
+    private static final int VERSION = 1;
+    private static final int MAX_CHUNK = 24; // steps per chunk written
+    private static final int BYTES_PER_BUILDING = 4 * 4 + 1;
+
+    // One step of every building
+    private static final class Snapshot {
+        long step;
+        double time;
+        final float[] indoor, outdoor, cool, heat;
+        final byte[] dishwasher;
+
+        Snapshot(int n) {
+            indoor = new float[n];
+            outdoor = new float[n];
+            cool = new float[n];
+            heat = new float[n];
+            dishwasher = new byte[n];
+        }
+    }
+
+    private final BuildingStateStore bldg;
+    private final String[] names;
+    private final File file;
+    private final File csvFile;
+    private final int chunkSteps;
+    private final ConcurrentLinkedQueue<Snapshot> free = new ConcurrentLinkedQueue<Snapshot>();
+    private final ConcurrentLinkedQueue<Snapshot> full = new ConcurrentLinkedQueue<Snapshot>();
+    private final Thread writer;
+    private volatile boolean closing = false;
+    private volatile boolean failed = false;
+
+    // record() side
+    private long stalls = 0, stallNanos = 0;
+    // writer side
+    private long rows = 0, bytes = 0;
+
+    /** Write bldg's time series to file, and to a .csv next to it if csv. file null = off.
+     *  bufferMB bounds the snapshots waiting to be written. */
+    public ResultsSink(BuildingStateStore bldg, String[] names, File file, boolean csv, int bufferMB) throws IOException {
+        this.bldg = bldg;
+        this.names = names;
+        this.file = file;
+        if (file == null) {
+            csvFile = null;
+            chunkSteps = 0;
+            writer = null;
+            return;
+        }
+        String path = file.getPath();
+        csvFile = csv ? new File(path.substring(0, path.lastIndexOf('.')) + ".csv") : null;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create results folder " + dir);
+        }
+        final int n = bldg.size();
+        long snapshotBytes = 16 + (long) n * BYTES_PER_BUILDING;
+        int pool = (int) Math.max(2, Math.min(4096, Math.max(1, bufferMB) * 1048576L / snapshotBytes));
+        chunkSteps = Math.max(1, Math.min(MAX_CHUNK, pool / 2)); // the writer never holds the whole pool
+        for (int k = 0; k < pool; k++) {
+            free.add(new Snapshot(n));
+        }
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeAll();
+            }
+        }, "results-writer");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Results to " + file + ((csvFile != null) ? " and " + csvFile : "") + ", " + pool
+            + " steps buffered (" + pool * snapshotBytes / 1024 + " kB)");
+    }
+
+    public boolean enabled() {
+        return writer != null;
+    }
+
+    /** Queue the state of every building after step `step` at logical time `time`. Call between steps,
+     *  after every building is done. Waits only if the writer is results_buffer_mb: behind. */
+    public void record(long step, double time) {
+        if (writer == null || failed) return;
+        Snapshot s = free.poll();
+        if (s == null) {
+            long t0 = System.nanoTime();
+            while ((s = free.poll()) == null) {
+                if (failed) return;
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100000);
+            }
+            stalls++;
+            stallNanos += System.nanoTime() - t0;
+        }
+        s.step = step;
+        s.time = time;
+        final int n = bldg.size();
+        for (int i = 0; i < n; i++) {
+            s.indoor[i] = (float) bldg.indoorTemp[i];
+            s.outdoor[i] = (float) bldg.outdoorTemp[i];
+            s.cool[i] = (float) EPReplyEncoder.setpoint(bldg.setCoolStr[i], bldg.setCool[i]);
+            s.heat[i] = (float) EPReplyEncoder.setpoint(bldg.setHeatStr[i], bldg.setHeat[i]);
+        }
+        System.arraycopy(bldg.setDishwasher, 0, s.dishwasher, 0, n);
+        full.add(s);
+        LockSupport.unpark(writer);
+    }
+
+    // Writer thread: chunks of chunkSteps snapshots (or what is left at close) until closed
+    private void writeAll() {
+        final int n = bldg.size();
+        Snapshot[] chunk = new Snapshot[chunkSteps];
+        int k = 0;
+        ByteBuffer out = ByteBuffer.allocateDirect(4 + chunkSteps * 16 + chunkSteps * n * BYTES_PER_BUILDING);
+        try (FileOutputStream binStream = new FileOutputStream(file);
+             Writer csv = (csvFile != null)
+                 ? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csvFile), StandardCharsets.ISO_8859_1), 1 << 16)
+                 : null) {
+            FileChannel bin = binStream.getChannel();
+            ByteBuffer header = ByteBuffer.wrap(header());
+            while (header.hasRemaining()) bytes += bin.write(header);
+            if (csv != null) csv.write("step,time,building,indoor,outdoor,cool,heat,dishwasher\n");
+            while (true) {
+                Snapshot s = full.poll();
+                if (s != null) {
+                    chunk[k++] = s;
+                    if (k < chunkSteps) continue;
+                }
+                else if (!closing || k == 0) {
+                    if (closing && full.isEmpty()) break;
+                    if (!closing) LockSupport.parkNanos(this, 10000000);
+                    continue;
+                }
+                writeChunk(bin, out, chunk, k, n);
+                if (csv != null) writeCsv(csv, chunk, k, n);
+                for (int j = 0; j < k; j++) {
+                    free.add(chunk[j]);
+                    chunk[j] = null;
+                }
+                k = 0;
+            }
+        }
+        catch (IOException e) {
+            log.error("Cannot write results to " + file + ", no more results are recorded: " + e);
+            failed = true;
+        }
+    }
+
+    private void writeChunk(FileChannel bin, ByteBuffer out, Snapshot[] chunk, int k, int n) throws IOException {
+        out.clear();
+        out.putInt(k);
+        for (int j = 0; j < k; j++) out.putLong(chunk[j].step);
+        for (int j = 0; j < k; j++) out.putDouble(chunk[j].time);
+        for (int i = 0; i < n; i++) for (int j = 0; j < k; j++) out.putFloat(chunk[j].indoor[i]);
+        for (int i = 0; i < n; i++) for (int j = 0; j < k; j++) out.putFloat(chunk[j].outdoor[i]);
+        for (int i = 0; i < n; i++) for (int j = 0; j < k; j++) out.putFloat(chunk[j].cool[i]);
+        for (int i = 0; i < n; i++) for (int j = 0; j < k; j++) out.putFloat(chunk[j].heat[i]);
+        for (int i = 0; i < n; i++) for (int j = 0; j < k; j++) out.put(chunk[j].dishwasher[i]);
+        out.flip();
+        while (out.hasRemaining()) bytes += bin.write(out);
+        rows += (long) k * n;
+    }
+
+    private void writeCsv(Writer csv, Snapshot[] chunk, int k, int n) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        for (int j = 0; j < k; j++) {
+            Snapshot s = chunk[j];
+            for (int i = 0; i < n; i++) {
+                sb.setLength(0);
+                sb.append(s.step).append(',').append(s.time).append(',').append(names[i]).append(',')
+                  .append(s.indoor[i]).append(',').append(s.outdoor[i]).append(',')
+                  .append(s.cool[i]).append(',').append(s.heat[i]).append(',').append(s.dishwasher[i]).append('\n');
+                csv.append(sb);
+            }
+        }
+    }
+
+    // Magic, version, building count & names
+    private byte[] header() throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(b);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        out.flush();
+        return b.toByteArray();
+    }
+
+    /** Write what is still queued, close the files and log what was written */
+    public void close() {
+        if (writer == null) return;
+        closing = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(120));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) log.warn("Results writer still busy after 120 s, " + file + " may be incomplete");
+        log.info(String.format("Results: %d building-steps, %.1f MB in %s; the loop waited for the writer %d times (%.1f ms)",
+            rows, bytes / 1048576.0, file, stalls, stallNanos / 1e6));
+    }
+}
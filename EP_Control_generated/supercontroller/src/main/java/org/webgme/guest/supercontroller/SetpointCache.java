@@ -0,0 +1,218 @@
+/*
+File:           SetpointCache.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: thermostat.py setpoints shared between buildings and steps (thermostat_code_language: python3). Its
+       output only depends on the command, mode, heat/cool, outdoor temperature and occupancy status (not
+       indoorTemp), and many buildings share the same weather and occupancy data, so each combination runs
+       once; failed runs are not cached. A run costs milliseconds, a lookup under the lock well under a
+       microsecond.
+       java and java_thermostat setpoints are not cached: they take ~50 ns to compute, less than any shared
+       lookup, and a lock would serialize the parallel_mode workers.
+       setpoint_cache: (config.txt) is the number of entries, least recently used evicted first, 0 = off.
+       setpoint_cache_quantum: rounds the outdoor temperature to a multiple of it [°C] before computing, so
+       nearby temperatures share an entry; 0 keeps exact keys and setpoints identical to no cache.
+       Thread-safe. A lookup allocates nothing; hit/miss/eviction counts are published over JMX
+       (SetpointCacheMBean) and logged by close().
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class SetpointCache implements SetpointCacheMBean {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final String OBJECT_NAME = "org.webgme.guest.supercontroller:type=SetpointCache";
+
+    // What computed the setpoints, part of the key
+    public static final byte PYTHON = 2;
+
+    /** Cached setpoints: thermostat.py's text output */
+    public static final class Setpoints {
+        public final String heatStr, coolStr;
+
+        public Setpoints(String heatStr, String coolStr) {
+            this.heatStr = heatStr;
+            this.coolStr = coolStr;
+        }
+    }
+
+    /** Inputs of one setpoint computation. Filled by key(), one per thread, copied when stored. */
+    public static final class Key {
+        private byte source;
+        private int mode;
+        private char heatOrCool;
+        private long outdoor, status, prob, fixedMin, fixedMax; // double bits
+        private String command, modeText;
+        private int hash;
+
+        private Key copy() {
+            Key k = new Key();
+            k.source = source;
+            k.mode = mode;
+            k.heatOrCool = heatOrCool;
+            k.outdoor = outdoor;
+            k.status = status;
+            k.prob = prob;
+            k.fixedMin = fixedMin;
+            k.fixedMax = fixedMax;
+            k.command = command;
+            k.modeText = modeText;
+            k.hash = hash;
+            return k;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return hash == k.hash && source == k.source && mode == k.mode && heatOrCool == k.heatOrCool
+                && outdoor == k.outdoor && status == k.status && prob == k.prob
+                && fixedMin == k.fixedMin && fixedMax == k.fixedMax
+                && same(command, k.command) && same(modeText, k.modeText);
+        }
+
+        private static boolean same(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    private final int capacity;
+    private final double quantum;
+    private final LinkedHashMap<Key, Setpoints> entries; // least recently used first
+    private final ThreadLocal<Key> probe = new ThreadLocal<Key>() {
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+    private long hits = 0, misses = 0, evictions = 0;
+    private ObjectName objectName;
+
+    /** capacity: entries kept, 0 = no caching. quantum: outdoor temperature rounding [°C], 0 = exact */
+    public SetpointCache(int capacity, double quantum) {
+        this.capacity = Math.max(0, capacity);
+        this.quantum = Math.max(0, quantum);
+        final int max = this.capacity;
+        entries = new LinkedHashMap<Key, Setpoints>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Setpoints> eldest) {
+                if (size() <= max) return false;
+                evictions++;
+                return true;
+            }
+        };
+        if (!enabled()) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            log.warn("Cannot register the setpoint cache MBean: " + e);
+            objectName = null;
+        }
+        log.info("Setpoint cache: " + capacity + " entries, outdoor temperature "
+            + ((quantum > 0) ? "rounded to " + quantum + " C" : "exact"));
+    }
+
+    public boolean enabled() {
+        return capacity > 0;
+    }
+
+    /** Outdoor temperature the setpoints are computed from: t rounded to the quantum, if caching */
+    public double quantize(double t) {
+        if (!enabled() || quantum <= 0) return t;
+        return Math.round(t / quantum) * quantum;
+    }
+
+    /** This thread's key for the given inputs, valid until its next call. outdoorTemp should be quantize()d.
+     *  Inputs a source does not use should always be the same (0, null) so they do not split entries. */
+    public Key key(byte source, int mode, char heatOrCool, double outdoorTemp, double occupancyStatus,
+                   double occProb, double fixedMin, double fixedMax, String command, String modeText) {
+        Key k = probe.get();
+        k.source = source;
+        k.mode = mode;
+        k.heatOrCool = heatOrCool;
+        k.outdoor = Double.doubleToLongBits(outdoorTemp);
+        k.status = Double.doubleToLongBits(occupancyStatus);
+        k.prob = Double.doubleToLongBits(occProb);
+        k.fixedMin = Double.doubleToLongBits(fixedMin);
+        k.fixedMax = Double.doubleToLongBits(fixedMax);
+        k.command = command;
+        k.modeText = modeText;
+        int h = source;
+        h = 31 * h + mode;
+        h = 31 * h + heatOrCool;
+        h = 31 * h + (int) (k.outdoor ^ (k.outdoor >>> 32));
+        h = 31 * h + (int) (k.status ^ (k.status >>> 32));
+        h = 31 * h + (int) (k.prob ^ (k.prob >>> 32));
+        h = 31 * h + (int) (k.fixedMin ^ (k.fixedMin >>> 32));
+        h = 31 * h + (int) (k.fixedMax ^ (k.fixedMax >>> 32));
+        h = 31 * h + ((command == null) ? 0 : command.hashCode());
+        h = 31 * h + ((modeText == null) ? 0 : modeText.hashCode());
+        k.hash = h;
+        return k;
+    }
+
+    /** Cached setpoints for key, or null (always, if caching is off) */
+    public Setpoints get(Key key) {
+        if (!enabled()) return null;
+        synchronized (this) {
+            Setpoints e = entries.get(key);
+            if (e != null) hits++;
+            else misses++;
+            return e;
+        }
+    }
+
+    /** Store the setpoints computed for key */
+    public void put(Key key, Setpoints e) {
+        if (!enabled()) return;
+        synchronized (this) {
+            entries.put(key.copy(), e);
+        }
+    }
+
+    /** Log the hit rate and unregister from JMX */
+    public void close() {
+        if (!enabled()) return;
+        log.info(String.format("Setpoint cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries",
+            getHits(), getMisses(), 100 * getHitRate(), getEvictions(), getSize()));
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                log.debug("Setpoint cache MBean already gone: " + e);
+            }
+        }
+    }
+
+    public synchronized long getHits() { return hits; }
+
+    public synchronized long getMisses() { return misses; }
+
+    public synchronized long getEvictions() { return evictions; }
+
+    public synchronized int getSize() { return entries.size(); }
+
+    public int getCapacity() { return capacity; }
+
+    public double getQuantum() { return quantum; }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+File:           SetpointCacheMBean.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: JMX view of SetpointCache, registered as org.webgme.guest.supercontroller:type=SetpointCache
+       (jconsole / VisualVM, MBeans tab). Counts are since startup.
+*/
+
+package org.webgme.guest.supercontroller;
+
+public interface SetpointCacheMBean {
+    long getHits();
+    long getMisses();
+    long getEvictions();
+
+    /** hits / (hits + misses) */
+    double getHitRate();
+
+    /** Entries cached now, at most getCapacity() */
+    int getSize();
+    int getCapacity();
+
+    /** Outdoor temperature rounding [°C], 0 = exact */
+    double getQuantum();
+}
@@ -0,0 +1,140 @@
+/*
+File:           SetpointKernel.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Java setpoints (BuildingController.javaSetpoints) of many buildings in one pass, for setpoint_kernel: batch
+       (config.txt). add() copies each building's inputs into dense primitive columns: outdoor and indoor
+       temperature, mode, heat/cool, fixed setpoints, fuzzy toggles and its occupancy comfort band, which
+       is looked up once per occupancy file and hour instead of once per building. run() then computes comfort
+       temperature, setpoints, fuzzy hysteresis and heat/cool shutoff for all of them in one loop over those
+       columns, and writes the results back to the store. The fuzzy toggles, which flip unpredictably, are
+       computed with integer arithmetic on the sign of differences instead of branches.
+       Same results as javaSetpoints, bit for bit for finite temperatures, without its debug output. Target is Java 8, so there is no Vector API
+       here. One kernel per thread.
+*/
+
+package org.webgme.guest.supercontroller;
+
+public final class SetpointKernel {
+
+    private static final int MEMO = 16; // occupancy files whose current comfort band is remembered
+
+    private final BuildingStateStore bldg;
+    private final int nt;
+    private final double fuzzyOffset, fuzzyMargin, fuzzyFudge;
+
+    // Buildings of this run, dense: column [k] is building ids[k]
+    private final int[] ids;
+    private final double[] outdoor, indoor, band, fixedMin, fixedMax, heat, cool;
+    private final byte[] mode, hvac;
+    private final int[] fuzzyCool, fuzzyHeat; // toggles as 0/1
+    private int count = 0;
+    private int timeLoop = 0;
+
+    // Comfort band of one row of an occupancy file, direct-mapped by identity: buildings share the files
+    private final OccupancyStore[] memoStore = new OccupancyStore[MEMO];
+    private final int[] memoRow = new int[MEMO];
+    private final double[] memoBand = new double[MEMO];
+
+    SetpointKernel(BuildingStateStore bldg, int nt, double fuzzyOffset, double fuzzyMargin, double fuzzyFudge) {
+        this.bldg = bldg;
+        this.nt = nt;
+        this.fuzzyOffset = fuzzyOffset;
+        this.fuzzyMargin = fuzzyMargin;
+        this.fuzzyFudge = fuzzyFudge;
+        int n = bldg.size();
+        ids = new int[n];
+        outdoor = new double[n];
+        indoor = new double[n];
+        band = new double[n];
+        fixedMin = new double[n];
+        fixedMax = new double[n];
+        heat = new double[n];
+        cool = new double[n];
+        mode = new byte[n];
+        hvac = new byte[n];
+        fuzzyCool = new int[n];
+        fuzzyHeat = new int[n];
+    }
+
+    /** Start a run at occupancy timestep timeLoop (BuildingController.timeLoop()) */
+    public void begin(int timeLoop) {
+        this.timeLoop = timeLoop;
+        count = 0;
+    }
+
+    /** Add building i to the run. Each building at most once per run. */
+    public void add(int i) {
+        final int k = count++;
+        ids[k] = i;
+        final byte m = bldg.mode[i];
+        outdoor[k] = bldg.outdoorTemp[i];
+        indoor[k] = bldg.indoorTemp[i];
+        mode[k] = m;
+        hvac[k] = bldg.hvac[i];
+        fixedMin[k] = bldg.fixedMin[i];
+        fixedMax[k] = bldg.fixedMax[i];
+        fuzzyCool[k] = bldg.fuzzyCool[i] ? 1 : 0;
+        fuzzyHeat[k] = bldg.fuzzyHeat[i] ? 1 : 0;
+        band[k] = (m == BuildingStateStore.MODE_OCCUPANCY) ? band(bldg.occupancy[i]) : 0;
+    }
+
+    // Occupancy comfort band expansion this step, 0 when occupied. Row as javaSetpoints: occupancy row / nt
+    private double band(OccupancyStore occ) {
+        final int hour = (timeLoop % occ.size()) / nt;
+        if (occ.status(hour) == 1.0) return 0;
+        final int slot = System.identityHashCode(occ) & (MEMO - 1);
+        if (memoStore[slot] != occ || memoRow[slot] != hour) {
+            memoStore[slot] = occ;
+            memoRow[slot] = hour;
+            memoBand[slot] = ThermostatEngine.comfortRange(Math.max(0.01, Math.min(1.0, occ.prob(hour))));
+        }
+        return memoBand[slot];
+    }
+
+    /** Setpoints and fuzzy toggles of every building added since begin(), written to the store */
+    public void run() {
+        final int n = count;
+        compute(n);
+        for (int k = 0; k < n; k++) {
+            final int i = ids[k];
+            bldg.setHeat[i] = heat[k];
+            bldg.setCool[i] = cool[k];
+            bldg.fuzzyCool[i] = fuzzyCool[k] != 0;
+            bldg.fuzzyHeat[i] = fuzzyHeat[k] != 0;
+        }
+    }
+
+    // Every expression in the order javaSetpoints evaluates it, so the doubles come out identical
+    private void compute(int n) {
+        final double coolOff = fuzzyMargin + fuzzyOffset;
+        for (int k = 0; k < n; k++) {
+            final double o = outdoor[k];
+            // Adaptive comfort model, not a clamp: 17.9 + 0.31*o goes above 28.2 just below 33.22
+            final double comf = (o <= 9.6774) ? 20.9 : (o < 33.22) ? 17.9 + 0.31*o : 28.2;
+            final byte m = mode[k];
+            final boolean adaptive = (m == BuildingStateStore.MODE_ADAPTIVE) | (m == BuildingStateStore.MODE_OCCUPANCY);
+            final boolean fixed = m == BuildingStateStore.MODE_FIXED;
+            // Flag values of BuildingController.step when there is no mode
+            double h = fixed ? fixedMin[k] : adaptive ? comf - 2 - band[k] : -1.1;
+            double c = fixed ? fixedMax[k] : adaptive ? comf + 2 + band[k] : 111.1;
+
+            // Fuzzy toggles: on past the setpoint with margin, off past it with offset, else as they were
+            final double in = indoor[k];
+            final int fc = atLeast(in, c - fuzzyMargin - fuzzyFudge) | (fuzzyCool[k] & ~atLeast(c - coolOff + fuzzyFudge, in));
+            c -= fuzzyMargin + fc * fuzzyOffset; // offset + margin when on
+            final int fh = atLeast(h + fuzzyMargin + fuzzyFudge, in) | (fuzzyHeat[k] & ~atLeast(in, h + fuzzyMargin + fuzzyOffset - fuzzyFudge));
+            h += fuzzyMargin + fh * fuzzyOffset;
+            fuzzyCool[k] = fc;
+            fuzzyHeat[k] = fh;
+
+            heat[k] = (hvac[k] == BuildingStateStore.HVAC_COOL) ? 0.0 : h;
+            cool[k] = (hvac[k] == BuildingStateStore.HVAC_HEAT) ? 50.0 : c;
+        }
+    }
+
+    // 1 if x >= y else 0, from the sign of x - y (exact: the difference of two finite doubles is 0 only if
+    // they are equal, and then +0.0)
+    private static int atLeast(double x, double y) {
+        return (int) (~Double.doubleToRawLongBits(x - y) >>> 63);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+File:           StepDeadline.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Per-step deadline for the EnergyPlus messages, so one slow or hung simulation does not hold up the
+       others and the RTI time advance. step_deadline_ms: (config.txt) after the start of the step, 0 = none.
+       straggler_policy: says what happens to the buildings that have not sent their message by then:
+           wait    keep waiting, as without a deadline; lateness is only counted
+           reuse   the step goes on without them: their last setpoints, temperatures and dishwasher state
+                   stand in for this step. A late message is answered when it arrives, in a later step, so
+                   that building then runs one step behind the others
+           drop    as reuse, but a building late straggler_drop_after: steps in a row is dropped: its
+                   connection is closed and it is left out of every later step
+       With reuse or drop, a simulation that closes its connection without a TERMINATE is dropped too
+       (closed()) instead of ending the run; with wait that is still an error. At the end of the run, buildings
+       skipped in the last step are still answered for up to one more deadline; unanswered() logs the rest.
+       A building is degraded while it is late in a row; one message on time clears it. Per building late
+       steps, misses in a row and the worst overrun are published over JMX (StepDeadlineMBean) and the
+       worst buildings are logged by close(). Only the thread running the step loop calls the methods
+       below; JMX reads the counters as they are, a step old at worst.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class StepDeadline implements StepDeadlineMBean {
+    private final static Logger log = LogManager.getLogger();
+
+    private static final String OBJECT_NAME = "org.webgme.guest.supercontroller:type=StepDeadline";
+    private static final int REPORT_TOP = 10;
+
+    public enum Policy {
+        WAIT, REUSE, DROP;
+
+        public static Policy parse(String s, Policy otherwise) {
+            String v = s.trim().toLowerCase(Locale.ROOT);
+            for (Policy p : values()) {
+                if (p.name().toLowerCase(Locale.ROOT).equals(v)) return p;
+            }
+            log.warn("Unknown straggler_policy \"" + s + "\", using " + otherwise.name().toLowerCase(Locale.ROOT));
+            return otherwise;
+        }
+    }
+
+    private final String[] names;
+    private final long deadlineNs; // 0 = no deadline
+    private final Policy policy;
+    private final int dropAfter;
+
+    private final long[] lateSteps;
+    private final int[] inARow;
+    private final long[] maxOverrunNs; // wait: how long after the deadline the message came
+    private final boolean[] dropped;
+    private long lateTotal = 0;
+    private int droppedCount = 0;
+    private final LatencyHistogram overrun = new LatencyHistogram();
+    private ObjectName objectName;
+
+    public StepDeadline(String[] names, double deadlineMs, Policy policy, int dropAfter) {
+        this.names = names;
+        this.deadlineNs = (long) (Math.max(0, deadlineMs) * 1e6);
+        this.policy = policy;
+        this.dropAfter = Math.max(1, dropAfter);
+        int n = names.length;
+        lateSteps = new long[n];
+        inARow = new int[n];
+        maxOverrunNs = new long[n];
+        dropped = new boolean[n];
+        if (!enabled()) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            log.warn("Cannot register the step deadline MBean: " + e);
+            objectName = null;
+        }
+        log.info("Step deadline " + deadlineMs + " ms, stragglers: " + getPolicy()
+            + ((policy == Policy.DROP) ? ", dropped after " + this.dropAfter + " late steps in a row" : ""));
+    }
+
+    public boolean enabled() {
+        return deadlineNs > 0;
+    }
+
+    /** Deadline (System.nanoTime()) of the step started at stepStart, Long.MAX_VALUE if none */
+    public long deadline(long stepStart) {
+        return enabled() ? stepStart + deadlineNs : Long.MAX_VALUE;
+    }
+
+    /** The deadline passed with buildings still owed (EPSocketServer.nextFrame returned LATE): count them and
+     *  apply the policy. Returns the deadline for the rest of the step. */
+    public long late(EPSocketServer server) {
+        for (int i = 0; i < lateSteps.length; i++) {
+            if (!server.owed(i)) continue;
+            lateSteps[i]++;
+            lateTotal++;
+            inARow[i]++;
+            if (policy == Policy.WAIT) continue;
+            if (policy == Policy.DROP && inARow[i] >= dropAfter) {
+                server.drop(i);
+                dropped[i] = true;
+                droppedCount++;
+                log.warn("EnergyPlus simulation " + names[i] + " dropped: late " + inARow[i] + " steps in a row");
+            }
+            else {
+                server.skip(i);
+                if (inARow[i] == 1) log.info("EnergyPlus simulation " + names[i] + " missed the step deadline, reusing its last setpoints");
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /** Whether a simulation closing its connection mid-timestep is dropped (EPSocketServer.dropOnClose) */
+    public boolean dropsClosed() {
+        return enabled() && policy != Policy.WAIT;
+    }
+
+    /** Count and log the buildings whose simulation closed its connection without a TERMINATE (EPSocketServer.lost) */
+    public void closed(EPSocketServer server) {
+        for (int i = 0; i < dropped.length; i++) {
+            if (!server.lost(i) || dropped[i]) continue;
+            dropped[i] = true;
+            droppedCount++;
+            log.warn("EnergyPlus simulation " + names[i] + " dropped: closed its connection mid-timestep");
+        }
+    }
+
+    /** At the end of the run: log the simulations still owed a message one deadline after the last step.
+     *  Their EnergyPlus gets no reply to it and may not finish on its own. */
+    public void unanswered(EPSocketServer server) {
+        for (int i = 0; i < names.length; i++) {
+            if (server.owed(i)) {
+                log.warn("EnergyPlus simulation " + names[i] + " left unanswered at shutdown: no message within the step deadline");
+            }
+        }
+    }
+
+    /** Building i's message was handed out at now; deadlineAt is this step's deadline */
+    public void arrived(int i, long now, long deadlineAt) {
+        if (now <= deadlineAt) {
+            inARow[i] = 0;
+            return;
+        }
+        if (policy != Policy.WAIT) return; // an early report or extra message, nobody waited for it
+        long ns = now - deadlineAt;
+        overrun.record(ns);
+        if (ns > maxOverrunNs[i]) maxOverrunNs[i] = ns;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    /** Every building has been dropped: nothing is left to run */
+    public boolean allDropped() {
+        return droppedCount == names.length && names.length > 0;
+    }
+
+    /** Log the latest buildings and unregister from JMX */
+    public void close() {
+        if (!enabled()) return;
+        log.info("Step deadline: " + lateTotal + " late building-steps, " + droppedCount + " buildings dropped"
+            + ((overrun.count() > 0) ? ", overrun " + overrun.summary() : ""));
+        for (String line : getLateBuildings()) {
+            log.info("  late: " + line);
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                log.debug("Step deadline MBean already gone: " + e);
+            }
+        }
+    }
+
+    public double getDeadlineMillis() { return deadlineNs / 1e6; }
+
+    public String getPolicy() { return policy.name().toLowerCase(Locale.ROOT); }
+
+    public long getLateBuildingSteps() { return lateTotal; }
+
+    public int getDegradedCount() {
+        int c = 0;
+        for (int i = 0; i < inARow.length; i++) {
+            if (inARow[i] > 0 && !dropped[i]) c++;
+        }
+        return c;
+    }
+
+    public String[] getDroppedBuildings() {
+        List<String> d = new ArrayList<String>();
+        for (int i = 0; i < dropped.length; i++) {
+            if (dropped[i]) d.add(names[i]);
+        }
+        return d.toArray(new String[0]);
+    }
+
+    public String[] getLateBuildings() {
+        Integer[] late = new Integer[lateSteps.length];
+        int n = 0;
+        for (int i = 0; i < lateSteps.length; i++) {
+            if (lateSteps[i] > 0) late[n++] = i;
+        }
+        Arrays.sort(late, 0, n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lateSteps[b], lateSteps[a]);
+            }
+        });
+        List<String> lines = new ArrayList<String>();
+        for (int k = 0; k < Math.min(n, REPORT_TOP); k++) {
+            int i = late[k];
+            lines.add(String.format(Locale.ROOT, "%s: %d late steps, %d in a row%s%s", names[i], lateSteps[i], inARow[i],
+                (maxOverrunNs[i] > 0) ? String.format(Locale.ROOT, ", worst %.1f ms over", maxOverrunNs[i] / 1e6) : "",
+                dropped[i] ? ", dropped" : (inARow[i] > 0) ? ", degraded" : ""));
+        }
+        return lines.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,27 @@
+/*
+File:           StepDeadlineMBean.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: JMX view of StepDeadline, registered as org.webgme.guest.supercontroller:type=StepDeadline
+       (jconsole / VisualVM, MBeans tab). Counts are since startup.
+*/
+
+package org.webgme.guest.supercontroller;
+
+public interface StepDeadlineMBean {
+    /** step_deadline_ms: */
+    double getDeadlineMillis();
+
+    /** wait, reuse or drop */
+    String getPolicy();
+
+    /** Building-steps that missed the deadline */
+    long getLateBuildingSteps();
+
+    /** Buildings late in the last step(s) and not yet back on time */
+    int getDegradedCount();
+
+    String[] getDroppedBuildings();
+
+    /** Latest buildings: "name: late steps, in a row, worst overrun (wait), degraded/dropped" */
+    String[] getLateBuildings();
+}
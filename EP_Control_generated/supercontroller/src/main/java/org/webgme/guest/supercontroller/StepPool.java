@@ -0,0 +1,87 @@
+/*
+File:           StepPool.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Worker pool for stepping buildings in parallel. Buildings do not depend on each other within a
+       timestep, so each one is submitted as its data arrives and awaitStep() is the barrier before
+       the HLA time advance.
+       Set in config.txt with parallel_mode: off | threads | virtual   and   parallel_threads: (0 = one per core)
+       "virtual" uses Java 21+ virtual threads; on older JVMs it falls back to platform threads.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StepPool {
+    private final static Logger log = LogManager.getLogger();
+
+    private final ExecutorService pool;
+    private final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+
+    public StepPool(String mode, int threads) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        ExecutorService p = null;
+        if (mode.equals("virtual")) {
+            try {
+                // Looked up by reflection so the code still compiles and runs on Java 8
+                p = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                log.info("Stepping buildings in parallel on virtual threads");
+            }
+            catch (Exception e) {
+                log.warn("Virtual threads need Java 21+, using " + threads + " platform threads instead");
+            }
+        }
+        else if (!mode.equals("threads")) {
+            log.warn("Unknown parallel_mode \"" + mode + "\", using threads");
+        }
+        if (p == null) {
+            final AtomicInteger count = new AtomicInteger();
+            p = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "step-worker-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            log.info("Stepping buildings in parallel on " + threads + " threads");
+        }
+        pool = p;
+    }
+
+    /** Run one building's step. Only called from the main loop thread. */
+    public void submit(Runnable step) {
+        pending.add(pool.submit(step));
+    }
+
+    /** Barrier: wait for every step submitted since the last call. Rethrows the first failure. */
+    public void awaitStep() throws Exception {
+        try {
+            for (int k = 0; k < pending.size(); k++) {
+                pending.get(k).get();
+            }
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        }
+        finally {
+            pending.clear();
+        }
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
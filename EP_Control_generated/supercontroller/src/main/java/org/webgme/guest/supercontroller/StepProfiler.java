@@ -0,0 +1,337 @@
+/*
+File:           StepProfiler.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Where a timestep's time goes, per phase and per building, as latency histograms (LatencyHistogram).
+       Phases:
+           time_grant  waiting on the RTI: enteredTimeGrantedState() and putAdvanceTimeRequest()
+           ep_wait     per building: start of the EP exchange until its message is complete (EP's own time)
+           python      per building: thermostat.py requests
+           control     per building: setpoints, fuzzy control, appliances (without Python)
+           reply       per building: encoding and sending the SET reply
+           flush       worker barrier (parallel_mode) and queued replies
+           step        whole timestep
+       Workers only write their own building's slot; the main thread folds the slots into the histograms in
+       endStep(), after the barrier, so recording takes no locks and allocates nothing.
+       Every profile_interval: seconds (config.txt) the interval is appended to logs/step_profile-<time>.csv,
+       the profile_top: slowest buildings (sum of their phases) to logs/step_profile_slowest-<time>.csv, and
+       it is published over JMX (StepProfilerMBean). profile_interval: 0 turns all of it off, and start()
+       then skips even the clock reads.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class StepProfiler implements StepProfilerMBean {
+    private final static Logger log = LogManager.getLogger();
+
+    public enum Phase {
+        TIME_GRANT(false), EP_WAIT(true), PYTHON(true), CONTROL(true), REPLY(true), FLUSH(false), STEP(false);
+
+        public final boolean perBuilding;
+
+        Phase(boolean perBuilding) { this.perBuilding = perBuilding; }
+
+        public String label() { return name().toLowerCase(Locale.ROOT); }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final String OBJECT_NAME = "org.webgme.guest.supercontroller:type=StepProfiler";
+
+    private final boolean enabled;
+    private final String[] names;
+    private final int numSims;
+    private final long intervalNs;
+    private final int topN;
+
+    // This step: per-building phases [phase][building], -1 = not recorded. Global phases [phase]
+    private final long[][] current;
+    private final long[] currentGlobal = new long[PHASES.length];
+    // This interval: per building totals [phase][building], and histograms of both kinds of phase
+    private final long[][] intervalSum;
+    private final LatencyHistogram[] interval = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram[] run = new LatencyHistogram[PHASES.length];
+    private long stepStart = 0;
+    private long intervalStart = 0;
+    private long intervalFirstStep = 1;
+    private volatile long steps = 0;
+
+    private PrintWriter phaseCsv, slowestCsv;
+    private ObjectName objectName;
+    private volatile Snapshot snapshot;
+
+    /** Published for JMX at the end of each interval */
+    private static final class Snapshot {
+        final double[][] stats; // [mean, p50, p90, p99, p99.9, max][phase], ms
+        final String[] slowest;
+        final String[] run;
+
+        Snapshot(double[][] stats, String[] slowest, String[] run) {
+            this.stats = stats;
+            this.slowest = slowest;
+            this.run = run;
+        }
+    }
+
+    /**
+     * @param names building names, by building index
+     * @param intervalSeconds wall time between reports, 0 = profiling off
+     * @param topN slowest buildings to report per interval
+     * @param logsDir folder for the CSV files, created if needed
+     */
+    public StepProfiler(String[] names, double intervalSeconds, int topN, File logsDir) {
+        this.names = names;
+        this.numSims = names.length;
+        this.enabled = intervalSeconds > 0;
+        this.intervalNs = (long) (intervalSeconds * 1e9);
+        this.topN = Math.min(Math.max(topN, 0), numSims);
+        current = new long[PHASES.length][];
+        intervalSum = new long[PHASES.length][];
+        for (Phase p : PHASES) {
+            interval[p.ordinal()] = new LatencyHistogram();
+            run[p.ordinal()] = new LatencyHistogram();
+            if (p.perBuilding && enabled) {
+                current[p.ordinal()] = new long[numSims];
+                intervalSum[p.ordinal()] = new long[numSims];
+                Arrays.fill(current[p.ordinal()], -1);
+            }
+        }
+        Arrays.fill(currentGlobal, -1);
+        snapshot = new Snapshot(new double[6][PHASES.length], new String[0], new String[0]);
+        if (!enabled) return;
+
+        String stamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+        try {
+            logsDir.mkdirs();
+            File phaseFile = new File(logsDir, "step_profile-" + stamp + ".csv");
+            File slowestFile = new File(logsDir, "step_profile_slowest-" + stamp + ".csv");
+            phaseCsv = new PrintWriter(new BufferedWriter(new FileWriter(phaseFile)));
+            phaseCsv.println("first_step,last_step,sim_time,phase,count,mean_ms,p50_ms,p90_ms,p99_ms,p99_9_ms,max_ms");
+            slowestCsv = new PrintWriter(new BufferedWriter(new FileWriter(slowestFile)));
+            StringBuilder header = new StringBuilder("first_step,last_step,sim_time,rank,building,index,total_ms");
+            for (Phase p : PHASES) {
+                if (p.perBuilding) header.append(',').append(p.label()).append("_ms");
+            }
+            slowestCsv.println(header);
+            log.info("Step profile every " + intervalSeconds + " s to " + phaseFile + " and " + slowestFile);
+        }
+        catch (IOException e) {
+            log.warn("Cannot write the step profile to " + logsDir + ", JMX only: " + e);
+            phaseCsv = null;
+            slowestCsv = null;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        }
+        catch (JMException e) {
+            log.warn("Cannot register the step profile MBean: " + e);
+            objectName = null;
+        }
+        intervalStart = System.nanoTime();
+    }
+
+    public boolean enabled() { return enabled; }
+
+    /** Clock for stop(), 0 when profiling is off */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Add the time since start to building i's phase for this step. Returns the duration, 0 when off. */
+    public long stop(Phase p, int i, long start) {
+        if (!enabled) return 0;
+        long d = System.nanoTime() - start;
+        record(p, i, d);
+        return d;
+    }
+
+    /** Add nanos to building i's phase for this step. Only touches slot i: safe from building i's worker. */
+    public void record(Phase p, int i, long nanos) {
+        if (!enabled) return;
+        long[] slot = current[p.ordinal()];
+        slot[i] = (slot[i] < 0) ? nanos : slot[i] + nanos;
+    }
+
+    /** Add the time since start to a phase of the whole step. Main thread only. */
+    public void stop(Phase p, long start) {
+        if (!enabled) return;
+        long d = System.nanoTime() - start;
+        long v = currentGlobal[p.ordinal()];
+        currentGlobal[p.ordinal()] = (v < 0) ? d : v + d;
+    }
+
+    /** Start of a timestep, before waiting for the time grant. Main thread only. */
+    public void beginStep() {
+        if (enabled) stepStart = System.nanoTime();
+    }
+
+    /** End of a timestep, after every building is done: fold this step into the histograms. Main thread only. */
+    public void endStep(double simTime) {
+        if (!enabled) return;
+        long now = System.nanoTime();
+        stop(Phase.STEP, stepStart);
+        for (Phase p : PHASES) {
+            int k = p.ordinal();
+            if (p.perBuilding) {
+                long[] slot = current[k];
+                long[] sum = intervalSum[k];
+                for (int i = 0; i < numSims; i++) {
+                    long v = slot[i];
+                    if (v >= 0) {
+                        interval[k].record(v);
+                        sum[i] += v;
+                        slot[i] = -1;
+                    }
+                }
+            }
+            else if (currentGlobal[k] >= 0) {
+                interval[k].record(currentGlobal[k]);
+                currentGlobal[k] = -1;
+            }
+        }
+        steps++;
+        if (now - intervalStart >= intervalNs) {
+            report(simTime);
+            intervalStart = now;
+        }
+    }
+
+    /** Report what is left of the last interval, and unregister from JMX */
+    public void close(double simTime) {
+        if (!enabled) return;
+        if (steps >= intervalFirstStep) report(simTime);
+        if (phaseCsv != null) phaseCsv.close();
+        if (slowestCsv != null) slowestCsv.close();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException e) {
+                log.debug("Step profile MBean already gone: " + e);
+            }
+        }
+    }
+
+    // Write the interval to the CSV files, publish it for JMX and start the next one
+    private void report(double simTime) {
+        double[][] stats = new double[6][PHASES.length];
+        String[] runLines = new String[PHASES.length];
+        for (Phase p : PHASES) {
+            int k = p.ordinal();
+            LatencyHistogram h = interval[k];
+            stats[0][k] = h.mean() / 1e6;
+            stats[1][k] = h.percentile(50) / 1e6;
+            stats[2][k] = h.percentile(90) / 1e6;
+            stats[3][k] = h.percentile(99) / 1e6;
+            stats[4][k] = h.percentile(99.9) / 1e6;
+            stats[5][k] = h.max() / 1e6;
+            if (phaseCsv != null && h.count() > 0) {
+                phaseCsv.println(String.format(Locale.ROOT, "%d,%d,%s,%s,%d,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f",
+                        intervalFirstStep, steps, simTime, p.label(), h.count(),
+                        stats[0][k], stats[1][k], stats[2][k], stats[3][k], stats[4][k], stats[5][k]));
+            }
+            run[k].add(h);
+            runLines[k] = p.label() + ": " + run[k].summary();
+        }
+        String[] slowest = slowest(simTime);
+        if (phaseCsv != null) phaseCsv.flush();
+        if (slowestCsv != null) slowestCsv.flush();
+        snapshot = new Snapshot(stats, slowest, runLines);
+
+        for (Phase p : PHASES) {
+            interval[p.ordinal()].reset();
+            if (p.perBuilding) Arrays.fill(intervalSum[p.ordinal()], 0);
+        }
+        intervalFirstStep = steps + 1;
+    }
+
+    // topN buildings by interval total, slowest first. Also written to the slowest CSV
+    private String[] slowest(double simTime) {
+        int[] top = new int[topN];
+        long[] topTotal = new long[topN];
+        int found = 0;
+        for (int i = 0; i < numSims; i++) {
+            long total = total(i);
+            // insertion into the sorted top list
+            int pos = found;
+            while (pos > 0 && topTotal[pos - 1] < total) pos--;
+            if (pos >= topN) continue;
+            int last = Math.min(found, topN - 1);
+            System.arraycopy(top, pos, top, pos + 1, last - pos);
+            System.arraycopy(topTotal, pos, topTotal, pos + 1, last - pos);
+            top[pos] = i;
+            topTotal[pos] = total;
+            if (found < topN) found++;
+        }
+        String[] lines = new String[found];
+        for (int r = 0; r < found; r++) {
+            int i = top[r];
+            StringBuilder csv = new StringBuilder(String.format(Locale.ROOT, "%d,%d,%s,%d,%s,%d,%.4f",
+                    intervalFirstStep, steps, simTime, r + 1, names[i], i, topTotal[r] / 1e6));
+            StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "%s %.3f ms (", names[i], topTotal[r] / 1e6));
+            boolean first = true;
+            for (Phase p : PHASES) {
+                if (!p.perBuilding) continue;
+                double ms = intervalSum[p.ordinal()][i] / 1e6;
+                csv.append(String.format(Locale.ROOT, ",%.4f", ms));
+                text.append(first ? "" : ", ").append(p.label()).append(String.format(Locale.ROOT, " %.3f", ms));
+                first = false;
+            }
+            lines[r] = text.append(')').toString();
+            if (slowestCsv != null) slowestCsv.println(csv);
+        }
+        return lines;
+    }
+
+    private long total(int i) {
+        long t = 0;
+        for (Phase p : PHASES) {
+            if (p.perBuilding) t += intervalSum[p.ordinal()][i];
+        }
+        return t;
+    }
+
+    // JMX ================================================================================
+
+    public long getSteps() { return steps; }
+
+    public String[] getPhases() {
+        String[] s = new String[PHASES.length];
+        for (Phase p : PHASES) s[p.ordinal()] = p.label();
+        return s;
+    }
+
+    public double[] getMeanMillis() { return snapshot.stats[0].clone(); }
+
+    public double[] getP50Millis() { return snapshot.stats[1].clone(); }
+
+    public double[] getP90Millis() { return snapshot.stats[2].clone(); }
+
+    public double[] getP99Millis() { return snapshot.stats[3].clone(); }
+
+    public double[] getP999Millis() { return snapshot.stats[4].clone(); }
+
+    public double[] getMaxMillis() { return snapshot.stats[5].clone(); }
+
+    public String[] getSlowestBuildings() { return snapshot.slowest.clone(); }
+
+    public String[] getRunSummary() { return snapshot.run.clone(); }
+}
@@ -0,0 +1,30 @@
+/*
+File:           StepProfilerMBean.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: JMX view of StepProfiler, registered as org.webgme.guest.supercontroller:type=StepProfiler
+       (jconsole / VisualVM, MBeans tab). Arrays are indexed like getPhases(). Values are from the last
+       completed profile_interval, except getSteps() and getRunSummary().
+*/
+
+package org.webgme.guest.supercontroller;
+
+public interface StepProfilerMBean {
+    /** Timesteps completed so far */
+    long getSteps();
+
+    /** Phase names, in the order of the arrays below */
+    String[] getPhases();
+
+    double[] getMeanMillis();
+    double[] getP50Millis();
+    double[] getP90Millis();
+    double[] getP99Millis();
+    double[] getP999Millis();
+    double[] getMaxMillis();
+
+    /** Slowest buildings of the last interval: "name total ms (ep_wait ..., python ..., control ..., reply ...)" */
+    String[] getSlowestBuildings();
+
+    /** One line per phase with percentiles over the whole run, as of the last interval */
+    String[] getRunSummary();
+}
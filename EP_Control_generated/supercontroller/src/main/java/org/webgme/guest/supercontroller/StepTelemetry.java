@@ -0,0 +1,103 @@
+/*
+File:           StepTelemetry.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Per-timestep output of the supercontroller, replacing System.out.println in the timestep loop.
+       Everything goes to this class's logger, which conf/log4j2.xml makes an AsyncLogger (LMAX disruptor),
+       so the simulation never waits on the console.
+       Verbosity per building (telemetry: in config.txt, overridden by telemetry: in config_<bldg>.txt):
+           off       nothing
+           summary   one line per step for the whole federation: step time, temperatures, dishwashers
+           detail    the old per-building output (received variables, setpoints, appliance decisions)
+                     at DEBUG level, every telemetry_every: steps
+       Callers check detail(i) before building any message, so buildings that are not logged cost nothing.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+public class StepTelemetry {
+    private final static Logger log = LogManager.getLogger();
+
+    public enum Verbosity {
+        OFF, SUMMARY, DETAIL;
+
+        public static Verbosity parse(String s, Verbosity otherwise) {
+            String v = s.trim().toLowerCase();
+            if (v.equals("off")) return OFF;
+            if (v.equals("summary")) return SUMMARY;
+            if (v.equals("detail")) return DETAIL;
+            log.warn("Unknown telemetry setting \"" + s + "\", using " + otherwise.name().toLowerCase());
+            return otherwise;
+        }
+    }
+
+    private final Verbosity[] verbosity;
+    private final int[] every;
+    private boolean anySummary = false;
+    private long step = 0;
+    private boolean anyDetail = false; // some building is logged in detail this step
+
+    public StepTelemetry(int numSims) {
+        verbosity = new Verbosity[numSims];
+        every = new int[numSims];
+    }
+
+    /** sampleEvery: log building i in detail only every sampleEvery steps (1 = every step) */
+    public void configure(int i, Verbosity v, int sampleEvery) {
+        verbosity[i] = v;
+        every[i] = Math.max(1, sampleEvery);
+        anySummary |= v != Verbosity.OFF;
+    }
+
+    /** Called by the main thread before any building of this step runs. */
+    public void beginStep(long stepNumber) {
+        step = stepNumber;
+        anyDetail = false;
+        if (!log.isDebugEnabled()) return;
+        for (int i = 0; i < verbosity.length; i++) {
+            if (sampled(i)) {
+                anyDetail = true;
+                break;
+            }
+        }
+    }
+
+    private boolean sampled(int i) {
+        return verbosity[i] == Verbosity.DETAIL && step % every[i] == 0;
+    }
+
+    /** Whether building i's per-step detail is logged this step. */
+    public boolean detail(int i) {
+        return anyDetail && sampled(i);
+    }
+
+    /** Whether the once-per-step detail (time, occupancy, day counter) is logged this step. */
+    public boolean detail() {
+        return anyDetail;
+    }
+
+    public Logger log() { return log; }
+
+    /** One line for the whole step, over the buildings that are not off. */
+    public void summary(double time, int numSims, double stepMs, double avgStepMs,
+                        double[] indoorTemp, double[] outdoorTemp, byte[] setDishwasher) {
+        if (!anySummary || !log.isInfoEnabled()) return;
+        int n = 0;
+        int dishwashersOn = 0;
+        double minIn = Double.POSITIVE_INFINITY, maxIn = Double.NEGATIVE_INFINITY, sumIn = 0, sumOut = 0;
+        for (int i = 0; i < numSims; i++) {
+            if (verbosity[i] == Verbosity.OFF) continue;
+            n++;
+            minIn = Math.min(minIn, indoorTemp[i]);
+            maxIn = Math.max(maxIn, indoorTemp[i]);
+            sumIn += indoorTemp[i];
+            sumOut += outdoorTemp[i];
+            dishwashersOn += setDishwasher[i];
+        }
+        log.info(String.format("Step %d t=%.0f | %d sims %.3f ms (avg %.3f ms/step, %.4f ms/sim) | indoor %.2f/%.2f/%.2f outdoor %.2f | dishwashers on %d/%d",
+                step, time, numSims, stepMs, avgStepMs, avgStepMs / numSims,
+                minIn, sumIn / n, maxIn, sumOut / n, dishwashersOn, n));
+    }
+}
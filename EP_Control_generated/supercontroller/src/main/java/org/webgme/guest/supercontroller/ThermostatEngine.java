@@ -0,0 +1,169 @@
+/*
+File:           ThermostatEngine.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: Java port of thermostat.py, so buildings can get the Python setpoints without starting a subprocess.
+       Every MODE of thermostat.py is implemented with the same constants, clamps and heat/cool shutoff:
+           occupancy, occupancy_sensor, occupancy_prob, adaptive90, fixed
+       norm.ppf is replaced by inverseNormalCdf(), Wichura's AS241 algorithm (relative error ~1e-16), which also
+       gives the Java occupancy setpoints an exact comfort band instead of the old 1% lookup table.
+       Use with thermostat_code_language: java_thermostat   in config_<bldg>.txt
+*/
+
+package org.webgme.guest.supercontroller;
+
+public final class ThermostatEngine {
+
+    /** thermostat.py MODE strings */
+    public enum Mode {
+        OCCUPANCY, OCCUPANCY_SENSOR, OCCUPANCY_PROB, ADAPTIVE90, FIXED,
+        OTHER_OCCUPANCY, // contains "occupancy" but is none of the above: python computes the band but sets nothing
+        INVALID;
+
+        public static Mode parse(String mode) {
+            String m = mode.trim();
+            if (m.equals("occupancy")) return OCCUPANCY;
+            if (m.equals("occupancy_sensor")) return OCCUPANCY_SENSOR;
+            if (m.equals("occupancy_prob")) return OCCUPANCY_PROB;
+            if (m.contains("occupancy")) return OTHER_OCCUPANCY;
+            if (m.equals("adaptive90")) return ADAPTIVE90;
+            if (m.equals("fixed")) return FIXED;
+            return INVALID;
+        }
+    }
+
+    // Max and min for heating and cooling in adaptive setpoint control for 90% of people [°C]
+    static final double HEAT_TEMP_MAX_90 = 26.2;
+    static final double HEAT_TEMP_MIN_90 = 18.9;
+    static final double COOL_TEMP_MAX_90 = 30.2;
+    static final double COOL_TEMP_MIN_90 = 22.9;
+    // Min and max temperature for heating and cooling adaptive for 100% of people [°C]
+    static final double HEAT_TEMP_MAX_100 = 25.7;
+    static final double HEAT_TEMP_MIN_100 = 18.4;
+    static final double COOL_TEMP_MAX_100 = 29.7;
+    static final double COOL_TEMP_MIN_100 = 22.4;
+    // Furthest setback points allowed when building is unoccupied [°C]
+    static final double VACANT_COOL = 32;
+    static final double VACANT_HEAT = 12;
+    // Adaptive comfort is normally distributed with this standard deviation
+    static final double SIGMA = 3.937;
+    // Flag values thermostat.py starts from
+    static final double NO_COOL = 999;
+    static final double NO_HEAT = 0;
+
+    private ThermostatEngine() {}
+
+    /** Heating setpoint, same as thermostat_set_heat from thermostat.py.
+     *  fixedLower/fixedUpper replace thermostat.py's hard-coded 20/23 for fixed mode. */
+    public static double heatSetpoint(Mode mode, char heatOrCool, double outdoorTemp,
+                                      double occupancyStatus, double occProb, double fixedLower) {
+        if (heatOrCool == 'c') return 0.0; // Shut off whichever is not needed
+        switch (mode) {
+            case FIXED:
+                return fixedLower;
+            case ADAPTIVE90:
+                return clamp(outdoorTemp * 0.31 + 15.8, HEAT_TEMP_MIN_90, HEAT_TEMP_MAX_90);
+            case OCCUPANCY:
+                if (occupancyStatus == 1) return adaptiveHeatOccupancy(outdoorTemp);
+                return outdoorTemp * 0.31 + 16.3 - comfortRange(occProb);
+            case OCCUPANCY_SENSOR:
+                if (occupancyStatus == 1) return adaptiveHeatOccupancy(outdoorTemp);
+                return VACANT_HEAT;
+            case OCCUPANCY_PROB:
+                return outdoorTemp * 0.31 + 16.3 - comfortRange(occProb);
+            default:
+                return NO_HEAT;
+        }
+    }
+
+    /** Cooling setpoint, same as thermostat_set_cool from thermostat.py. */
+    public static double coolSetpoint(Mode mode, char heatOrCool, double outdoorTemp,
+                                      double occupancyStatus, double occProb, double fixedUpper) {
+        if (heatOrCool == 'h') return 50.0;
+        switch (mode) {
+            case FIXED:
+                return fixedUpper;
+            case ADAPTIVE90:
+                return clamp(outdoorTemp * 0.31 + 19.8, COOL_TEMP_MIN_90, COOL_TEMP_MAX_90);
+            case OCCUPANCY:
+                if (occupancyStatus == 1) return adaptiveCoolOccupancy(outdoorTemp);
+                return outdoorTemp * 0.31 + 19.3 + comfortRange(occProb);
+            case OCCUPANCY_SENSOR:
+                if (occupancyStatus == 1) return adaptiveCoolOccupancy(outdoorTemp);
+                return VACANT_COOL;
+            case OCCUPANCY_PROB:
+                return outdoorTemp * 0.31 + 19.3 + comfortRange(occProb);
+            default:
+                return NO_COOL;
+        }
+    }
+
+    // In occupancy modes the 90% adaptive setpoint is clamped again to the 100% limits
+    private static double adaptiveHeatOccupancy(double outdoorTemp) {
+        double h = clamp(outdoorTemp * 0.31 + 15.8, HEAT_TEMP_MIN_90, HEAT_TEMP_MAX_90);
+        return clamp(h, HEAT_TEMP_MIN_100, HEAT_TEMP_MAX_100);
+    }
+
+    private static double adaptiveCoolOccupancy(double outdoorTemp) {
+        double c = clamp(outdoorTemp * 0.31 + 19.8, COOL_TEMP_MIN_90, COOL_TEMP_MAX_90);
+        return clamp(c, COOL_TEMP_MIN_100, COOL_TEMP_MAX_100);
+    }
+
+    // Same order as the python ifs: raise to min first, then lower to max
+    private static double clamp(double x, double min, double max) {
+        if (x < min) x = min;
+        if (x > max) x = max;
+        return x;
+    }
+
+    /** Comfort band expansion for a probability of occupancy: norm.ppf((1-p)/2 + 1/2) * sigma.
+     *  Infinite at p = 0, exactly like scipy. */
+    public static double comfortRange(double occProb) {
+        return inverseNormalCdf((1 - occProb) / 2 + 0.5) * SIGMA;
+    }
+
+    /** Inverse of the standard normal CDF (scipy.stats.norm.ppf).
+     *  Wichura, Algorithm AS241 PPND16, Applied Statistics 37 (1988). Returns +-Infinity at 1 and 0, NaN outside [0,1]. */
+    public static double inverseNormalCdf(double p) {
+        if (!(p >= 0 && p <= 1)) return Double.NaN;
+        if (p == 0) return Double.NEGATIVE_INFINITY;
+        if (p == 1) return Double.POSITIVE_INFINITY;
+        double q = p - 0.5;
+        if (Math.abs(q) <= 0.425) {
+            double r = 0.180625 - q * q;
+            return q * (((((((2509.0809287301226727 * r + 33430.575583588128105) * r
+                    + 67265.770927008700853) * r + 45921.953931549871457) * r
+                    + 13731.693765509461125) * r + 1971.5909503065514427) * r
+                    + 133.14166789178437745) * r + 3.387132872796366608)
+                / (((((((5226.495278852545925 * r + 28729.085735721942674) * r
+                    + 39307.89580009271061) * r + 21213.794301586595867) * r
+                    + 5394.1960214247511077) * r + 687.1870074920579083) * r
+                    + 42.313330701600911252) * r + 1.0);
+        }
+        double r = (q < 0) ? p : 1 - p;
+        r = Math.sqrt(-Math.log(r));
+        double x;
+        if (r <= 5) {
+            r -= 1.6;
+            x = (((((((7.7454501427834140764e-4 * r + 0.0227238449892691845833) * r
+                    + 0.24178072517745061177) * r + 1.27045825245236838258) * r
+                    + 3.64784832476320460504) * r + 5.7694972214606914055) * r
+                    + 4.6303378461565452959) * r + 1.42343711074968357734)
+                / (((((((1.05075007164441684324e-9 * r + 5.475938084995344946e-4) * r
+                    + 0.0151986665636164571966) * r + 0.14810397642748007459) * r
+                    + 0.68976733498510000455) * r + 1.6763848301838038494) * r
+                    + 2.05319162663775882187) * r + 1.0);
+        }
+        else {
+            r -= 5;
+            x = (((((((2.01033439929228813265e-7 * r + 2.71155556874348757815e-5) * r
+                    + 0.0012426609473880784386) * r + 0.026532189526576123093) * r
+                    + 0.29656057182850489123) * r + 1.7848265399172913358) * r
+                    + 5.4637849111641143699) * r + 6.6579046435011037772)
+                / (((((((2.04426310338993978564e-15 * r + 1.4215117583164458887e-7) * r
+                    + 1.8463183175100546818e-5) * r + 7.868691311456132591e-4) * r
+                    + 0.0148753612908506148525) * r + 0.13692988092273580531) * r
+                    + 0.59983220655588793769) * r + 1.0);
+        }
+        return (q < 0) ? -x : x;
+    }
+}
@@ -30,6 +30,7 @@ import org.apache.logging.log4j.Logger;
 import org.cpswt.utils.CpswtUtils;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.lang.String;
 import java.util.Random;
 import java.lang.*;
@@ -42,6 +43,29 @@ public class supercontroller extends supercontrollerBase {
     private double currentTime = 0;
     
 	int numSims = 0; //Define number of simulation variable here.
+	
+	// Per-building state ========================================================================
+	// A field instead of execute() locals so each building's step can run on its own worker thread.
+	// Sized by numSims in execute(). During a step, building i only touches element [i].
+	private BuildingStateStore bldg;
+	// Names of the variables EP sends, as int IDs
+	private final EPVariables epVars = new EPVariables();
+	private EPSocketServer epServer; // EP connections, and the reply buffers buildings' replies are encoded into
+	private StepTelemetry telemetry; // per-step output, async & per building verbosity
+	private BuildingController controller; // one building's timestep: setpoints, appliances, reply
+	private StepProfiler profiler; // per-phase, per-building step time histograms, to logs/ and JMX
+	private SetpointCache setpointCache; // setpoints shared by buildings with the same inputs
+	private Checkpoint checkpoint; // periodic snapshot of the controller state, and resume from it
+	private ResultsSink results; // per-building time series, written in the background
+	private StepDeadline deadline; // per-step deadline for EP messages and what to do with stragglers
+	// setpoint_kernel: batch. Buildings whose frames are in, stepped together (BuildingController.stepBatch)
+	private int[] batchIds;
+	private EPFrame[] batchFrames;
+	private int batchSize = 0;
+	
+	private String thermostatFile = "thermostat.py";
+	// Persistent thermostat.py workers, one pool per python command. Empty = start a process per request
+	private HashMap<String, PythonThermostatPool> pythonPools = new HashMap<String, PythonThermostatPool>();
 
     public supercontroller(FederateConfig params) throws Exception {
         super(params);
@@ -78,21 +102,8 @@ public class supercontroller extends supercontrollerBase {
 		
 		// Declare Variables =====================================================================
 		
-		//Data that gets sent to EP each timestep for each sim. --------------------------
-		//values sent to EnergyPlus --- Add one for each variable sent to controller
-		String setHeatStr[]=new String[numSims];
-		String setCoolStr[]=new String[numSims];
-		//String ePeople[]=new String[numSims];
-		//String eDWS[] = new String[numSims];
-		String setDishwasherStr[] = new String[numSims];
-		// number versions of ^
-		double[] setHeat = new double[numSims];
-		double[] setCool = new double[numSims];
-		int[] setDishwasher = new int[numSims];
-				
-		//Data received from EP
-		double[] indoorTemp = new double[numSims];
-		double[] outdoorTemp = new double[numSims];
+		//Per-building data sent to & received from EP, and config settings (bldg): all slots allocated
+		//once config.txt says which buildings are this shard's, below
 		/* //Currently not used:
 		//humidity, heatEnergy, coolEnergy, netEnergy, energyPurchase, energySurplus, dayInt, solarRad, setHeatStrFromEP, setCoolStrFromEP
 		double[] humidity = new double[numSims];
@@ -110,57 +121,61 @@ public class supercontroller extends supercontrollerBase {
 		
 		//Obtained from config settings ------------------------------------------------
 		//some have default values in case none are specified
-		boolean[] usePython = new boolean[numSims];
 		String bldgNames[] = new String[numSims];
 		String ipAdd = "";
         int portNo = 6789;
         int nt = 12; //timesteps per hour
         int nDays = 7;
-        String[] mode = new String[numSims];
-        String[] heatOrCool = new String[numSims];
-        char[] hcc = new char[numSims];  //  initialize with 'z' in for loop
         String dateRange = "";
         String loc = "";
         char wholesaleType = 'z';
 		String priceType = "";
-        String thermostatCommand[] = new String[numSims];
-        boolean[] optimizeSet = new boolean[numSims]; // intialize with false; //True if optimized, false if not optimized
-        boolean[] adaptiveSet = new boolean[numSims]; // intialize with false; //True if using adaptive setpoint, false if fixed setpoint. Not used if optimizeSet = true.
-        boolean[] occupancySet = new boolean[numSims]; // intialize with false; //Does it use occupancy?
-        boolean[] fixedSet = new boolean[numSims];
-        double[] fixedMax = new double[numSims];
-        double[] fixedMin = new double[numSims];
-        boolean[] hasDishwasher = new boolean[numSims];
+        // Price optimizer, for Java buildings with optimize: true (PriceOptimizer)
+        double optimizerHorizon = 2; // h planned ahead
+        double optimizerBudgetMs = 2; // per building per step
+        double optimizerTimeConstant = 4; // h, building temperature response
+        double optimizerComfortWeight = 50; // cost of a squared degree outside the comfort band, in mean prices
+        String priceFile = ""; // hourly prices, blank = time-of-use tariff
+        String[] occupancyFile; // occupancy_dataset: of each building, default from config.txt
+        String occupancyDefault = "OccupancyAnnualHourly.csv";
+        long occupancyCacheMB = 256; // occupancy datasets kept open, shared by buildings
         //for Python scripts and stuff
         int numPython = 0;
-        boolean writeFile = false;
+        boolean writeFile = false; // per-building time series to results/ (ResultsSink)
+        boolean resultsCsv = false; // ... also as CSV
+        int resultsBufferMB = 64; // results waiting to be written, at most
         String optimizerFile = "energyOptTset2hr.py";
         String setpointFile = "occupancyAdaptSetpoints.py";
-        String thermostatFile = "thermostat.py";
+        //Run each building's step on a worker pool: off, threads, virtual
+        String parallelMode = "off";
+        int parallelThreads = 0; // 0 = one per core
+        String setpointKernel = "building"; // building = step each building as its data arrives, batch = all that are in together
+        int pythonWorkers = Runtime.getRuntime().availableProcessors(); // per python command, 0 = new process per request
+        //Time advance: lockstep = request t+1 after all buildings are done, pipelined = right after t is granted
+        String timeAdvanceMode = "lockstep";
+        double profileInterval = 60; // s between step profile reports, 0 = off
+        int profileTop = 10; // slowest buildings per report
+        int setpointCacheSize = 0; // setpoint cache entries, 0 = off
+        double setpointCacheQuantum = 0; // outdoor temperature rounding for the cache [C], 0 = exact
+        String applianceSeed = ""; // appliance scheduler random seed, blank = different every run
+        int checkpointInterval = 0; // steps between checkpoints, 0 = off
+        boolean checkpointResume = false; // continue from the last checkpoint instead of timestep 0
+        boolean binaryProtocol = true; // let simulations that ask for it switch to the binary protocol
+        String joinMode = "ports"; // ports = building i connects at port_number+i, single = all at port_number with JOIN
+        int joinTimeout = 0; // s to wait for every building to connect, 0 = forever
+        double stepDeadlineMs = 0; // EP messages due this long after the step starts, 0 = no deadline
+        StepDeadline.Policy stragglerPolicy = StepDeadline.Policy.WAIT;
+        int stragglerDropAfter = 3; // drop: late steps in a row before a building is dropped
+        //Per-step output: off, summary, detail. Default for buildings without their own telemetry: setting
+        StepTelemetry.Verbosity telemetryDefault = StepTelemetry.Verbosity.DETAIL;
+        StepTelemetry.Verbosity[] telemetryBldg;
+        int[] telemetryEvery;
+        //Sharding: buildings split between numShards supercontroller federates, this one owns part shardIndex
+        int numShards = 1;
+        String shardAddresses = ""; // comma separated ip_address of each shard, "" = ip_address for all
+        int shardIndex = Integer.valueOf(System.getProperty("supercontroller.shard", "0"));
         // --------------------------------------------------------------------------------
         
-        //Various constants
-        double fuzzyOffset = 1.0;
-        double fuzzyMargin = 0.1; //Distance from max allowed before it activates
-        double fuzzyFudge = 0.1; //fudge factor to avoid low amounts of energy keeping it very close to the setting
-        boolean[] fuzzyCool = new boolean[numSims];
-        boolean[] fuzzyHeat = new boolean[numSims];
-        //occExp corresponds to index = round(prob * 100 - 1)
-        //occExp is array where:
-		// element 0 = comfort range expansion at probability of occupancy = 0.01
-		// element 1 = comfort range expansion at probability of occupancy = 0.01
-		// element 98 = comfort range expansion at probability of occupancy = 0.99
-		//This is used beccause Java lacks a nice norm.ppf type function as in Python
-		//These constant values were taken from a Python script running a loop of all probabilities by 1% 
-        double [] occExp = {10.141,9.159,8.544,8.086,7.716,7.405,7.133,6.892,6.675,6.476,6.292,6.121,5.961,5.81,5.667,5.532,5.402,5.279,5.16,5.045,4.935,4.829,4.726,4.626,4.529,4.435,4.343,4.253,4.166,4.08,3.997,3.915,3.835,3.757,3.679,3.604,3.529,3.456,3.384,3.313,3.244,3.175,3.107,3.04,2.974,2.909,2.844,2.781,2.718,2.655,2.594,2.533,2.472,2.413,2.353,2.295,2.236,2.179,2.121,2.065,2.008,1.952,1.897,1.841,1.786,1.732,1.678,1.624,1.57,1.517,1.464,1.411,1.359,1.307,1.254,1.203,1.151,1.1,1.048,0.997,0.947,0.896,0.845,0.795,0.745,0.694,0.644,0.594,0.545,0.495,0.445,0.395,0.346,0.296,0.247,0.197,0.148,0.099,0.049};
-        
-        //Temporary variables for Python
-        char var2save = 'Z'; // default value to save nothing
-        String pycmd="";
-        String s = "";
-        double comfTemp = 0;
-        double comfExpansion = 0;
-        
         // Done Declaring Variables =========================================
         
         
@@ -172,45 +187,135 @@ public class supercontroller extends supercontrollerBase {
         
         while ((st = br.readLine())!=null ){ //&& (ipAdd.equals("") || portNo == 0)){
             //log.info(st);
-            if(st.contains("ip_address:")){
+            if(st.startsWith("ip_address:")){
                 ipAdd = br.readLine();
             }
-            if(st.contains("port_number:")){
+            if(st.startsWith("port_number:")){
                 portNo = Integer.valueOf(br.readLine());
             }
             // global
-            else if(st.contains("date_range:")){
+            else if(st.startsWith("date_range:")){
                 dateRange = br.readLine();
             } 
             // global
-            else if(st.contains("location:")){
+            else if(st.startsWith("location:")){
                 loc = br.readLine();
             }
-            else if(st.contains("electricity_pricing_type:")){
-                wholesaleType = br.readLine().charAt(0);
-				priceType = br.readLine();
+            else if(st.startsWith("electricity_pricing_type:")){
+				priceType = br.readLine().trim();
+                wholesaleType = priceType.isEmpty() ? 'n' : priceType.charAt(0);
             }
             
             //List of building names. One per simulation must be listed.
-            else if(st.contains("building_names")){
+            else if(st.startsWith("building_names:")){
 				for(int i = 0; i<numSims; i++){
 					bldgNames[i] = br.readLine();
 				}
 			}
-			else if(st.contains("timesteps_per_hour:")){
+			else if(st.startsWith("timesteps_per_hour:")){
                 nt = Integer.valueOf(br.readLine());
             }
-            else if(st.contains("number_of_days:")){
+            else if(st.startsWith("number_of_days:")){
                 nDays = Integer.valueOf(br.readLine());
             }
-            /* //Not currently in use
-            else if(st.contains("write_extra_data_files:")){
-                writeFile = Boolean.parseBoolean(br.readLine());
+            else if(st.startsWith("parallel_mode:")){
+                parallelMode = br.readLine().trim();
+            }
+            else if(st.startsWith("parallel_threads:")){
+                parallelThreads = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("setpoint_kernel:")){
+                setpointKernel = br.readLine().trim();
+            }
+            else if(st.startsWith("optimizer_horizon_h:")){
+                optimizerHorizon = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("optimizer_budget_ms:")){
+                optimizerBudgetMs = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("optimizer_time_constant_h:")){
+                optimizerTimeConstant = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("optimizer_comfort_weight:")){
+                optimizerComfortWeight = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("electricity_price_file:")){
+                priceFile = br.readLine().trim();
+            }
+            else if(st.startsWith("python_workers:")){
+                pythonWorkers = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("telemetry:")){
+                telemetryDefault = StepTelemetry.Verbosity.parse(br.readLine(), telemetryDefault);
+            }
+            else if(st.startsWith("occupancy_dataset:")){
+                occupancyDefault = br.readLine().trim();
+            }
+            else if(st.startsWith("occupancy_cache_mb:")){
+                occupancyCacheMB = Long.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("time_advance_mode:")){
+                timeAdvanceMode = br.readLine().trim();
+            }
+            else if(st.startsWith("shards:")){
+                numShards = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("shard_addresses:")){
+                shardAddresses = br.readLine().trim();
+            }
+            else if(st.startsWith("profile_interval:")){
+                profileInterval = Double.valueOf(br.readLine().trim());
             }
-            else if(st.contains("optimizer_code_file_name:")){
+            else if(st.startsWith("profile_top:")){
+                profileTop = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("setpoint_cache:")){
+                setpointCacheSize = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("setpoint_cache_quantum:")){
+                setpointCacheQuantum = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("appliance_seed:")){
+                applianceSeed = br.readLine().trim();
+            }
+            else if(st.startsWith("checkpoint_interval:")){
+                checkpointInterval = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("checkpoint_resume:")){
+                checkpointResume = Boolean.parseBoolean(br.readLine().trim());
+            }
+            else if(st.startsWith("binary_protocol:")){
+                binaryProtocol = Boolean.parseBoolean(br.readLine().trim());
+            }
+            else if(st.startsWith("join_mode:")){
+                joinMode = br.readLine().trim().toLowerCase();
+            }
+            else if(st.startsWith("join_timeout:")){
+                joinTimeout = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("step_deadline_ms:")){
+                stepDeadlineMs = Double.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("straggler_policy:")){
+                stragglerPolicy = StepDeadline.Policy.parse(br.readLine(), stragglerPolicy);
+            }
+            else if(st.startsWith("straggler_drop_after:")){
+                stragglerDropAfter = Integer.valueOf(br.readLine().trim());
+            }
+            else if(st.startsWith("write_extra_data_files:")){
+                writeFile = Boolean.parseBoolean(br.readLine().trim());
+            }
+            else if(st.startsWith("results_csv:")){
+                resultsCsv = Boolean.parseBoolean(br.readLine().trim());
+            }
+            else if(st.startsWith("results_buffer_mb:")){
+                resultsBufferMB = Integer.valueOf(br.readLine().trim());
+            }
+            /* //Not currently in use
+            else if(st.startsWith("optimizer_code_file_name:")){
 				optimizerFile = br.readLine();
 			}
-			else if(st.contains("occupancy_adaptive_setpoints_code_file_name:")){
+			else if(st.startsWith("occupancy_adaptive_setpoints_code_file_name:")){
 				setpointFile = br.readLine();
 			}
 			*/
@@ -218,6 +323,44 @@ public class supercontroller extends supercontrollerBase {
         br.close();
         //Done Getting Global Config Settings ==================================
         
+        // Sharding =========================================================================
+        // Shard k owns a contiguous block of building_names, and their ports: building g is still at
+        // port_number+g. Shards only interact through HLA time advance, so each runs the same loop on fewer
+        // buildings. Started with -Dsupercontroller.shard=k (run-default.sh, run-shard.sh).
+        if(numShards < 1 || shardIndex < 0 || shardIndex >= numShards){
+            throw new IOException("Shard " + shardIndex + " of shards: " + numShards + " in config.txt does not exist");
+        }
+        if(numShards > numSims){
+            throw new IOException("shards: " + numShards + " in config.txt is more than the " + numSims + " buildings");
+        }
+        int firstBldg = (int) ((long) shardIndex * numSims / numShards);
+        int endBldg = (int) ((long) (shardIndex + 1) * numSims / numShards);
+        if(numShards > 1){
+            bldgNames = Arrays.copyOfRange(bldgNames, firstBldg, endBldg);
+            portNo += firstBldg;
+            if(!shardAddresses.isEmpty()){
+                String[] addresses = shardAddresses.split(",");
+                if(addresses.length != numShards){
+                    throw new IOException("shard_addresses: in config.txt lists " + addresses.length + " addresses for " + numShards + " shards");
+                }
+                ipAdd = addresses[shardIndex].trim();
+            }
+            log.info("Shard " + shardIndex + " of " + numShards + ": buildings " + firstBldg + " to " + (endBldg - 1)
+                + " of " + numSims + " (" + bldgNames[0] + " .. " + bldgNames[bldgNames.length - 1] + ")");
+            numSims = endBldg - firstBldg;
+        }
+        bldg = new BuildingStateStore(numSims);
+        log.info("Building state for " + numSims + " buildings: " + bldg.footprint() / 1024 + " kB");
+        // Each building's appliance draws come from its own stream, the same in every shard layout
+        long seed = applianceSeed.isEmpty() ? System.nanoTime() : Long.parseLong(applianceSeed);
+        bldg.seedAppliances(seed, firstBldg);
+        log.info("Appliance scheduler seed: " + seed + " (appliance_seed: in config.txt to repeat this run)");
+        occupancyFile = new String[numSims];
+        telemetryBldg = new StepTelemetry.Verbosity[numSims];
+        telemetryEvery = new int[numSims];
+        telemetry = new StepTelemetry(numSims);
+        // End Sharding =====================================================================
+        
         System.out.println("IP Address: " + ipAdd);
         System.out.println("Starting Port Number: " + portNo);
         System.out.println("Date Range: " + dateRange);
@@ -225,34 +368,6 @@ public class supercontroller extends supercontrollerBase {
         System.out.println("Wholesale Type: " + wholesaleType);
         
         
-        // Declare Variables that Depend on Global Config Settings  =============================
-        //For appliance scheduling
-		//int nt = 12; //timesteps PER hour - constant, same as for Setpoints & Optimization
-		//int state; //replaced with setDishwasher
-		int runTime = 12; //number of time steps the appliance is activated
-		int sleepTime = 22*nt; //time that the house is asleep
-		int wakeTime = 6*nt; //time that the house is awake
-		int numActPerDay = 1; //number of activations 
-		int numActToday[] = new int[numSims];
-		int dayCount = 1;
-		double dailyActivationProb = .59;
-		double activationProb = 0;
-		int hour = 0;
-		
-		// For Occupancy & Appliance Scheduling
-		int numOccupiedToday = 0;
-		ArrayList<Integer> occStatus = new ArrayList<Integer>();
-		ArrayList<Double> occProb = new ArrayList<Double>();
-		ArrayList<Double> occComfRange = new ArrayList<Double>();
-		ArrayList<Integer>[] activationHistory = new ArrayList[numSims]; // can change to just a variable, not an array list
-		ArrayList<Integer>[] stateHistory = new ArrayList[numSims];
-		//ArrayList<Double> randomNumHistory = new ArrayList<Double>();
-		ArrayList<Integer> timeStepsOccupied = new ArrayList<Integer>();
-		int timeLoop = -1; //handle if occupancy data is not long enough. 
-		//gets incremented at start so set to -1 to get 0 initially.
-	    //============================================================================
-        
-        
         // Get Individual Building Config Settings ========================================
         // Read bldg settings from config_bldgName.txt 
         // Use separate file per building to allow for quick reordering of buildings without redoing from scratch
@@ -269,166 +384,193 @@ public class supercontroller extends supercontrollerBase {
 			st = "";
 			
 			while ((st = br.readLine())!=null ){
-				if(st.contains("MODE") || st.contains("thermostat_type")){ 
-					mode[i] = br.readLine();
+				if(st.startsWith("MODE") || st.startsWith("thermostat_type")){ 
+					bldg.modeText[i] = br.readLine();
 				}
-				else if(st.contains("heatorcool:")){
-					heatOrCool[i] = br.readLine(); // Immutable
-					hcc[i] = heatOrCool[i].charAt(0); // should be one of: h, c, a. MAY change during auto setting
+				else if(st.startsWith("heatorcool:")){
+					bldg.hvac[i] = BuildingStateStore.parseHvac(br.readLine()); // should be one of: h, c, a
 				}
-				else if(st.contains("optimize:")){
-					optimizeSet[i] = Boolean.parseBoolean(br.readLine());
+				else if(st.startsWith("optimize:")){
+					bldg.optimize[i] = Boolean.parseBoolean(br.readLine().trim());
 				}
-				else if(st.contains("dishwasher:")){
-					hasDishwasher[i] = Boolean.parseBoolean(br.readLine());
+				else if(st.startsWith("dishwasher:")){
+					bldg.hasDishwasher[i] = Boolean.parseBoolean(br.readLine());
 				}
-				else if(st.contains("thermostat_code_language:")){
-					thermostatCommand[i] = br.readLine();
-					if (thermostatCommand[i].contains("python")){
-						usePython[i] = true;
+				else if(st.startsWith("thermostat_code_language:")){
+					bldg.thermostatCommand[i] = br.readLine();
+					if (bldg.thermostatCommand[i].contains("python")){
+						bldg.source[i] = BuildingStateStore.SOURCE_PYTHON;
 						numPython++;
 					}
+					else if (bldg.thermostatCommand[i].contains("java_thermostat")){
+						bldg.source[i] = BuildingStateStore.SOURCE_ENGINE;
+					}
+				}
+				else if(st.startsWith("telemetry_every:")){
+					telemetryEvery[i] = Integer.valueOf(br.readLine().trim());
+				}
+				else if(st.startsWith("telemetry:")){
+					telemetryBldg[i] = StepTelemetry.Verbosity.parse(br.readLine(), StepTelemetry.Verbosity.DETAIL);
+				}
+				else if(st.startsWith("occupancy_dataset:")){
+					occupancyFile[i] = br.readLine().trim();
+				}
+				else if(st.startsWith("batch_steps:")){
+					// at most a day per message
+					bldg.batchSteps[i] = Math.max(1, Math.min(24*nt, Integer.valueOf(br.readLine().trim())));
+				}
+				else if(st.startsWith("batch_outdoor_band:")){
+					bldg.batchOutdoorBand[i] = Double.valueOf(br.readLine().trim());
 				}
 			}
 			br.close();
-			
-			// Need to intialize occupancySet and adaptiveSet = false and change if mode says otherwise:
-            occupancySet[i] = false;
-            adaptiveSet[i] = false;
-            fixedSet[i] = false;
-            fixedMax[i] = 23;
-            fixedMin[i] = 20;
-            if(mode[i].contains("occupancy")){ 
-				occupancySet[i] = true; 
-				//numPython++;
-			}
-			else if(mode[i].contains("adaptive")){ 
-				adaptiveSet[i] = true;
-				//numPython++;
+			if(occupancyFile[i] == null || occupancyFile[i].isEmpty()){
+				occupancyFile[i] = occupancyDefault;
 			}
-			else if(mode[i].contains("fixed")){
-				fixedSet[i] = true;
-				String modeNoSpace = mode[i].replaceAll("\\s", "");
-				mode[i] = "fixed";
+			telemetry.configure(i, (telemetryBldg[i] != null) ? telemetryBldg[i] : telemetryDefault, telemetryEvery[i]);
+			
+			// Mode text is decoded once here; steps only look at the byte codes
+			bldg.mode[i] = BuildingStateStore.parseMode(bldg.modeText[i]);
+			if(bldg.mode[i] == BuildingStateStore.MODE_FIXED){
+				String modeNoSpace = bldg.modeText[i].replaceAll("\\s", "");
+				bldg.modeText[i] = "fixed";
 				try{
 					String[] fixedAndSetpts = modeNoSpace.split(",");
 					//fixedAndSetpts has form: ["fixed", "20", "23"], numbers may vary
-					fixedMin[i] = Double.valueOf(fixedAndSetpts[1]);
-					fixedMax[i] = Double.valueOf(fixedAndSetpts[2]);
-					if(fixedMax[i]<fixedMin[i]){//swap if user reversed
-						double tempMax = fixedMin[i];
-						fixedMin[i] = fixedMax[i];
-						fixedMax[i] = tempMax;
+					bldg.fixedMin[i] = Double.valueOf(fixedAndSetpts[1]);
+					bldg.fixedMax[i] = Double.valueOf(fixedAndSetpts[2]);
+					if(bldg.fixedMax[i]<bldg.fixedMin[i]){//swap if user reversed
+						double tempMax = bldg.fixedMin[i];
+						bldg.fixedMin[i] = bldg.fixedMax[i];
+						bldg.fixedMax[i] = tempMax;
 					}
-					System.out.println("Fixed min = " + fixedMin[i] + "   max = " + fixedMax[i]);
+					System.out.println("Fixed min = " + bldg.fixedMin[i] + "   max = " + bldg.fixedMax[i]);
 				}
 				catch(Exception ee){
 					System.out.println("Warning: Could not get fixed setpoint specification, default to 20 and 23°C");
 				}
 			}
-			else if(mode[i].equals("")){ 
+			else if(bldg.modeText[i].equals("")){ 
 				System.out.println("Text Alert: config.txt missing or contains invalid parameters."); 
 			}
-			System.out.println("Mode: " + mode[i]);
-			System.out.println("Occupancy: " + occupancySet[i]);
-			System.out.println("Adaptive: " + adaptiveSet[i]);
-			System.out.println("HeatOrCool: " + hcc[i]);
-			System.out.println("Dishwasher: " + hasDishwasher[i]);
-			
-			//Stuff that needs to be initialized at the start for each simulation (could go in a separate loop but more efficient here)
-			//occStatus[i] = new ArrayList<Integer>();
-			activationHistory[i] = new ArrayList<Integer>();
-			stateHistory[i] = new ArrayList<Integer>();
-			//timeStepsOccupied[i] = new ArrayList<Integer>();
-			
-			fuzzyCool[i] = false;
-			fuzzyHeat[i] = false;
+			System.out.println("Mode: " + bldg.modeText[i]);
+			System.out.println("Occupancy: " + (bldg.mode[i] == BuildingStateStore.MODE_OCCUPANCY));
+			System.out.println("Adaptive: " + (bldg.mode[i] == BuildingStateStore.MODE_ADAPTIVE));
+			System.out.println("HeatOrCool: " + bldg.hcc(i));
+			System.out.println("Dishwasher: " + bldg.hasDishwasher[i]);
+			bldg.engineMode[i] = ThermostatEngine.Mode.parse(bldg.modeText[i]);
 			
 		} //done getting individual building settings ================================
+		
+		// Start persistent Python thermostat workers for buildings using Python setpoints
+		if(numPython > 0 && pythonWorkers > 0){
+			for(int i = 0; i<numSims; i++){
+				if(bldg.source[i] == BuildingStateStore.SOURCE_PYTHON && !pythonPools.containsKey(bldg.thermostatCommand[i])){
+					pythonPools.put(bldg.thermostatCommand[i], new PythonThermostatPool(bldg.thermostatCommand[i], thermostatFile, pythonWorkers, 30000));
+				}
+			}
+		}
         
         //Get occupancy data, Java method
-        //TODO: put this inside a loop so each building can use different occupancy.
         //expect 5 minute timesteps for occupancy
         // Reading Occupancy Information ==================================================
         System.out.println("Getting Occupancy Data:");
-        File occDataFile = new File("OccupancyAnnualHourly.csv");
-	    BufferedReader occBr = new BufferedReader(new FileReader(occDataFile));
-	    st = "";
-	    occBr.readLine(); //skip header line
-	    
+        // Binary copy of each CSV, memory-mapped. Only (re)converted when the CSV changes.
+        // Buildings using the same file, or files with the same contents, share one dataset.
 	    int timestepsNeeded = (nDays+1) * nt * 24 + 1;
-	    int dataCount = 0;
-		
-		while ((st = occBr.readLine())!=null && dataCount < timestepsNeeded){
-		    String[] currRow = st.split(",");
-		    
-		    if(currRow.length > 4){
-				dataCount++;
-				occProb.add(Double.parseDouble(currRow[1])); //Col B
-				occStatus.add(Integer.parseInt(currRow[3])); //Col D
-				occComfRange.add(Double.parseDouble(currRow[4])); //Col E
-			}
-			else{
-				System.out.println(currRow);
-				System.out.println(currRow);
-			}
-				
+	    OccupancyCache occupancyCache = new OccupancyCache(24*nt, timestepsNeeded, occupancyCacheMB * 1024 * 1024);
+	    ArrayList<File> occupancyFiles = new ArrayList<File>();
+	    for(int i = 0; i<numSims; i++){
+		    occupancyFiles.add(new File(occupancyFile[i]));
 	    }
-	    occBr.close();
-	    
-	    System.out.println("Initial Occupancy Status: " + occStatus.get(0));
-	    System.out.println("Initial Occupancy Prob: " + occProb.get(0));
-	    System.out.println("Number of Data Points: occStatus = " + occStatus.size() + "   occProb = " + occProb.size() + "   occComfRange = " + occComfRange.size());
-	    
-	    //getting amount of occupancy for each day
-	    for (int k = 0; k<occStatus.size(); k++) {
-		    if (occStatus.get(k) == 1) {
-			    numOccupiedToday = numOccupiedToday + 1;
+	    occupancyCache.preload(occupancyFiles, Runtime.getRuntime().availableProcessors());
+	    for(int i = 0; i<numSims; i++){
+		    OccupancyStore occ = occupancyCache.get(occupancyFiles.get(i));
+		    bldg.occupancy[i] = occ;
+		    if(occ.size() == 0){
+			    throw new IOException("No occupancy data in " + occupancyFile[i] + " for " + bldgNames[i]);
 		    }
-		    if ((k+1)%(24*nt) == 0 && k!=0) {
-			    timeStepsOccupied.add(numOccupiedToday); 
-			    numOccupiedToday = 0;
+		    if(bldg.hasDishwasher[i] && occ.days() == 0){
+			    log.warn(bldgNames[i] + ": less than a day of occupancy data in " + occupancyFile[i] + ", dishwasher will not run");
 		    }
+		    log.info(bldgNames[i] + " occupancy: " + occupancyFile[i] + " (" + occ.size() + " timesteps, "
+			    + occ.days() + " days, initial status " + occ.status(0) + ", prob " + occ.prob(0) + ")");
 	    }
-	    System.out.println("TIME STEPS OCCUPIED PER DAY:");
-	    System.out.println(timeStepsOccupied);
 	    System.out.println("Occupancy Data Obtained!");
         //end of occupancy information =================================================
         
+        profiler = new StepProfiler(bldgNames, profileInterval, profileTop,
+            new File(numShards > 1 ? "logs/shard" + shardIndex : "logs"));
+        setpointCache = new SetpointCache(setpointCacheSize, setpointCacheQuantum);
+        controller = new BuildingController(bldg, nt, epVars, telemetry, profiler, setpointCache, thermostatFile, pythonPools);
+        // Java buildings with optimize: true plan against electricity prices instead of energyOptTset2hr.py
+        PriceOptimizer optimizer = null;
+        for(int i = 0; i<numSims && optimizer == null; i++){
+            if(bldg.optimize[i] && bldg.source[i] == BuildingStateStore.SOURCE_JAVA){
+                double[] prices = priceFile.isEmpty() ? null : PriceOptimizer.loadPrices(new File(priceFile));
+                optimizer = new PriceOptimizer(bldg, nt, wholesaleType, prices, optimizerHorizon,
+                    optimizerTimeConstant, optimizerComfortWeight, optimizerBudgetMs);
+                controller.useOptimizer(optimizer);
+            }
+        }
+        
+        // Checkpoint & resume: controller state every checkpointInterval steps, one file per shard
+        checkpoint = new Checkpoint(bldg, bldgNames,
+            new File(numShards > 1 ? "checkpoints/checkpoint_shard" + shardIndex + ".bin" : "checkpoints/checkpoint.bin"), checkpointInterval);
+        int resumedSteps = 0;
+        if(checkpointResume){
+            Checkpoint.Position resumeAt = checkpoint.load(nt);
+            currentTime = resumeAt.time; // first time advance request re-joins at the checkpointed logical time
+            resumedSteps = resumeAt.steps;
+            controller.resume(resumeAt.timeLoop);
+        }
+        // Results: every building every step, one file per run (and shard)
+        String runName = new java.text.SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + (numShards > 1 ? "_shard" + shardIndex : "");
+        deadline = new StepDeadline(bldgNames, stepDeadlineMs, stragglerPolicy, stragglerDropAfter);
+        results = new ResultsSink(bldg, bldgNames, writeFile ? new File("results/results_" + runName + ".bin") : null, resultsCsv, resultsBufferMB);
+        
         
         // Socket Initialization ==============================================================
         log.info("Preparing for EnergyPlus simulations to join...");
         
         InetAddress addr = InetAddress.getByName(ipAdd);  // the address needs to be changed in config.txt. constant, no need for array
-        ServerSocket welcomeSocket[] = new ServerSocket[numSims];
-        //java.net.supercontroller connectionSocket[] = new java.net.supercontroller[numSims];
-        //Socket is a standard class in Java
-        java.net.Socket connectionSocket[] = new java.net.Socket[numSims];
-        InputStreamReader inFromClient[] = new InputStreamReader[numSims];
-        BufferedReader buffDummy[] = new BufferedReader[numSims];
-        DataOutputStream outToClient[] = new DataOutputStream[numSims];
-
-        // Add socket --- Brian converted to loop for multiple sockets
-        for (int i = 0; i<numSims; i++){
-			int porti = portNo+i;
-			log.info("Waiting for EnergyPlus Simulation at " + porti);
-			welcomeSocket[i] = new ServerSocket(portNo+i, 50, addr);  // Can also be changed in config.txt
-			connectionSocket[i] = welcomeSocket[i].accept(); // initial connection will be made at this point
-			
-			log.info("Connection to EnergyPlus simulation at " + porti + " successful!");
-		 
-			inFromClient[i] = new InputStreamReader(connectionSocket[i].getInputStream());
-			log.info("Input Stream from " + porti + " configured");
-			buffDummy[i] = new BufferedReader(inFromClient[i]);
-			log.info("Buffered reader from " + porti + " configured");
-			outToClient[i] = new DataOutputStream(connectionSocket[i].getOutputStream());
-			log.info("Output Stream to " + porti + " configured");
-		}
+        // One non-blocking event loop for all sims instead of a ServerSocket + reader + writer per sim.
+        // Sims connect at portNo+i, or all at portNo naming their building (join_mode: single), in any order.
+        epServer = new EPSocketServer(addr, portNo, numSims, epVars, binaryProtocol);
+        epServer.dropOnClose(deadline.dropsClosed()); // a crashed simulation is a straggler, not the end of the run
+        long joinStart = System.nanoTime();
+        if(joinMode.equals("single")){
+            epServer.joinAll(bldgNames, joinTimeout * 1000L);
+        }
+        else{
+            epServer.acceptAll(joinTimeout * 1000L);
+        }
+        log.info(String.format("%d EnergyPlus simulations joined in %.1f s", numSims, (System.nanoTime() - joinStart) / 1e9));
         // done adding socket ==========================================================
         
         log.info("All EnergyPlus Simulations added successfully!");
+        
+        // Optional worker pool so buildings are stepped in parallel
+        StepPool stepPool = null;
+        if(!parallelMode.equals("off")){
+            stepPool = new StepPool(parallelMode, parallelThreads);
+        }
+        if(setpointKernel.equals("batch")){
+            batchIds = new int[numSims];
+            batchFrames = new EPFrame[numSims];
+            log.info("Setpoints: buildings whose data is in are stepped together");
+        }
+        else if(!setpointKernel.equals("building")){
+            log.warn("Unknown setpoint_kernel \"" + setpointKernel + "\", stepping building by building");
+        }
 
+        // Pipelined: the next time advance request is made as soon as this step's time is granted, so the
+        // RTI negotiates t+stepSize while buildings exchange data for t. Safe because the supercontroller
+        // publishes nothing over HLA. Anything it sends in future must be stamped >= t+stepSize+lookAhead.
+        boolean pipelined = timeAdvanceMode.equals("pipelined");
+        log.info("Time advance: " + (pipelined ? "pipelined" : "lockstep"));
         AdvanceTimeRequest atr = new AdvanceTimeRequest(currentTime);
+        AdvanceTimeRequest nextATR = null;
         putAdvanceTimeRequest(atr);
 
         if(!super.isLateJoiner()) {
@@ -451,409 +593,160 @@ public class supercontroller extends supercontrollerBase {
         log.info("started logical time progression");
         
         // Define variables for getting EP data
-        String header, time="0", varName="", value="";
+        EPFrame frame;
+        int i;
+        // Per-step wall time of the EP exchange, to check how it scales with numSims
+        long stepStart = 0;
+        long stepDeadline = Long.MAX_VALUE; // this step's deadline for EP messages (step_deadline_ms:)
+        long waitUntil = Long.MAX_VALUE;
+        double stepMs = 0;
+        double totalStepMs = 0;
+        int stepCount = resumedSteps;
+        long phaseStart = 0;
 
         while (!exitCondition) {
+            profiler.beginStep();
+            phaseStart = profiler.start();
             atr.requestSyncStart();
             enteredTimeGrantedState();
+            if (pipelined && !exitCondition) {
+                nextATR = new AdvanceTimeRequest(currentTime + super.getStepSize());
+                putAdvanceTimeRequest(nextATR);
+                atr.requestSyncEnd();
+            }
+            profiler.stop(StepProfiler.Phase.TIME_GRANT, phaseStart);
 
             ////////////////////////////////////////////////////////////////////
             // TODO break here if ready to resign and break out of while loop //
             ////////////////////////////////////////////////////////////////////
             
             //Once per new timestep:
-            System.out.println("Timestep = " + currentTime);
-            try{
-				timeLoop++;
-				System.out.println("Occupancy at " + timeLoop + " = "+ occStatus.get(timeLoop));
-			}
-			catch(IndexOutOfBoundsException iob){ //handle if occupancy data is too short without crashing
-				timeLoop = 0;
-				System.out.println("End of occupancy data detected. Reset timeLoop = " + timeLoop);
-			} 
-			// Compute current hour for occupancy data etc. based on timeloop. casting (int) always truncates.
-			hour = (int) timeLoop / nt;
+            telemetry.beginStep(stepCount + 1);
+            if(telemetry.detail()) telemetry.log().debug("Timestep = {}", currentTime);
+            // Occupancy timestep & appliance day bookkeeping, once per step for all buildings
+            controller.beginStep(currentTime);
             
-            // Begin for loop over i sims ================================================================
-            for (int i = 0; i<numSims; i++){
-				//BEGIN GETTING DATA FROM EP ========================================================
-				//reset before receiving data from next EP Sim
-				varName=""; 
-				value="";
-				
-				if((header = buffDummy[i].readLine()).equals("TERMINATE")){
-					exitCondition = true;
-				}
-				time = buffDummy[i].readLine();
-				System.out.println("EP SimTime = " + time);
-				System.out.println("===> Received from EP #" + i + " <===");
-				
-				while(!(varName = buffDummy[i].readLine()).isEmpty()) {
-					value = buffDummy[i].readLine();
-					System.out.println("    " + varName + " = " + value);
-					// Add any variable that you want to get from EnergyPlus here...
-					// Names have to match the modelDescription.xml file
-					// before @ is varName and before , is value
-					// varName first!!!
-					if(varName.equals("epSendOutdoorAirTemp")){
-						outdoorTemp[i] = Double.parseDouble(value);
-					}
-					else if(varName.equals("epSendZoneMeanAirTemp")){
-						indoorTemp[i] = Double.valueOf(value);
-					}
-					/*
-					 * //These will be implemented later - get rid of dataString, convert to double or string instead.
-					 * //humidity, heatEnergy, coolEnergy, netEnergy, energyPurchase, energySurplus, dayInt, solarRad, setHeatStrFromEP, setCoolStrFromEP
-					else if(varName.equals("epSendZoneHumidity")){
-						humidity[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendHeatingEnergy")){
-						heatEnergy[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendCoolingEnergy")){
-						coolEnergy[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendNetEnergy")){
-						netEnergy[i] = Double.valueOf(value); 
-					}
-					else if(varName.equals("epSendEnergyPurchased")){
-						energyPurchase[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendEnergySurplus")){
-						energySurplus[i] = Double.valueOf(value); 
-					}
-					else if(varName.equals("epSendDayOfWeek")){
-						dayInt[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendSolarRadiation")){
-						solarRad[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendHeatingSetpoint")){
-						setHeatStrFromEP[i] = Double.valueOf(value);
-					}
-					else if(varName.equals("epSendCoolingSetpoint")){
-						setCoolStrFromEP[i] = Double.valueOf(value); 
+            // Begin loop over i sims ================================================================
+            // Sims are handled in the order their data arrives, not in index order
+            stepStart = System.nanoTime();
+            stepDeadline = deadline.deadline(stepStart);
+            waitUntil = stepDeadline;
+            epServer.beginStep(bldg.quiet); // buildings inside a batch owe nothing this step
+            while ((i = epServer.nextFrame(waitUntil)) != -1){
+				if(i == EPSocketServer.LATE){
+					waitUntil = deadline.late(epServer); // stragglers wait, or are skipped or dropped
+					if(deadline.allDropped()){
+						log.error("Every EnergyPlus simulation has been dropped, stopping");
+						exitCondition = true;
 					}
-					*/
+					continue;
 				}
-				
-				//END GET DATA FROM EP ============================================================
-				
-				//BEGIN COMPUTING HVAC SETPOINTS ============================================================
-				
-				//Reset with flag values to detect errors.
-				setHeat[i] = -1.1;
-				setCool[i] = 111.1;
-				setHeatStr[i] = "0.0";
-				setCoolStr[i] = "99.9";
-				
-				// BEGIN PYTHON SETPOINT OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
-				if (usePython[i]==true){
-					var2save = 'Z'; // default value to save nothing
-					
-					pycmd="";
-					s="";
-					try {
-						Process pro;
-						
-						//some of these aren't implemented or aren't needed
-						//pycmd = pythonCommand + " ./" + thermostatFile + " -s indoorTemp" +String.valueOf(indoorTemp[i])+" ourdoorTemp" + String.valueOf(outdoorTemp[i])+ " occupancyStatus=" + String.valueOf(occStatus.get(currentTime)) + " occupancyProb=" + String.valueOf(occupancyProb) + " heatOrCool=" + hcc[i] + " MODE=" + mode[i] + " date_range=" + dateRange + " loc=" + loc + " price=" + priceType;
-						
-						pycmd = thermostatCommand[i] + " " + thermostatFile + " -s indoorTemp=" +String.valueOf(indoorTemp[i])+" ourdoorTemp=" + String.valueOf(outdoorTemp[i])+ " occupancyStatus=" + String.valueOf(occStatus.get((int)currentTime)) + " heatOrCool=" + hcc[i] + " MODE=" + mode[i];
-						
-						/*
-						// Call Python optimization & occupancy code with necessary info
-						if (optimizeSet[i]){
-							pycmd = pythonCommand + " ./" + optimizerFile + " " + sday +" " +sblock +" "+ String.valueOf(zoneTemps[i])+ " " + String.valueOf(24) + " " + nt + " " + hcc[i] + " " + mode[i] + " " + dateRange + " " + loc + " " + priceType; 
-						}
-						else{ // Call Python adaptive and occupancy setpoints code with necessary info
-							pycmd = pythonCommand + " ./" + setpointFile + " " +sday +" " +sblock +" "+ String.valueOf(zoneTemps[i])+ " " + String.valueOf(24) + " " + nt + " " + hcc[i] + " " + mode[i] + " " + dateRange + " " + loc + " " + priceType;
-						}
-						*/
-						System.out.println("Run:  " + pycmd); //Display command used for debugging
-						pro = Runtime.getRuntime().exec(pycmd); // Runs command
-
-						BufferedReader stdInput = new BufferedReader(new InputStreamReader(pro.getInputStream()));
-						
-						// Gets input data from Python that will either be a keystring or a variable. 
-						// AS long as there is another output line with data,
-						while ((s = stdInput.readLine()) != null) {
-							//System.out.println(s);  //for debug
-							// New nested switch-case to reduce computing time and fix so it's not appending data meant for the next one. - Brian
-							// Replaced a bunch of booleans with single key char var2save - Brian
-							// If current line is a keystring, identify it by setting the key var2save to that identity
-							switch (s) {
-								/*
-								case "energy consumption":
-									var2save = 'E';
-									break;
-								case "indoor temp prediction":
-									var2save = 'T';
-									break;
-								case "pricing per timestep":
-									var2save = 'P';
-									break;
-								case "outdoor temp":
-									var2save = 'O';
-									break;
-								case "solar radiation": 
-									var2save = 'S'; 
-									break;
-								*/
-								case "thermostat_set_heat": 
-									var2save = 'H'; 
-									break;
-								case "thermostat_set_cool": 
-									var2save = 'C'; 
-									break;
-								case "Traceback (most recent call last):":
-									System.out.println("\nHiss... Python crash detected. Try pasting command after \"Run\" in the terminal and debug Python.");
-									var2save = 'Z';
-									break;
-								default: // Not a keystring, so it is probably data
-									switch(var2save) {
-										case 'H': setHeatStr[i] = s; break;
-										case 'C': setCoolStr[i] = s; break;
-										/*
-										case 'E': dataStringOptE = dataStringOptE + separatorOpt + s; break;
-										case 'T': dataStringOptT = dataStringOptT + separatorOpt + s; break;
-										case 'P': dataStringOptP = dataStringOptP + separatorOpt + s; break;
-										case 'O': dataStringOptO = dataStringOptO + separatorOpt + s; break;
-										case 'S': dataStringOptS = dataStringOptS + separatorOpt + s; break;
-										case 'H': dsoHeatSet = dsoHeatSet + separatorOpt + s; break;
-										case 'C': dsoCoolSet = dsoCoolSet + separatorOpt + s; break;
-										*/
-										default: // Do nothing; it's ok if unneeded strings come through.
-									} // End var2save switch case
-							} // End s switch case
-						} //End while next line not null
-					} // End try
-					catch (IOException e) {
-						e.printStackTrace();
-						System.out.println("\nHiss... Python crashed or failed to run. Try pasting command after \"Run\" in the terminal and debug Python."); 
-					}
-					// Extra check if no keystrings found, var2save will still be default 'Z'. Controller will probably crash after this, but it is usually caused by Python code crashing and not returning anything. Warn user so they debug correct program.
-					if (var2save == 'Z') { System.out.println("Hiss... No keystrings from Python found. Python may have crashed and returned null. Check command after \"Run:\""); }
-					
-					//Assumption: fuzzy control is implemented inside Python.
-				} 
-				// END PYTHON SETPOINT OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
-				
-				// BEGIN JAVA SETPOINTS OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
-				else{
-					// Fixed setpoint
-					if(fixedSet[i]==true){
-						setHeat[i] = fixedMin[i];
-						setCool[i] = fixedMax[i];
-					}
-					// Anything based on adaptive comfort model.
-					else {
-						//compute mean comfortable temperature (stored as comfTemp, a temporary variable)
-						if(outdoorTemp[i] <= 9.6774){
-							comfTemp = 20.9;
-						}
-						else if(outdoorTemp[i] < 33.22){
-							comfTemp = 17.9 + 0.31*outdoorTemp[i];
-						}
-						else{ //outdoorTemp[i] > 33.548
-							comfTemp = 28.2;
-						}
-						// Adaptive 90
-						if(adaptiveSet[i]==true){
-							setHeat[i] = comfTemp - 2;
-							setCool[i] = comfTemp + 2;
-						}
-						//Likely this will become "Manual control" setting
-						// shut on and off manually with some kind of random factor for forgetfulness.
-						// reset periodically if uncomfortable enough.
-						else if(occupancySet[i]==true){
-							
-							//Should work once occProb is implemented
-							if(occStatus.get(hour)==1.0){
-								setHeat[i] = comfTemp - 2;
-								setCool[i] = comfTemp + 2;
-							}
-							else{
-								//not the most efficient but should work I think.
-								System.out.println("OccProb = " + occProb.get(hour));
-								//Using Math.round() to handle rounding up for decimal value > 0.5
-								//occExp is array where:
-								// element 0 = comfort range expansion at probability = 0.01
-								// element 1 = comfort range expansion at probability = 0.01
-								// element 98 = comfort range expansion at probability = 0.99
-								//This is used beccause Java lacks a nice norm.ppf type function as in Python
-								comfExpansion = occExp[(int) Math.round(occProb.get(hour) * 100 - 1)];
-								System.out.println("ComfExpansion = " + comfExpansion);
-								setHeat[i] = comfTemp - 2 -comfExpansion;
-								setCool[i] = comfTemp + 2 +comfExpansion;
-							} //end else
-						} //end else if (occupancySet[i]==true)
-					} //end anything adaptive-based
-					
-					System.out.println("Java setpoints before fuzzy & heat/cool:");
-					System.out.println("setCool[" + i + "] = " + setCool[i]);
-					System.out.println("setHeat[" + i + "] = " + setHeat[i]);
-					
-					//Fuzzy control -----------------------------------------------------------------------------
-					//booleans fuzzyCool[i] and fuzzyHeat[i] are for toggle effect; otherwise it would activate barely
-					// above the margin then shut off until it gets close to the margin again
-					//margin is safety to account for cooling/heating delay so it stays inside setpoints
-					//fudge handles when EP stays right at the threshold but doesn't hit it (unrealistic)
-					//toggle on when indoor temp is hotter than cooling setpoint (with margin)
-					if(indoorTemp[i] >= setCool[i] - fuzzyMargin - fuzzyFudge){
-						fuzzyCool[i] = true;
-						//setCool[i] -= fuzzyOffset + fuzzyMargin;
-					} //toggle off if indoor temp is colder than cooling setpoint + offest
-					else if(indoorTemp[i] <= setCool[i] - (fuzzyMargin + fuzzyOffset) + fuzzyFudge){
-						fuzzyCool[i] = false;
-						//setCool[i] -= fuzzyMargin;
-					}
-					if(fuzzyCool[i]){ //make setpoint colder by offset and margin
-						setCool[i] -= fuzzyOffset + fuzzyMargin;
-						System.out.println("Activated fuzzy for cooling"); //TODO: Remove this line
-					}
-					else{ //only margin
-						setCool[i] -= fuzzyMargin;
-					}
-					
-					// toggle on when it gets colder than heating setpoint with margin
-					if(indoorTemp[i] <= setHeat[i] + fuzzyMargin + fuzzyFudge){
-						fuzzyHeat[i] = true;
-					} // toggle off if hotter than heating setpoint with offset
-					else if(indoorTemp[i] >= setHeat[i] + fuzzyMargin + fuzzyOffset - fuzzyFudge){
-						fuzzyHeat[i] = false;
-					}
-					if(fuzzyHeat[i]){ //increase setpoint by offset and margin
-						setHeat[i] += fuzzyOffset + fuzzyMargin;
-					}
-					else{ //only margin
-						setHeat[i] += fuzzyMargin;
-					}
-					// End Java Fuzzy Control ---------------------------------
-					
-					//Remove heating if in cooling mode
-					if(hcc[i] == 'c'){
-						setHeat[i] = 0.0;
-					}
-					//Remove cooling if in heating mode
-					else if(hcc[i] == 'h'){
-						setCool[i] = 50.0;
-					}
-					
-					//Create string from final setpoints as doubles
-					setCoolStr[i] = Double.toString(setCool[i]);
-					setHeatStr[i] = Double.toString(setHeat[i]);
-					
-					System.out.println("Java setpoints after fuzzy:");
-					System.out.println("setCool[" + i + "] = " + setCoolStr[i]);
-					System.out.println("setHeat[" + i + "] = " + setHeatStr[i]);
+				if(deadline.enabled()){
+					deadline.arrived(i, System.nanoTime(), stepDeadline);
 				}
-				// END JAVA SETPOINTS OPTION ~~~~~~~~~~~~~~~~~~~~~~~~~~~
-				
-				//END COMPUTING HVAC SETPOINTS ============================================================
-				
-				//BEGIN APPLIANCE SCHEDULER ============================================================
-                
-                if(hasDishwasher[i] == true){
-					//initialize for beginning
-					if (timeLoop == 0) {
-						System.out.println("DAY COUNTER: " + dayCount);
-						activationProb = dailyActivationProb/timeStepsOccupied.get(dayCount-1);
-						System.out.println(activationProb);
+				frame = epServer.frame(i);
+				if(!controller.frameDue(i, frame)){
+					epServer.defer(i); // early report from a batch, EP is ahead of this step
+					if(batchSize > 0 && !epServer.frameReady()){
+						stepBatch(stepPool);
 					}
-					//if beyond end of occupancy data
-					else if (timeLoop+1 >= occStatus.size()){
-						System.out.println("ERROR: NO OCCUPANCY DATA EXISTS FOR TIME = " + timeLoop);
-					}
-					//reset for new day
-					else if ((timeLoop+1)%(24*nt) == 0) {
-						numActToday[i] = 0;
-						//dayCount = dayCount + 1;
-						// Problem: original version looped once for single sim
-						// multisim loops once per simulation, so for 2 simulations, daycount will increment twice at 
-						// each new day. 
-						// Replace with formula instead - Brian
-						// currentTime represents 5 mins elapsed
-						// nt = 12 constant
-						dayCount = (int)(timeLoop+1)/(24*nt);
-						// should be int anyway, but forcing int to be safe
-						
-						sleepTime = sleepTime + nt*24;
-						wakeTime = wakeTime + nt*24;
-						System.out.println("DAY COUNTER: "+ dayCount); // failed after dayCount = 9
-						activationProb = dailyActivationProb/timeStepsOccupied.get(dayCount-1);
-						System.out.println(activationProb);
-					}	
-					//make sure activation history takes precedence
-					if (activationHistory[i].size() > 0 && activationHistory[i].size() < runTime){
-						setDishwasher[i] = 1;
-						activationHistory[i].add(setDishwasher[i]);
-						stateHistory[i].add(setDishwasher[i]);
-						//randomNumHistory.add(0.0);
-					}else {
-						//dealing with occupancy//dealing with wake/sleep time//dealing with number of activations per day
-						if (occStatus.get(timeLoop) == 1 && currentTime > wakeTime && currentTime < sleepTime &&  numActToday[i] < numActPerDay) {
-							//dealing with length of operation
-							if (activationHistory[i].size() == runTime) {
-								setDishwasher[i] = 0;
-								stateHistory[i].add(setDishwasher[i]);
-								numActToday[i] = numActToday[i] + 1;
-								activationHistory[i].clear();
-								//randomNumHistory.add(0.0);
-							}else if (activationHistory[i].size() == 0) {
-								double randomNum = Math.random(); //random num for monte carlo or add whatever determiner I decide
-								//randomNumHistory.add(randomNum);
-								System.out.println("Random number for activation: " + randomNum);
-								System.out.println("Activation probability: " + activationProb);
-								if (randomNum < activationProb) {
-									setDishwasher[i] = 1;
-									activationHistory[i].add(setDishwasher[i]);
-									stateHistory[i].add(setDishwasher[i]);
-									System.out.println("Dishwasher Activated");
-								}else {
-									setDishwasher[i] = 0;
-									stateHistory[i].add(setDishwasher[i]); // end determiners
-								}
-							}
-						}
-						else {
-							setDishwasher[i] = 0;
-							stateHistory[i].add(setDishwasher[i]);
-							//randomNumHistory.add(0.0);
-						}
+					continue;
+				}
+				if(controller.frameBehind(i, frame)){
+					epServer.expectAgain(i);
+				}
+				profiler.stop(StepProfiler.Phase.EP_WAIT, i, stepStart);
+				if(frame.isTerminate()){
+					exitCondition = true;
+				}
+				if(batchIds != null){
+					batchIds[batchSize] = i;
+					batchFrames[batchSize++] = frame;
+					if(!epServer.frameReady()){ // else take the frames already in first
+						stepBatch(stepPool);
 					}
-					//System.out.println("STATE HISTORY:"); //These never get reset so by end of simulation there may be thousand or more elements!
-					//System.out.println(stateHistory[i]);
-					//System.out.println("RANDOM NUMBERS:");
-					//System.out.println(randomNumHistory);
-					//setDishwasherStr[i] = String.valueOf(setDishwasher[i]);
+				}
+				else if(stepPool == null){
+					stepBuilding(i, frame);
+					phaseStart = profiler.start();
+					epServer.send(i);
+					profiler.stop(StepProfiler.Phase.REPLY, i, phaseStart);
 				}
 				else{
-					setDishwasher[i] = 0;
+					// frame stays untouched until the next beginStep, after the barrier below
+					final int bi = i;
+					final EPFrame bframe = frame;
+					stepPool.submit(new Runnable() {
+						public void run() {
+							stepBuilding(bi, bframe);
+							epServer.sendLater(bi);
+						}
+					});
 				}
-				setDishwasherStr[i] = String.valueOf(setDishwasher[i]);
-
-                //END APPLIANCE SCHEDULER =================================================================
-				
-				
-				
-				// Send strings containing setpoint instructions to EP ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
-				outToClient[i].writeBytes("SET\r\n" + time + "\r\nepGetStartCooling\r\n" + setCoolStr[i] + "\r\nepGetStartHeating\r\n" + setHeatStr[i] + "\r\ndishwasherSchedule\r\n" + setDishwasherStr[i] + "\r\n\r\n");
-				System.out.println("<=== SENT to EP for #" + i + " ===>\n\tTime = " + time +  "\n\tepGetStartCooling = " + setCoolStr[i] + "\n\tepGetStartHeating = " + setHeatStr[i] + "\n\tdishwasherSchedule = " + setDishwasherStr[i] + "\r\n");
-				
-				outToClient[i].flush();
-				// Done sending data to EP ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
 			} // END Loop for all sims ==========================================================================
+			if(batchSize > 0){
+				stepBatch(stepPool);
+			}
+			if(deadline.dropsClosed()){
+				deadline.closed(epServer);
+				if(deadline.allDropped()){
+					log.error("Every EnergyPlus simulation has been dropped, stopping");
+					exitCondition = true;
+				}
+			}
+			phaseStart = profiler.start();
+			if(stepPool != null){
+				stepPool.awaitStep(); // barrier: every building done before time advance
+			}
+			epServer.flush();
+			profiler.stop(StepProfiler.Phase.FLUSH, phaseStart);
+			for (PythonThermostatPool pool : pythonPools.values()) {
+				pool.checkHealth();
+			}
+			stepMs = (System.nanoTime() - stepStart) / 1e6;
+			totalStepMs += stepMs;
+			stepCount++;
+			telemetry.summary(currentTime, numSims, stepMs, totalStepMs / (stepCount - resumedSteps), bldg.indoorTemp, bldg.outdoorTemp, bldg.setDishwasher);
+			results.record(stepCount, currentTime);
+			if(!exitCondition && checkpoint.due(stepCount)){
+				checkpoint.save(currentTime + super.getStepSize(), stepCount, controller.timeLoop());
+			}
             
 
-            if (!exitCondition) {
+            if (!exitCondition && pipelined) {
+                currentTime += super.getStepSize(); // already requested
+                atr = nextATR;
+            }
+            else if (!exitCondition) {
+                phaseStart = profiler.start();
                 currentTime += super.getStepSize();
                 AdvanceTimeRequest newATR =
                     new AdvanceTimeRequest(currentTime);
                 putAdvanceTimeRequest(newATR);
                 atr.requestSyncEnd();
                 atr = newATR;
+                profiler.stop(StepProfiler.Phase.TIME_GRANT, phaseStart);
             }
+            profiler.endStep(currentTime);
+        }
+
+        if(deadline.dropsClosed()){ // reuse/drop: the last step may have gone on without some buildings
+            answerSkipped();
+        }
+        if(stepPool != null){
+            stepPool.shutdown();
+        }
+        for (PythonThermostatPool pool : pythonPools.values()) {
+            pool.shutdown();
+        }
+        epServer.close();
+        profiler.close(currentTime);
+        setpointCache.close();
+        checkpoint.close();
+        results.close();
+        deadline.close();
+        if(optimizer != null){
+            optimizer.close();
         }
 
         // call exitGracefully to shut down federate
@@ -864,6 +757,70 @@ public class supercontroller extends supercontrollerBase {
         //////////////////////////////////////////////////////////////////////
     }
 
+    /** A simulation skipped in the last step still owes its message, and its EnergyPlus waits for the reply
+     *  before it can finish. Answer it, and whatever it sends next, until it terminates or closes or one
+     *  more step deadline passes; the ones still owed then are logged. */
+    private void answerSkipped() throws IOException {
+        int owed = 0;
+        for (int i = 0; i < numSims; i++) {
+            if (epServer.skipped(i) && epServer.owe(i)) owed++;
+        }
+        if (owed == 0) return;
+        log.info(owed + " EnergyPlus simulations were skipped in the last step, answering them before stopping");
+        final long until = deadline.deadline(System.nanoTime());
+        int i;
+        while ((i = epServer.nextFrame(until)) != -1) {
+            if (i == EPSocketServer.LATE) {
+                deadline.unanswered(epServer);
+                break;
+            }
+            EPFrame frame = epServer.frame(i);
+            if (frame.isTerminate()) continue;
+            stepBuilding(i, frame);
+            epServer.send(i);
+            epServer.owe(i); // EP answers with its next step, or TERMINATE
+        }
+        epServer.flush();
+    }
+
+    /** Building i's timestep, with its SET reply encoded into epServer.replyBuffer(i) */
+    private void stepBuilding(int i, EPFrame frame) {
+        controller.step(i, frame);
+        long t = profiler.start();
+        controller.encodeReply(i, frame, epServer.replyBuffer(i, controller.replyLength(i, frame)));
+        profiler.stop(StepProfiler.Phase.REPLY, i, t);
+    }
+
+    // Step the buildings collected in batchIds together and send their replies, on the pool if there is one
+    private void stepBatch(StepPool stepPool) throws IOException {
+        final int count = batchSize;
+        batchSize = 0;
+        if(stepPool == null){
+            controller.stepBatch(batchIds, batchFrames, count);
+            for(int k = 0; k < count; k++){
+                long t = profiler.start();
+                controller.encodeReply(batchIds[k], batchFrames[k], epServer.replyBuffer(batchIds[k], controller.replyLength(batchIds[k], batchFrames[k])));
+                profiler.stop(StepProfiler.Phase.REPLY, batchIds[k], t);
+                epServer.send(batchIds[k]);
+            }
+            return;
+        }
+        // batchIds is refilled while the pool works on this batch
+        final int[] ids = Arrays.copyOf(batchIds, count);
+        final EPFrame[] frames = Arrays.copyOf(batchFrames, count);
+        stepPool.submit(new Runnable() {
+            public void run() {
+                controller.stepBatch(ids, frames, count);
+                for(int k = 0; k < count; k++){
+                    long t = profiler.start();
+                    controller.encodeReply(ids[k], frames[k], epServer.replyBuffer(ids[k], controller.replyLength(ids[k], frames[k])));
+                    profiler.stop(StepProfiler.Phase.REPLY, ids[k], t);
+                    epServer.sendLater(ids[k]);
+                }
+            }
+        });
+    }
+
     public static void main(String[] args) {
         try {
             FederateConfigParser federateConfigParser =
@@ -0,0 +1,198 @@
+/*
+File:           SetpointKernelTest.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: SetpointKernel (setpoint_kernel: batch) against the per-building Java setpoints it replaces. Two stores
+       get the same random inputs every step: every mode (and none), every heat/cool setting, two occupancy files
+       of different lengths, outdoor temperatures on the comfort model's breakpoints, and indoor temperatures
+       around the fuzzy thresholds, so the toggles switch on, off and carry over between steps. Setpoints must
+       match bit for bit. stepBatch() is also compared with step() on a whole timestep, dishwasher included,
+       with java_thermostat buildings mixed in: those are not batched and must come out as step() computes them.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SetpointKernelTest {
+
+    private static final int NT = 12; // timesteps per hour
+    private static final int BUILDINGS = 2000;
+    private static final int STEPS = 300;
+    private static final String[] MODES = {"fixed", "adaptive90", "occupancy", "none"};
+    private static final byte[] HVAC = {BuildingStateStore.HVAC_HEAT, BuildingStateStore.HVAC_COOL,
+        BuildingStateStore.HVAC_AUTO, BuildingStateStore.HVAC_UNSET};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private OccupancyStore[] occupancy;
+
+    @Before
+    public void setUp() throws IOException {
+        occupancy = new OccupancyStore[] {occupancy("week.csv", 7, 1), occupancy("short.csv", 2, 2)};
+    }
+
+    // Occupancy CSV like OccupancyAnnualHourly.csv, probabilities from 0 to 1 so the band reaches its limits
+    private OccupancyStore occupancy(String name, int days, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        File csv = new File(folder.getRoot(), name);
+        try (PrintWriter w = new PrintWriter(csv, "UTF-8")) {
+            w.println("Dates/Times,Probability,Random Number,Occupancy,Comfort Range");
+            for (int k = 0; k < days * 24 * NT; k++) {
+                double prob = (k % 7 == 0) ? 0 : (k % 11 == 0) ? 1 : rnd.nextDouble();
+                w.println(String.format(Locale.ROOT, "t%d,%.3f,%.6f,%d,%.6f", k, prob, rnd.nextDouble(),
+                    rnd.nextDouble() < prob ? 1 : 0, ThermostatEngine.comfortRange(Math.max(0.01, prob))));
+            }
+        }
+        return OccupancyStore.open(csv, 24 * NT);
+    }
+
+    // BUILDINGS buildings with random configuration, the same for the same seed
+    private BuildingStateStore buildings(long seed) {
+        Random rnd = new Random(seed);
+        BuildingStateStore bldg = new BuildingStateStore(BUILDINGS);
+        for (int i = 0; i < BUILDINGS; i++) {
+            bldg.modeText[i] = MODES[rnd.nextInt(MODES.length)];
+            bldg.mode[i] = BuildingStateStore.parseMode(bldg.modeText[i]);
+            bldg.engineMode[i] = ThermostatEngine.Mode.parse(bldg.modeText[i]);
+            bldg.hvac[i] = HVAC[rnd.nextInt(HVAC.length)];
+            bldg.source[i] = BuildingStateStore.SOURCE_JAVA;
+            bldg.occupancy[i] = occupancy[rnd.nextInt(occupancy.length)];
+            bldg.fixedMin[i] = 18 + rnd.nextInt(4);
+            bldg.fixedMax[i] = 23 + rnd.nextInt(4);
+        }
+        return bldg;
+    }
+
+    private static BuildingController controller(BuildingStateStore bldg, SetpointCache cache) {
+        StepTelemetry telemetry = new StepTelemetry(bldg.size());
+        for (int i = 0; i < bldg.size(); i++) {
+            telemetry.configure(i, StepTelemetry.Verbosity.OFF, 1);
+        }
+        return new BuildingController(bldg, NT, new EPVariables(), telemetry,
+            new StepProfiler(new String[bldg.size()], 0, 0, null), cache, "thermostat.py",
+            new HashMap<String, PythonThermostatPool>());
+    }
+
+    // Outdoor temperature, now and then on a breakpoint of the adaptive comfort model
+    private static double outdoor(Random rnd) {
+        switch (rnd.nextInt(40)) {
+            case 0: return 9.6774 + rnd.nextInt(3) * 1e-6;
+            case 1: return 33.22 - rnd.nextInt(3) * 1e-3;
+            default: return -10 + 55 * rnd.nextDouble();
+        }
+    }
+
+    // Indoor temperature: anywhere, or near last step's setpoints so the fuzzy toggles hold or flip
+    private static double indoor(Random rnd, BuildingStateStore bldg, int i) {
+        switch (rnd.nextInt(3)) {
+            case 0: return bldg.setCool[i] + 1.5 * (rnd.nextDouble() - 0.7);
+            case 1: return bldg.setHeat[i] + 1.5 * (rnd.nextDouble() - 0.3);
+            default: return 10 + 25 * rnd.nextDouble();
+        }
+    }
+
+    @Test
+    public void kernelMatchesJavaSetpoints() {
+        BuildingStateStore expected = buildings(7);
+        BuildingStateStore actual = buildings(7);
+        BuildingController perBuilding = controller(expected, new SetpointCache(0, 0));
+        BuildingController batched = controller(actual, new SetpointCache(0, 0));
+        Random rnd = new Random(1);
+        long carriedOver = 0;
+        for (int t = 0; t < STEPS; t++) {
+            perBuilding.beginStep(t);
+            batched.beginStep(t);
+            for (int i = 0; i < BUILDINGS; i++) {
+                double out = outdoor(rnd);
+                double in = indoor(rnd, expected, i);
+                expected.outdoorTemp[i] = actual.outdoorTemp[i] = out;
+                expected.indoorTemp[i] = actual.indoorTemp[i] = in;
+            }
+            boolean[] coolBefore = expected.fuzzyCool.clone();
+            for (int i = 0; i < BUILDINGS; i++) {
+                expected.setHeat[i] = -1.1; // flag values step() starts from, kept when there is no mode
+                expected.setCool[i] = 111.1;
+                perBuilding.javaSetpoints(i, perBuilding.occupancyRow(i) / NT, false);
+            }
+            SetpointKernel kernel = batched.kernel();
+            kernel.begin(batched.timeLoop());
+            for (int i = BUILDINGS - 1; i >= 0; i--) { // order must not matter
+                kernel.add(i);
+            }
+            kernel.run();
+            for (int i = 0; i < BUILDINGS; i++) {
+                String at = "step " + t + ", building " + i + " (" + expected.modeText[i] + ", " + expected.hcc(i) + ")";
+                assertEquals("heat setpoint, " + at, Double.doubleToRawLongBits(expected.setHeat[i]), Double.doubleToRawLongBits(actual.setHeat[i]));
+                assertEquals("cool setpoint, " + at, Double.doubleToRawLongBits(expected.setCool[i]), Double.doubleToRawLongBits(actual.setCool[i]));
+                assertEquals("fuzzy cool, " + at, expected.fuzzyCool[i], actual.fuzzyCool[i]);
+                assertEquals("fuzzy heat, " + at, expected.fuzzyHeat[i], actual.fuzzyHeat[i]);
+                // still on with the zone below the switch-on temperature (setpoint + offset + margin - margin
+                // - fudge): held from last step
+                if (coolBefore[i] && expected.fuzzyCool[i] && expected.indoorTemp[i] < expected.setCool[i] + 0.9) carriedOver++;
+            }
+        }
+        assertTrue("fuzzy toggles never carried over between steps", carriedOver > 0);
+    }
+
+    // One EP message: outdoor and zone temperature
+    private static EPFrame frame(EPVariables vars, int step, double outdoor, double indoor) {
+        String text = "SET\r\n" + (300 * (step + 1)) + "\r\n"
+            + vars.name(EPVariables.OUTDOOR_AIR_TEMP) + "\r\n" + outdoor + "\r\n"
+            + vars.name(EPVariables.ZONE_MEAN_AIR_TEMP) + "\r\n" + indoor + "\r\n\r\n";
+        EPFrame f = new EPFrame(vars);
+        f.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+        return f;
+    }
+
+    @Test
+    public void stepBatchMatchesStep() {
+        BuildingStateStore expected = buildings(11);
+        BuildingStateStore actual = buildings(11);
+        for (int i = 0; i < BUILDINGS; i++) {
+            expected.hasDishwasher[i] = actual.hasDishwasher[i] = i % 2 == 0;
+            if (i % 3 == 0) {
+                expected.source[i] = actual.source[i] = BuildingStateStore.SOURCE_ENGINE;
+            }
+        }
+        expected.seedAppliances(5, 0);
+        actual.seedAppliances(5, 0);
+        BuildingController perBuilding = controller(expected, new SetpointCache(0, 0));
+        BuildingController batched = controller(actual, new SetpointCache(0, 0));
+        EPVariables vars = new EPVariables();
+        Random rnd = new Random(3);
+        int[] ids = new int[BUILDINGS];
+        EPFrame[] frames = new EPFrame[BUILDINGS];
+        for (int t = 0; t < STEPS; t++) {
+            perBuilding.beginStep(t);
+            batched.beginStep(t);
+            for (int i = 0; i < BUILDINGS; i++) {
+                frames[i] = frame(vars, t, outdoor(rnd), indoor(rnd, expected, i));
+                ids[i] = i;
+                perBuilding.step(i, frames[i]);
+            }
+            batched.stepBatch(ids, frames, BUILDINGS);
+            for (int i = 0; i < BUILDINGS; i++) {
+                String at = "step " + t + ", building " + i;
+                assertEquals("heat setpoint, " + at, Double.doubleToRawLongBits(expected.setHeat[i]), Double.doubleToRawLongBits(actual.setHeat[i]));
+                assertEquals("cool setpoint, " + at, Double.doubleToRawLongBits(expected.setCool[i]), Double.doubleToRawLongBits(actual.setCool[i]));
+                assertEquals("dishwasher, " + at, expected.setDishwasher[i], actual.setDishwasher[i]);
+            }
+        }
+    }
+}
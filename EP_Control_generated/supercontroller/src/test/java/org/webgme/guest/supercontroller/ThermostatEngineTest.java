@@ -0,0 +1,119 @@
+/*
+File:           ThermostatEngineTest.java
+Project:        EnergyPlus Supercontroller+socket
+Notes: ThermostatEngine (java_thermostat) against golden output of thermostat.py. thermostat_golden.csv is one
+       thermostat.py -worker request per row: every MODE (and one it does not know), heat/cool/auto, outdoor
+       temperatures from -15 to 45 C plus the clamp breakpoints, occupied and vacant, probabilities 0 to 1.
+       comfort_range_golden.csv is thermostat.py's comfort band, norm.ppf((1-p)/2 + 1/2) * sigma, for p in steps
+       of 0.001; the Java occupancy setpoints use it through comfortRange() instead of the old lookup table.
+       Regenerate both by running thermostat.py -worker over the same requests if thermostat.py changes.
+*/
+
+package org.webgme.guest.supercontroller;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThermostatEngineTest {
+
+    // scipy's norm.ppf and AS241 agree to ~1e-16 relative; leave room for a fixture regenerated with either
+    private static final double TOLERANCE = 1e-9;
+
+    // Rows of a golden CSV: first line starting with # is a comment, the next one the header
+    private static List<String[]> golden(String name) throws IOException {
+        InputStream in = ThermostatEngineTest.class.getResourceAsStream(name);
+        assertNotNull("missing fixture " + name, in);
+        List<String[]> rows = new ArrayList<String[]>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            boolean header = true;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty()) continue;
+                if (header) {
+                    header = false;
+                    continue;
+                }
+                rows.add(line.split(","));
+            }
+        }
+        return rows;
+    }
+
+    // python prints inf for an unbounded comfort band
+    private static double python(String value) {
+        return Double.parseDouble(value.replace("inf", "Infinity"));
+    }
+
+    private static void assertSetpoint(String message, double expected, double actual) {
+        if (Double.isInfinite(expected)) {
+            assertEquals(message, expected, actual, 0);
+        } else {
+            assertEquals(message, expected, actual, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void matchesThermostatPy() throws IOException {
+        List<String[]> rows = golden("thermostat_golden.csv");
+        assertTrue("fixture too small: " + rows.size(), rows.size() > 10000);
+        for (String[] row : rows) {
+            ThermostatEngine.Mode mode = ThermostatEngine.Mode.parse(row[0]);
+            char heatOrCool = row[1].charAt(0);
+            double outdoor = Double.parseDouble(row[2]);
+            double status = Double.parseDouble(row[3]);
+            double prob = Double.parseDouble(row[4]);
+            String at = String.join(",", row);
+            // thermostat.py's fixed setpoints are FIXED_LOWER = 20, FIXED_UPPER = 23
+            assertSetpoint("heat setpoint, " + at, python(row[5]),
+                ThermostatEngine.heatSetpoint(mode, heatOrCool, outdoor, status, prob, 20));
+            assertSetpoint("cool setpoint, " + at, python(row[6]),
+                ThermostatEngine.coolSetpoint(mode, heatOrCool, outdoor, status, prob, 23));
+        }
+    }
+
+    @Test
+    public void comfortRangeMatchesThermostatPy() throws IOException {
+        List<String[]> rows = golden("comfort_range_golden.csv");
+        assertEquals(1001, rows.size());
+        for (String[] row : rows) {
+            double prob = Double.parseDouble(row[0]);
+            assertSetpoint("comfort range, p = " + row[0], python(row[1]), ThermostatEngine.comfortRange(prob));
+        }
+    }
+
+    // Not a benchmark (see supercontroller-benchmarks), only a sanity figure for the log
+    @Test
+    public void throughput() {
+        ThermostatEngine.Mode[] modes = {ThermostatEngine.Mode.OCCUPANCY, ThermostatEngine.Mode.OCCUPANCY_PROB,
+            ThermostatEngine.Mode.ADAPTIVE90};
+        final int n = 5000000;
+        double sink = 0;
+        double best = 0;
+        for (int rep = 0; rep < 3; rep++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                ThermostatEngine.Mode mode = modes[i % modes.length];
+                double prob = (i % 997 + 1) / 998.0; // p = 0 has an infinite band
+                double outdoor = (i % 61) - 15;
+                double status = (i >> 3) & 1;
+                sink += ThermostatEngine.heatSetpoint(mode, 'a', outdoor, status, prob, 20)
+                    + ThermostatEngine.coolSetpoint(mode, 'a', outdoor, status, prob, 23);
+            }
+            best = Math.max(best, n / ((System.nanoTime() - start) / 1e9));
+        }
+        System.out.println(String.format(Locale.ROOT, "ThermostatEngine: %.1f M setpoint pairs/s", best / 1e6));
+        assertTrue(!Double.isNaN(sink));
+    }
+}